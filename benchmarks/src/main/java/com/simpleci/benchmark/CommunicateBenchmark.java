@@ -0,0 +1,45 @@
+package com.simpleci.benchmark;
+
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.NioServer;
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Round-trip latency of {@link Helpers#communicate} against a loopback
+ * {@link NioServer}, from one caller and from many sharing the connection
+ * pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommunicateBenchmark {
+    private NioServer server;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new NioServer("bench", "localhost", 0, message -> CommunicationConstants.OK_RESPONSE);
+        server.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        return Helpers.communicate("localhost", server.getPort(), CommunicationConstants.STATUS_CMD);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String concurrentRoundTrips() {
+        return Helpers.communicate("localhost", server.getPort(), CommunicationConstants.STATUS_CMD);
+    }
+}
@@ -0,0 +1,187 @@
+package com.simpleci.benchmark;
+
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.NioServer;
+import com.simpleci.helpers.ConnectionPool;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Compares the old blocking server (ServerSocket with a backlog of 50 and a
+ * cached thread per connection) with {@link NioServer}. Each run drives a
+ * status/OK exchange from many concurrent clients and reports requests per
+ * second and the peak number of threads the server added to the process.
+ *
+ * Usage: ConnectionThroughputBenchmark [clients] [seconds] [idleConnections]
+ */
+public class ConnectionThroughputBenchmark {
+    private static final int BASE_PORT = 18800;
+
+    private static int baselineThreads;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length >= 1 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length >= 2 ? Integer.parseInt(args[1]) : 5;
+        int idleConnections = args.length >= 3 ? Integer.parseInt(args[2]) : 2000;
+
+        System.out.printf("clients=%d seconds=%d idleConnections=%d%n", clients, seconds, idleConnections);
+
+        baselineThreads = Thread.activeCount();
+        BlockingServer before = new BlockingServer(BASE_PORT);
+        try {
+            report("blocking, connection per request", runConnectionPerRequest(BASE_PORT, clients, seconds));
+            report("blocking, idle connections held", holdIdleConnections(BASE_PORT, idleConnections));
+        } finally {
+            before.close();
+        }
+        awaitThreadsDrained();
+
+        NioServer after = new NioServer("bench", "localhost", BASE_PORT + 1,
+                message -> CommunicationConstants.OK_RESPONSE);
+        after.start();
+        try {
+            report("nio, connection per request", runConnectionPerRequest(BASE_PORT + 1, clients, seconds));
+            report("nio, pooled pipelined requests", runPooled(BASE_PORT + 1, clients, seconds));
+            report("nio, idle connections held", holdIdleConnections(BASE_PORT + 1, idleConnections));
+        } finally {
+            after.close();
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, Result result) {
+        System.out.printf("%-36s %10.0f req/s %8d server threads%n", name, result.requestsPerSecond,
+                result.peakThreads - baselineThreads);
+    }
+
+    // Lets the cached threads of the blocking server time out before the next run.
+    private static void awaitThreadsDrained() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(90);
+        while (Thread.activeCount() > baselineThreads && System.nanoTime() < deadline) {
+            Thread.sleep(200);
+        }
+    }
+
+    private static Result runConnectionPerRequest(int port, int clients, int seconds) throws Exception {
+        return drive(clients, seconds, () -> {
+            try (Socket socket = new Socket("localhost", port)) {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out.println(CommunicationConstants.STATUS_CMD);
+                return CommunicationConstants.OK_RESPONSE.equals(in.readLine());
+            }
+        });
+    }
+
+    private static Result runPooled(int port, int clients, int seconds) throws Exception {
+        try (ConnectionPool pool = new ConnectionPool()) {
+            return drive(clients, seconds, () -> CommunicationConstants.OK_RESPONSE
+                    .equals(pool.send("localhost", port, CommunicationConstants.STATUS_CMD).get()));
+        }
+    }
+
+    private static Result drive(int clients, int seconds, Callable<Boolean> request) throws Exception {
+        AtomicLong completed = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            pool.submit(() -> {
+                while (running.get()) {
+                    try {
+                        if (request.call()) {
+                            completed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // Count only successful round-trips.
+                    }
+                }
+            });
+        }
+        int peakThreads = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            // Discount the client threads driving the load.
+            peakThreads = Math.max(peakThreads, Thread.activeCount() - clients);
+            Thread.sleep(50);
+        }
+        running.set(false);
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        return new Result(completed.get() / elapsed, peakThreads);
+    }
+
+    // Opens many connections that stay idle, as a fleet of quiet peers would.
+    private static Result holdIdleConnections(int port, int count) throws Exception {
+        List<Socket> sockets = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets.add(new Socket("localhost", port));
+            }
+            Thread.sleep(500);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            return new Result(count / elapsed, Thread.activeCount());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private static class Result {
+        final double requestsPerSecond;
+        final int peakThreads;
+
+        Result(double requestsPerSecond, int peakThreads) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.peakThreads = peakThreads;
+        }
+    }
+
+    // The pre-NIO server model: one blocking accept loop and a cached thread
+    // per connection, reading a single 1024-char request.
+    private static class BlockingServer implements Closeable {
+        private final ServerSocket serverSocket;
+        private final ExecutorService connectionPool = Executors.newCachedThreadPool();
+        private volatile boolean dead = false;
+
+        BlockingServer(int port) throws IOException {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getByName("localhost"));
+            connectionPool.submit(() -> {
+                while (!dead) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connectionPool.submit(() -> serve(socket));
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            });
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket;
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+                char[] buffer = new char[1024];
+                if (in.read(buffer) != -1) {
+                    out.println(CommunicationConstants.OK_RESPONSE);
+                }
+            } catch (IOException e) {
+                // Peer went away.
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            dead = true;
+            serverSocket.close();
+            connectionPool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package com.simpleci.benchmark;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.WireCodec;
+import com.simpleci.dispatcher.Dispatcher;
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Drives a dispatcher with a fleet of simulated runners and a simulated
+ * observer to find where it stops keeping up. The runners are a few threads
+ * in this process: they register, send heartbeats, accept runtest requests
+ * and report results after a sampled test duration, without git or real
+ * tests. The observer sends commits at a fixed rate.
+ *
+ * Reports how long commits took to reach a runner (dispatch latency) and to
+ * have their results accepted, throughput, and the threads and heap of this
+ * process, which includes the dispatcher unless an external one is given.
+ *
+ * Usage: DispatcherLoadTest [name=value ...]
+ *   runners=1000          simulated runners
+ *   slots=2               slots per runner
+ *   rate=100              commits per second sent by the observer
+ *   seconds=30            how long to send commits
+ *   drain=30              most seconds to wait for outstanding results
+ *   duration=lognormal:500:0.8
+ *                         test time per commit in ms: fixed:<ms>, uniform:<min>:<max>,
+ *                         exp:<mean> or lognormal:<median>:<sigma>
+ *   failRate=0            fraction of commits reported as failed
+ *   rejectRate=0          fraction of runtest requests answered BUSY
+ *   crashRate=0           fraction of runtest requests after which the runner dies
+ *   dispatcher=host:port  dispatcher to test; by default one is started in this
+ *                         process on port 18888, keeping results in ./test_results
+ */
+public class DispatcherLoadTest {
+    private static final String REPO = "load";
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+    private static final long FEED_INTERVAL_MILLIS = 10;
+    private static final int DEFAULT_DISPATCHER_PORT = 18888;
+
+    // Held so the quieter level set on it is not lost to garbage collection.
+    private static final Logger simpleciLogger = Logger.getLogger("com.simpleci");
+
+    private final Map<String, String> options;
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+
+    // When each commit was sent, removed once its results are accepted.
+    private final Map<String, Long> sentNanos = new ConcurrentHashMap<>();
+    private final Set<String> dispatchedOnce = ConcurrentHashMap.newKeySet();
+    private final LatencyRecorder dispatchLatency = new LatencyRecorder();
+    private final LatencyRecorder completionLatency = new LatencyRecorder();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong redispatched = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong crashes = new AtomicLong();
+
+    private String dispatcherHost = "localhost";
+    private int dispatcherPort = DEFAULT_DISPATCHER_PORT;
+    private DurationDistribution durations;
+    private double failRate;
+    private double rejectRate;
+    private double crashRate;
+
+    private DispatcherLoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq == -1) {
+                System.out.println("Usage: DispatcherLoadTest [name=value ...], see the class comment for names");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new DispatcherLoadTest(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int runnerCount = Integer.parseInt(options.getOrDefault("runners", "1000"));
+        int slots = Integer.parseInt(options.getOrDefault("slots", "2"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        int drain = Integer.parseInt(options.getOrDefault("drain", "30"));
+        durations = DurationDistribution.parse(options.getOrDefault("duration", "lognormal:500:0.8"));
+        failRate = Double.parseDouble(options.getOrDefault("failRate", "0"));
+        rejectRate = Double.parseDouble(options.getOrDefault("rejectRate", "0"));
+        crashRate = Double.parseDouble(options.getOrDefault("crashRate", "0"));
+
+        simpleciLogger.setLevel(Level.WARNING);
+        Dispatcher dispatcher = null;
+        if (options.containsKey("dispatcher")) {
+            String[] address = options.get("dispatcher").split(":");
+            dispatcherHost = address[0];
+            dispatcherPort = Integer.parseInt(address[1]);
+        } else {
+            dispatcher = new Dispatcher(dispatcherHost, dispatcherPort);
+            dispatcher.start();
+        }
+        System.out.printf("runners=%d slots=%d rate=%.0f/s seconds=%d duration=%s failRate=%s rejectRate=%s "
+                + "crashRate=%s%n", runnerCount, slots, rate, seconds, options.getOrDefault("duration",
+                "lognormal:500:0.8"), failRate, rejectRate, crashRate);
+
+        try (FakeRunnerFleet fleet = new FakeRunnerFleet(runnerCount, slots)) {
+            fleet.start();
+            long start = System.nanoTime();
+            fleet.registerAll();
+            System.out.printf("Registered %d runners in %d ms%n", runnerCount,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            ScheduledFuture<?> feeder = startObserver(rate);
+            long feedStart = System.nanoTime();
+            for (int i = 1; i <= seconds; i++) {
+                Thread.sleep(1000);
+                if (i % 5 == 0 || i == seconds) {
+                    System.out.printf("%3ds sent=%d dispatched=%d completed=%d outstanding=%d threads=%d%n", i,
+                            sent.get(), dispatched.get(), completed.get(), sentNanos.size(),
+                            Thread.activeCount());
+                }
+            }
+            feeder.cancel(false);
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+            while (!sentNanos.isEmpty() && System.nanoTime() < drainDeadline) {
+                Thread.sleep(100);
+            }
+            report(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - feedStart) / 1000.0);
+        } finally {
+            timer.shutdownNow();
+            if (dispatcher != null) {
+                dispatcher.shutdown();
+            }
+        }
+    }
+
+    // Sends the commits due since the last tick as one batch, as the observer does.
+    private ScheduledFuture<?> startObserver(double rate) {
+        long start = System.nanoTime();
+        return timer.scheduleAtFixedRate(() -> {
+            long due = (long) (rate * (System.nanoTime() - start) / 1e9) - sent.get();
+            if (due <= 0) {
+                return;
+            }
+            List<Commit> batch = new ArrayList<>();
+            for (long i = 0; i < due; i++) {
+                String id = String.format("%016x%016x%08x", random().nextLong(), random().nextLong(), random().nextInt());
+                batch.add(new Commit(REPO, "main", id));
+                sentNanos.put(id, System.nanoTime());
+            }
+            sent.addAndGet(batch.size());
+            Helpers.communicateAsync(dispatcherHost, dispatcherPort,
+                    CommunicationConstants.DISPATCH_CMD + ":" + Commit.encodeBatch(batch))
+                    .whenComplete((response, error) -> {
+                        if (error != null || !CommunicationConstants.OK_RESPONSE.equals(response)) {
+                            sendErrors.addAndGet(batch.size());
+                            batch.forEach(commit -> sentNanos.remove(commit.getId()));
+                        }
+                    });
+        }, 0, FEED_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void report(double elapsedSeconds) {
+        System.out.println();
+        System.out.printf("commits: sent=%d sendErrors=%d dispatched=%d redispatched=%d completed=%d failed=%d "
+                + "unfinished=%d%n", sent.get(), sendErrors.get(), dispatched.get(), redispatched.get(),
+                completed.get(), failed.get(), sentNanos.size());
+        System.out.printf("runners: rejected=%d crashed=%d%n", rejected.get(), crashes.get());
+        System.out.printf("throughput: %.1f dispatched/s, %.1f completed/s%n", dispatched.get() / elapsedSeconds,
+                completed.get() / elapsedSeconds);
+        System.out.println("dispatch latency (sent to runtest):    " + dispatchLatency.summary());
+        System.out.println("completion latency (sent to results):  " + completionLatency.summary());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        System.out.printf("process: threads=%d peakThreads=%d heapUsed=%dMB heapMax=%dMB gcMillis=%d%n",
+                threads.getThreadCount(), threads.getPeakThreadCount(), heap.getUsed() >> 20, heap.getMax() >> 20,
+                gcMillis);
+        System.out.println("dispatcher: " + Helpers.communicate(dispatcherHost, dispatcherPort,
+                CommunicationConstants.STATS_CMD));
+    }
+
+    private static Random random() {
+        return ThreadLocalRandom.current();
+    }
+
+    // Called by the fleet when a runner accepts a runtest request.
+    private void onDispatched(String commitId) {
+        Long sentAt = sentNanos.get(commitId);
+        if (sentAt == null) {
+            return;
+        }
+        dispatched.incrementAndGet();
+        if (dispatchedOnce.add(commitId)) {
+            dispatchLatency.record(System.nanoTime() - sentAt);
+        } else {
+            redispatched.incrementAndGet();
+        }
+    }
+
+    // Called by the fleet when the dispatcher accepted a commit's results.
+    private void onCompleted(String commitId, boolean passed) {
+        Long sentAt = sentNanos.remove(commitId);
+        if (sentAt == null) {
+            return;
+        }
+        dispatchedOnce.remove(commitId);
+        completionLatency.record(System.nanoTime() - sentAt);
+        completed.incrementAndGet();
+        if (!passed) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Test durations drawn from a configurable distribution.
+     */
+    private abstract static class DurationDistribution {
+        abstract long sampleMillis(Random random);
+
+        static DurationDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed": {
+                    long millis = Long.parseLong(parts[1]);
+                    return new DurationDistribution() {
+                        long sampleMillis(Random random) {
+                            return millis;
+                        }
+                    };
+                }
+                case "uniform": {
+                    long min = Long.parseLong(parts[1]);
+                    long max = Long.parseLong(parts[2]);
+                    return new DurationDistribution() {
+                        long sampleMillis(Random random) {
+                            return min + (long) (random.nextDouble() * (max - min));
+                        }
+                    };
+                }
+                case "exp": {
+                    double mean = Double.parseDouble(parts[1]);
+                    return new DurationDistribution() {
+                        long sampleMillis(Random random) {
+                            return (long) (-mean * Math.log(1 - random.nextDouble()));
+                        }
+                    };
+                }
+                case "lognormal": {
+                    double median = Double.parseDouble(parts[1]);
+                    double sigma = Double.parseDouble(parts[2]);
+                    return new DurationDistribution() {
+                        long sampleMillis(Random random) {
+                            return (long) (median * Math.exp(sigma * random.nextGaussian()));
+                        }
+                    };
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown duration distribution: " + spec);
+            }
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, kept in full so percentiles are exact.
+     */
+    private static class LatencyRecorder {
+        private long[] values = new long[1024];
+        private int count = 0;
+
+        synchronized void record(long nanos) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = nanos;
+        }
+
+        synchronized String summary() {
+            if (count == 0) {
+                return "no samples";
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms", count,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), sorted[count - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    /**
+     * Simulated runners, each listening on its own loopback port. All of them
+     * share one selector thread, so thousands cost a handful of threads.
+     */
+    private class FakeRunnerFleet implements Closeable {
+        private final Selector selector;
+        private final List<FakeRunner> runners = new ArrayList<>();
+        private final Thread thread;
+        private volatile boolean dead = false;
+
+        FakeRunnerFleet(int count, int slots) throws IOException {
+            selector = Selector.open();
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+                channel.configureBlocking(false);
+                FakeRunner runner = new FakeRunner(channel, slots);
+                channel.register(selector, SelectionKey.OP_ACCEPT, runner);
+                runners.add(runner);
+            }
+            thread = new Thread(this::select, "fake-runners");
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void registerAll() {
+            List<CompletableFuture<String>> registrations = new ArrayList<>();
+            for (FakeRunner runner : runners) {
+                registrations.add(Helpers.communicateAsync(dispatcherHost, dispatcherPort,
+                        CommunicationConstants.REGISTER_CMD + ":localhost:" + runner.port + ":" + runner.slots));
+                // Spread heartbeats over the interval so they do not arrive in bursts.
+                timer.scheduleAtFixedRate(runner::heartbeat, random().nextInt((int) HEARTBEAT_INTERVAL_MILLIS),
+                        HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            CompletableFuture.allOf(registrations.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        private void select() {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (!dead) {
+                try {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            FakeRunner runner = (FakeRunner) key.attachment();
+                            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                            if (channel != null) {
+                                channel.configureBlocking(false);
+                                channel.register(selector, SelectionKey.OP_READ, new FakeConnection(runner, channel));
+                                runner.connections.add(channel);
+                            }
+                        } else if (key.isReadable()) {
+                            ((FakeConnection) key.attachment()).read(key, buffer);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException | ClosedSelectorException e) {
+                    if (!dead) {
+                        System.err.println("Fake runner fleet failed: " + e);
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            dead = true;
+            selector.close();
+            for (FakeRunner runner : runners) {
+                runner.crash();
+            }
+        }
+    }
+
+    private class FakeRunner {
+        private final ServerSocketChannel channel;
+        private final int port;
+        private final int slots;
+        private final AtomicInteger busy = new AtomicInteger();
+        private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+        private volatile boolean crashed = false;
+
+        FakeRunner(ServerSocketChannel channel, int slots) throws IOException {
+            this.channel = channel;
+            this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            this.slots = slots;
+        }
+
+        void heartbeat() {
+            if (!crashed) {
+                Helpers.communicateAsync(dispatcherHost, dispatcherPort, CommunicationConstants.HEARTBEAT_CMD
+                        + ":localhost:" + port + ":" + slots + ":" + (slots - busy.get()) + ":0.0");
+            }
+        }
+
+        // Answers a request from the dispatcher; null means no answer.
+        String handle(String request) {
+            if (crashed) {
+                return null;
+            }
+            if (request.startsWith(CommunicationConstants.PING_CMD)) {
+                return CommunicationConstants.PONG_RESPONSE + ":" + slots + ":" + (slots - busy.get());
+            }
+            if (request.startsWith(CommunicationConstants.CANCEL_CMD + ":")) {
+                // The losing run of a speculated shard; its late report is ignored anyway.
+                return CommunicationConstants.OK_RESPONSE;
+            }
+            if (!request.startsWith(CommunicationConstants.RUNT_TEST_CMD + ":")) {
+                return "Invalid command";
+            }
+            String command = request.substring(CommunicationConstants.RUNT_TEST_CMD.length() + 1);
+            String attempt = "";
+            int hash = command.lastIndexOf('#');
+            if (hash != -1) {
+                attempt = command.substring(hash);
+                command = command.substring(0, hash);
+            }
+            String[] parts = command.split(":", 5);
+            String commitId = parts[0];
+            String taskId = (parts.length == 5 ? commitId + "." + parts[1] : commitId) + attempt;
+            if (random().nextDouble() < rejectRate) {
+                rejected.incrementAndGet();
+                return "BUSY";
+            }
+            if (busy.incrementAndGet() > slots) {
+                busy.decrementAndGet();
+                rejected.incrementAndGet();
+                return "BUSY";
+            }
+            onDispatched(commitId);
+            if (random().nextDouble() < crashRate) {
+                // Accept the work, then die without reporting it.
+                crashes.incrementAndGet();
+                timer.execute(this::crash);
+                return CommunicationConstants.OK_RESPONSE;
+            }
+            timer.schedule(() -> finish(commitId, taskId), durations.sampleMillis(random()), TimeUnit.MILLISECONDS);
+            return CommunicationConstants.OK_RESPONSE;
+        }
+
+        private void finish(String commitId, String taskId) {
+            busy.decrementAndGet();
+            if (crashed) {
+                return;
+            }
+            boolean passed = random().nextDouble() >= failRate;
+            String output = (passed ? "Tests passed" : "Tests failed") + " for commit " + commitId + "\n";
+            String status = passed ? CommunicationConstants.PASS_STATUS : CommunicationConstants.FAIL_STATUS;
+            Helpers.communicateAsync(dispatcherHost, dispatcherPort, CommunicationConstants.RESULTS_CMD + ":" + taskId
+                    + ":" + status + ":" + output.length() + ":" + output).whenComplete((response, error) -> {
+                        if (error == null && CommunicationConstants.OK_RESPONSE.equals(response)) {
+                            onCompleted(commitId, passed);
+                        }
+                    });
+        }
+
+        void crash() {
+            crashed = true;
+            try {
+                channel.close();
+                for (SocketChannel connection : connections) {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                // Going away anyway.
+            }
+        }
+    }
+
+    // A dispatcher connection to one runner, buffering input until a whole
+    // frame or line arrives. The dispatcher sends frames unless told to use text.
+    private static class FakeConnection {
+        private final FakeRunner runner;
+        private final SocketChannel channel;
+        private ByteBuffer input = ByteBuffer.allocate(4096);
+
+        FakeConnection(FakeRunner runner, SocketChannel channel) {
+            this.runner = runner;
+            this.channel = channel;
+        }
+
+        void read(SelectionKey key, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read == -1) {
+                key.cancel();
+                channel.close();
+                runner.connections.remove(channel);
+                return;
+            }
+            buffer.flip();
+            if (input.remaining() < buffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(input.capacity() * 2,
+                        input.position() + buffer.remaining()));
+                input.flip();
+                input = larger.put(input);
+            }
+            input.put(buffer);
+            input.flip();
+            if (input.hasRemaining() && input.get(0) == WireCodec.MAGIC) {
+                readFrames();
+            } else {
+                readLines();
+            }
+            input.compact();
+        }
+
+        private void readFrames() throws IOException {
+            int length;
+            while ((length = WireCodec.frameLength(input)) != -1 && input.remaining() >= length) {
+                long requestId = WireCodec.requestId(input);
+                String command = WireCodec.command(WireCodec.code(input));
+                String arg = WireCodec.payload(input);
+                input.position(input.position() + length);
+                String request = command == null ? arg : arg == null ? command : command + ":" + arg;
+                String response = runner.handle(request == null ? "" : request);
+                if (response != null) {
+                    write(WireCodec.encodeResponse(requestId, response));
+                }
+            }
+        }
+
+        private void readLines() throws IOException {
+            int end;
+            while ((end = indexOfNewline()) != -1) {
+                byte[] bytes = new byte[end - input.position()];
+                input.get(bytes);
+                input.get();
+                String line = new String(bytes, StandardCharsets.UTF_8);
+                String response = runner.handle(Helpers.stripRequestId(line));
+                if (response != null) {
+                    write(StandardCharsets.UTF_8.encode(Helpers.tagResponse(Helpers.requestId(line), response) + "\n"));
+                }
+            }
+        }
+
+        private int indexOfNewline() {
+            for (int i = input.position(); i < input.limit(); i++) {
+                if (input.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Responses are a few bytes, so a blocking-style loop finishes at once.
+        private void write(ByteBuffer out) throws IOException {
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+}
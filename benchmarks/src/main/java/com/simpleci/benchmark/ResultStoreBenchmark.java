@@ -0,0 +1,84 @@
+package com.simpleci.benchmark;
+
+import com.simpleci.dispatcher.ResultStore;
+import com.simpleci.dispatcher.StoredResult;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of persisting a result and of looking one up in a {@link ResultStore}
+ * in a temporary directory. The output is typical test log text, which
+ * compresses well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultStoreBenchmark {
+    // Held so the quieter level set on it is not lost to garbage collection.
+    private static final Logger simpleciLogger = Logger.getLogger("com.simpleci");
+    private static final int PRELOADED_RESULTS = 10000;
+
+    @Param({"4096", "65536"})
+    public int outputBytes;
+
+    @Param({"true", "false"})
+    public boolean compress;
+
+    private Path directory;
+    private ResultStore store;
+    private byte[] output;
+    private long next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        simpleciLogger.setLevel(Level.WARNING);
+        directory = Files.createTempDirectory("result-store-bench");
+        store = new ResultStore(directory, TimeUnit.DAYS.toMillis(90), compress);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < outputBytes; i++) {
+            text.append("PASS com/example/Module").append(i % 97).append("Test.java (").append(i % 500)
+                    .append(" ms)\n");
+        }
+        output = text.substring(0, outputBytes).getBytes(StandardCharsets.UTF_8);
+        for (; next < PRELOADED_RESULTS; next++) {
+            append(next);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        append(next++);
+    }
+
+    @Benchmark
+    public StoredResult lookup() throws IOException {
+        return store.lookup(id(ThreadLocalRandom.current().nextLong(PRELOADED_RESULTS)));
+    }
+
+    private void append(long n) throws IOException {
+        store.append(new StoredResult(id(n), "repo", "main", "localhost:8900", true, System.currentTimeMillis(), 1000),
+                new ByteArrayInputStream(output));
+    }
+
+    private static String id(long n) {
+        return String.format("%040x", n);
+    }
+}
@@ -0,0 +1,56 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.NioServer;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Commits a {@link CommitScheduler} can take through queueing, assignment and
+ * completion per millisecond. The runner is a loopback server that accepts
+ * every shard, with enough slots that assignment never waits for one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitSchedulerBenchmark {
+    // Held so the quieter level set on it is not lost to garbage collection.
+    private static final Logger simpleciLogger = Logger.getLogger("com.simpleci");
+    private static final int RUNNER_SLOTS = 1024;
+
+    private NioServer runner;
+    private ScheduledExecutorService timer;
+    private CommitScheduler scheduler;
+    private long next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        simpleciLogger.setLevel(Level.WARNING);
+        runner = new NioServer("runner", "localhost", 0, message -> CommunicationConstants.OK_RESPONSE);
+        runner.start();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        scheduler = new CommitScheduler(timer);
+        scheduler.addRunner(new TestRunnerInfo("localhost", runner.getPort(), RUNNER_SLOTS));
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.shutdown();
+        runner.close();
+    }
+
+    @Benchmark
+    public void submitAndComplete() {
+        String id = String.format("%040x", next++);
+        scheduler.submit(new Commit("repo", "main", id));
+        scheduler.completeShard(id, true);
+        scheduler.completeCommit(id);
+    }
+}
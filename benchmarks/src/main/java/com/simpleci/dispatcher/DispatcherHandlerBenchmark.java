@@ -0,0 +1,67 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.MessageHandler;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of parsing and answering one request in the dispatcher's protocol
+ * handler, without the network. The dispatcher has no runners, so dispatch
+ * requests are parsed and checked against the tree cache but never queued.
+ *
+ * The dispatcher keeps its results under test_results in the working
+ * directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherHandlerBenchmark {
+    // Held so the quieter level set on it is not lost to garbage collection.
+    private static final Logger simpleciLogger = Logger.getLogger("com.simpleci");
+    @Param({"status", "stats", "dispatch", "result"})
+    public String request;
+
+    private Dispatcher dispatcher;
+    private MessageHandler handler;
+    private String line;
+
+    @Setup
+    public void setUp() throws IOException {
+        simpleciLogger.setLevel(Level.WARNING);
+        dispatcher = new Dispatcher("localhost", 0);
+        handler = dispatcher.handler();
+        List<Commit> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new Commit("repo", "main", String.format("%040x", i), String.format("%040x", i + 100)));
+        }
+        switch (request) {
+            case "dispatch":
+                line = CommunicationConstants.DISPATCH_CMD + ":" + Commit.encodeBatch(batch);
+                break;
+            case "result":
+                line = CommunicationConstants.RESULT_CMD + ":" + batch.get(0).getId();
+                break;
+            default:
+                line = request;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public String handle() throws IOException {
+        return handler.handle(line);
+    }
+}
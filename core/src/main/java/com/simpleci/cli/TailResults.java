@@ -0,0 +1,48 @@
+package com.simpleci.cli;
+
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.helpers.Helpers;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Prints a commit's test output from the dispatcher, following it while the
+ * tests are still running.
+ */
+public class TailResults {
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        // Expected args: <dispatcherHost> <dispatcherPort> <commitId>
+        if (args.length < 3) {
+            System.out.println("Usage: java com.simpleci.cli.TailResults <dispatcherHost> <dispatcherPort> <commitId>");
+            System.exit(1);
+        }
+        String dispatcherHost = args[0];
+        int dispatcherPort = Integer.parseInt(args[1]);
+        String commitId = args[2];
+        long offset = 0;
+        while (true) {
+            String response = Helpers.communicate(dispatcherHost, dispatcherPort,
+                    CommunicationConstants.TAIL_CMD + ":" + commitId + ":" + offset);
+            String[] parts = response == null ? new String[0] : response.split(":", 3);
+            if (parts.length < 3) {
+                System.err.println("Unexpected response from dispatcher: " + response);
+                System.exit(1);
+            }
+            long nextOffset = Long.parseLong(parts[1]);
+            System.out.print(new String(Base64.getDecoder().decode(parts[2]), StandardCharsets.UTF_8));
+            System.out.flush();
+            boolean caughtUp = nextOffset == offset;
+            offset = nextOffset;
+            if (caughtUp) {
+                if ("DONE".equals(parts[0])) {
+                    break;
+                }
+                TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,62 @@
+package com.simpleci.common;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Recycles the heap buffers connections read frames into. Buffers come in
+ * power-of-two sizes from MIN_SIZE to MAX_SIZE; larger requests are served
+ * with a fresh buffer that is dropped on release.
+ */
+public final class ByteBufferPool {
+    public static final int MIN_SIZE = 8 * 1024;
+    private static final int MAX_SIZE = 1024 * 1024;
+    // Buffers kept per size, so an idle server does not hold on to a burst.
+    private static final int MAX_POOLED_PER_SIZE = 256;
+
+    private static final List<Queue<ByteBuffer>> free = new ArrayList<>();
+
+    static {
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            free.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    private ByteBufferPool() {
+    }
+
+    /**
+     * Returns a cleared buffer of at least the given capacity.
+     */
+    public static ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass == -1) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocate(MIN_SIZE << sizeClass);
+    }
+
+    public static void release(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass != -1 && (MIN_SIZE << sizeClass) == buffer.capacity()) {
+            Queue<ByteBuffer> queue = free.get(sizeClass);
+            if (queue.size() < MAX_POOLED_PER_SIZE) {
+                queue.add(buffer);
+            }
+        }
+    }
+
+    // Index of the smallest pooled size holding the capacity, or -1 if too large.
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_SIZE) {
+            return -1;
+        }
+        int sizeClass = 0;
+        while ((MIN_SIZE << sizeClass) < capacity) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
@@ -0,0 +1,113 @@
+package com.simpleci.common;
+
+import java.util.*;
+
+/**
+ * A commit together with the repository and branch it was seen on. Observers
+ * send commits in batches, grouped by repository and branch:
+ *
+ * dispatch:<repo>:<branch>:<commitId>,<commitId>;<repo>:<branch>:<commitId>
+ *
+ * A group holding just a commit ID is the older single-commit form and maps
+ * to the default repository and branch. A commit ID may be followed by
+ * "@<treeHash>" when the observer knows the commit's tree.
+ */
+public final class Commit {
+    public static final String DEFAULT = "default";
+
+    private final String repo;
+    private final String branch;
+    private final String id;
+    private final String tree;
+
+    public Commit(String repo, String branch, String id) {
+        this(repo, branch, id, null);
+    }
+
+    public Commit(String repo, String branch, String id, String tree) {
+        this.repo = repo;
+        this.branch = branch;
+        this.id = id;
+        this.tree = tree;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // The hash of the commit's tree, or null if unknown.
+    public String getTree() {
+        return tree;
+    }
+
+    public static String encodeBatch(List<Commit> commits) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (Commit commit : commits) {
+            groups.computeIfAbsent(commit.repo + ":" + commit.branch, k -> new ArrayList<>())
+                    .add(commit.tree == null ? commit.id : commit.id + "@" + commit.tree);
+        }
+        StringJoiner batch = new StringJoiner(";");
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            batch.add(group.getKey() + ":" + String.join(",", group.getValue()));
+        }
+        return batch.toString();
+    }
+
+    public static List<Commit> decodeBatch(String batch) {
+        List<Commit> commits = new ArrayList<>();
+        for (String group : batch.trim().split(";")) {
+            String[] parts = group.split(":");
+            if (parts.length == 1) {
+                commits.add(decodeId(DEFAULT, DEFAULT, parts[0]));
+            } else if (parts.length == 3) {
+                for (String id : parts[2].split(",")) {
+                    commits.add(decodeId(parts[0], parts[1], id));
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid commit group: " + group);
+            }
+        }
+        return commits;
+    }
+
+    private static Commit decodeId(String repo, String branch, String token) {
+        int at = token.indexOf('@');
+        return at == -1 ? new Commit(repo, branch, token)
+                : new Commit(repo, branch, token.substring(0, at), token.substring(at + 1));
+    }
+
+    // Makes a repository or branch name safe to embed in a batch.
+    public static String sanitize(String name) {
+        return name.replaceAll("[:;,\\s]", "_");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Commit)) {
+            return false;
+        }
+        Commit other = (Commit) o;
+        return repo.equals(other.repo) && branch.equals(other.branch) && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(repo, branch, id);
+    }
+
+    @Override
+    public String toString() {
+        return repo + ":" + branch + ":" + id;
+    }
+}
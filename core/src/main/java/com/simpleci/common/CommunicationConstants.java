@@ -0,0 +1,40 @@
+package com.simpleci.common;
+
+public final class CommunicationConstants {
+    public static final String STATUS_CMD = "status";
+    public static final String REGISTER_CMD = "register";
+    public static final String COMMIT_CMD = "commit";
+    public static final String DISPATCH_CMD = "dispatch";
+    public static final String RESULTS_CMD = "results";
+    public static final String RUNT_TEST_CMD = "runtest";
+    public static final String PING_CMD = "ping";
+    public static final String PONG_RESPONSE = "pong";
+    public static final String HEARTBEAT_CMD = "heartbeat";
+    public static final String METRICS_CMD = "metrics";
+    public static final String OK_RESPONSE = "OK";
+    // Answer to a request turned away for lack of room, overloaded:<retryAfterMillis>,
+    // or for a dispatch taken only in part, overloaded:<retryAfterMillis>:<commitId>,...
+    // listing the commits to send again.
+    public static final String OVERLOADED_RESPONSE = "overloaded";
+    // Answer to a request that failed, Error: <message>.
+    public static final String ERROR_RESPONSE = "Error";
+    public static final String STATS_CMD = "stats";
+    public static final String RESULT_CHUNK_CMD = "resultchunk";
+    public static final String RESULT_END_CMD = "resultend";
+    public static final String TAIL_CMD = "tail";
+    public static final String RESULT_CMD = "result";
+    public static final String HISTORY_CMD = "history";
+    public static final String TOPOLOGY_CMD = "topology";
+    public static final String FORWARD_CMD = "forward";
+    public static final String CANCEL_CMD = "cancel";
+
+    // Outcome of a test run, reported with its results.
+    public static final String PASS_STATUS = "PASS";
+    public static final String FAIL_STATUS = "FAIL";
+
+    // Prefix of the request ID tag ("#<id> <message>") used by pipelined connections.
+    public static final String REQUEST_ID_PREFIX = "#";
+
+    private CommunicationConstants() {
+    }
+}
\ No newline at end of file
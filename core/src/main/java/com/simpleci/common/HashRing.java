@@ -0,0 +1,76 @@
+package com.simpleci.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hashing of keys onto members named "host:port". Each member
+ * takes VIRTUAL_NODES points on the ring and a key belongs to the first point
+ * at or after its hash, so adding or removing a member only moves the keys on
+ * its own arcs and the rest stay where they were.
+ *
+ * Every process builds the same ring from the same members, which is what lets
+ * clients route without asking the dispatchers.
+ */
+public final class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<String> members;
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(Collection<String> members) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+        for (String member : this.members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * The members, sorted.
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the member owning the key, or null if the ring is empty.
+     */
+    public String owner(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * The key commits are partitioned by: all commits of a branch go to one
+     * dispatcher, which is what coalescing and bisection need.
+     */
+    public static String key(Commit commit) {
+        return commit.getRepo() + ":" + commit.getBranch();
+    }
+
+    // 64-bit FNV-1a, finished with the MurmurHash3 mix so that similar
+    // member names still spread evenly.
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", members);
+    }
+}
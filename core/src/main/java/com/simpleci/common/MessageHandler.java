@@ -0,0 +1,21 @@
+package com.simpleci.common;
+
+import java.io.IOException;
+
+/**
+ * Handles one request received by a {@link NioServer}. The request ID tag, if
+ * any, has already been stripped; the returned line is tagged on the way out.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+    String handle(String message) throws IOException;
+
+    /**
+     * Handles a request whose command arrived separately from its argument, as
+     * in a binary frame; arg is null if there is none. By default the text
+     * line is rebuilt and passed to {@link #handle(String)}.
+     */
+    default String handle(String command, String arg) throws IOException {
+        return handle(arg == null ? command : command + ":" + arg);
+    }
+}
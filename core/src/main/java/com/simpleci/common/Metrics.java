@@ -0,0 +1,267 @@
+package com.simpleci.common;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Process-wide counters, latency histograms and gauges for each stage of the
+ * pipeline. Recording never takes a lock: counters are LongAdders and a
+ * histogram is a fixed array of atomic bucket counts, so hot paths can record
+ * freely and readers see a close, not atomic, snapshot.
+ *
+ * Metrics are returned on one line by the metrics command, and in Prometheus
+ * text format written to the file named by -Dsimpleci.metrics.file and/or
+ * served at /metrics on -Dsimpleci.metrics.port.
+ */
+public final class Metrics {
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private static final long EXPORT_INTERVAL_SECONDS = 10;
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help) {
+        return counters.computeIfAbsent(name, n -> new Counter(n, help));
+    }
+
+    /**
+     * A histogram of durations in milliseconds.
+     */
+    public static Histogram histogram(String name, String help) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(n, help));
+    }
+
+    /**
+     * Registers a gauge read when metrics are reported. The supplier maps label
+     * sets such as runner="host:port" to values; "" is the unlabelled value.
+     */
+    public static void gauge(String name, String help, Supplier<Map<String, Double>> values) {
+        gauges.put(name, new Gauge(name, help, values));
+    }
+
+    /**
+     * All metrics as space-separated key=value pairs. Histograms are reported
+     * as their count, median, 99th percentile and maximum.
+     */
+    public static String summary() {
+        StringBuilder line = new StringBuilder();
+        for (Counter counter : counters.values()) {
+            line.append(' ').append(counter.name).append('=').append(counter.get());
+        }
+        for (Histogram histogram : histograms.values()) {
+            line.append(' ').append(histogram.name).append("_count=").append(histogram.count());
+            line.append(' ').append(histogram.name).append("_p50=").append(histogram.percentile(0.5));
+            line.append(' ').append(histogram.name).append("_p99=").append(histogram.percentile(0.99));
+            line.append(' ').append(histogram.name).append("_max=").append(histogram.max());
+        }
+        for (Gauge gauge : gauges.values()) {
+            for (Map.Entry<String, Double> value : gauge.values.get().entrySet()) {
+                line.append(' ').append(gauge.name);
+                if (!value.getKey().isEmpty()) {
+                    line.append('{').append(value.getKey()).append('}');
+                }
+                line.append('=').append(format(value.getValue()));
+            }
+        }
+        return line.length() == 0 ? "" : line.substring(1);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Counter counter : counters.values()) {
+            header(text, counter.name, counter.help, "counter");
+            text.append(counter.name).append(' ').append(counter.get()).append('\n');
+        }
+        for (Histogram histogram : histograms.values()) {
+            header(text, histogram.name, histogram.help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                cumulative += histogram.buckets.get(i);
+                String bound = i == Histogram.BUCKETS - 1 ? "+Inf" : Long.toString(Histogram.upperBound(i));
+                text.append(histogram.name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative)
+                        .append('\n');
+            }
+            text.append(histogram.name).append("_sum ").append(histogram.sum.sum()).append('\n');
+            text.append(histogram.name).append("_count ").append(cumulative).append('\n');
+        }
+        for (Gauge gauge : gauges.values()) {
+            header(text, gauge.name, gauge.help, "gauge");
+            for (Map.Entry<String, Double> value : gauge.values.get().entrySet()) {
+                text.append(gauge.name);
+                if (!value.getKey().isEmpty()) {
+                    text.append('{').append(value.getKey()).append('}');
+                }
+                text.append(' ').append(format(value.getValue())).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Starts the exports configured by system properties, if any.
+     */
+    public static void startExport(ScheduledExecutorService scheduler) {
+        String file = System.getProperty("simpleci.metrics.file");
+        if (file != null) {
+            Path path = Paths.get(file);
+            scheduler.scheduleWithFixedDelay(() -> writeFile(path), EXPORT_INTERVAL_SECONDS, EXPORT_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+        Integer port = Integer.getInteger("simpleci.metrics.port");
+        if (port != null) {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                logger.info("Serving metrics on port " + port);
+            } catch (IOException e) {
+                logger.warning("Unable to serve metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeFile(Path path) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(temp, prometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Error writing metrics to " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value)
+                : String.format("%.3f", value);
+    }
+
+    public static final class Counter {
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Durations in power-of-two millisecond buckets, from 1ms to about 17
+     * minutes, plus one for anything longer. Percentiles are reported as the
+     * upper bound of their bucket, so they are accurate to within a factor of 2.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 22;
+
+        private final String name;
+        private final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void record(long millis) {
+            millis = Math.max(0, millis);
+            int bucket = millis <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis - 1));
+            buckets.incrementAndGet(bucket);
+            sum.add(millis);
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        /**
+         * Records the time since startNanos, a System.nanoTime() value.
+         */
+        public void recordSince(long startNanos) {
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long percentile(double fraction) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        private static long upperBound(int bucket) {
+            return 1L << bucket;
+        }
+    }
+
+    private static final class Gauge {
+        private final String name;
+        private final String help;
+        private final Supplier<Map<String, Double>> values;
+
+        private Gauge(String name, String help, Supplier<Map<String, Double>> values) {
+            this.name = name;
+            this.help = help;
+            this.values = values;
+        }
+    }
+}
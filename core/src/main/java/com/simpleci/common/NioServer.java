@@ -0,0 +1,512 @@
+package com.simpleci.common;
+
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Selector-based server shared by the dispatcher and the test runners. A fixed
+ * number of event-loop threads own all connections and only do socket I/O and
+ * framing; complete requests are handed to a fixed pool of worker threads, so
+ * the thread count stays constant no matter how many peers are connected.
+ *
+ * Peers may speak {@link WireCodec} frames or the older text lines; each
+ * connection is answered in the format it opened with.
+ *
+ * Both are bounded, so a flood of peers cannot exhaust memory: requests that
+ * find "simpleci.server.queue" others waiting for a worker are answered
+ * "overloaded:<retryAfterMillis>" straight away, and connections beyond
+ * "simpleci.server.maxConnections" are closed as they are accepted.
+ */
+public class NioServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(NioServer.class.getName());
+
+    private static final int BACKLOG = 1024;
+    private static final int READ_BUFFER_SIZE = ByteBufferPool.MIN_SIZE;
+    private static final int QUEUE_CAPACITY = Integer.getInteger("simpleci.server.queue", 4096);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("simpleci.server.maxConnections", 10000);
+    // Longest text request, upload included, a connection may buffer; the
+    // same bound as a binary frame's payload.
+    private static final int MAX_REQUEST_CHARS = WireCodec.MAX_PAYLOAD_BYTES;
+    // Suggested to peers whose request was shed; the queue drains quickly.
+    private static final long SHED_RETRY_AFTER_MILLIS = 1000;
+    private static final Metrics.Counter requestsShed = Metrics.counter("simpleci_requests_shed_total",
+            "Requests answered overloaded because every worker was busy and the queue full");
+    private static final Metrics.Counter connectionsRefused = Metrics.counter("simpleci_connections_refused_total",
+            "Connections closed on accept because too many were open");
+
+    private final String name;
+    private final MessageHandler handler;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean dead = false;
+
+    public NioServer(String name, String host, int port, MessageHandler handler) throws IOException {
+        this(name, host, port, handler, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public NioServer(String name, String host, int port, MessageHandler handler, int eventLoopThreads,
+            int workerThreads) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(InetAddress.getByName(host), port), BACKLOG);
+        serverChannel.configureBlocking(false);
+        this.eventLoops = new EventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            eventLoops[i] = new EventLoop(name + "-event-loop-" + i);
+        }
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, name + "-worker-" + count.getAndIncrement());
+                    }
+                });
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Requests waiting for a worker thread.
+     */
+    public int getQueueLength() {
+        return workers.getQueue().size();
+    }
+
+    public void start() throws IOException {
+        serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : eventLoops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        dead = true;
+        for (EventLoop loop : eventLoops) {
+            loop.selector.wakeup();
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing server channel: " + e.getMessage());
+        }
+        workers.shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections.get() >= MAX_CONNECTIONS) {
+                connectionsRefused.increment();
+                channel.close();
+                continue;
+            }
+            connections.incrementAndGet();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop loop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+            loop.adopt(channel);
+        }
+    }
+
+    /**
+     * Removes and returns the next complete request from the buffered input, or
+     * null if more input is needed. Requests are newline-terminated, except for
+     * uploads whose output can span lines and is delimited by its length:
+     * "results:<commitId>[:<status>]:<length>:<output>" and
+     * "resultchunk:<commitId>:<offset>:<length>:<data>". Throws
+     * ProtocolException if an upload declares a length over MAX_REQUEST_CHARS.
+     */
+    static String nextMessage(StringBuilder pending) throws ProtocolException {
+        while (true) {
+            int end = uploadEnd(pending);
+            if (end == -1) {
+                end = pending.indexOf("\n");
+                if (end == -1) {
+                    return null;
+                }
+            } else if (end > pending.length()) {
+                return null;
+            }
+            String message = pending.substring(0, end);
+            pending.delete(0, end < pending.length() && pending.charAt(end) == '\n' ? end + 1 : end);
+            if (!message.isBlank()) {
+                return message;
+            }
+        }
+    }
+
+    // Returns where the upload at the head of the input ends (possibly past
+    // what has arrived so far), or -1 if the input does not start with one.
+    private static int uploadEnd(StringBuilder pending) throws ProtocolException {
+        int start = 0;
+        if (pending.length() > 0 && pending.charAt(0) == CommunicationConstants.REQUEST_ID_PREFIX.charAt(0)) {
+            int space = pending.indexOf(" ");
+            if (space == -1) {
+                return -1;
+            }
+            start = space + 1;
+        }
+        // Header fields skipped before the length: the commit ID, and for
+        // chunks also the offset. A results status is skipped as non-numeric.
+        int skipFields;
+        if (startsWithIgnoreCase(pending, start, CommunicationConstants.RESULTS_CMD + ":")) {
+            start += CommunicationConstants.RESULTS_CMD.length() + 1;
+            skipFields = 1;
+        } else if (startsWithIgnoreCase(pending, start, CommunicationConstants.RESULT_CHUNK_CMD + ":")) {
+            start += CommunicationConstants.RESULT_CHUNK_CMD.length() + 1;
+            skipFields = 2;
+        } else {
+            return -1;
+        }
+        int fieldStart = start;
+        int fieldIndex = 0;
+        for (int i = start; i < pending.length(); i++) {
+            char c = pending.charAt(i);
+            if (c == '\n') {
+                return -1;
+            } else if (c != ':') {
+                continue;
+            }
+            String field = pending.substring(fieldStart, i);
+            if (fieldIndex >= skipFields && !field.isEmpty() && field.chars().allMatch(Character::isDigit)) {
+                // Too many digits would overflow even a long.
+                long end = field.length() > 10 ? Long.MAX_VALUE : i + 1 + Long.parseLong(field);
+                if (end > MAX_REQUEST_CHARS) {
+                    throw new ProtocolException("Upload length " + field + " exceeds " + MAX_REQUEST_CHARS);
+                }
+                return (int) end;
+            }
+            if (field.contains(" ")) {
+                return -1;
+            }
+            fieldIndex++;
+            fieldStart = i + 1;
+        }
+        return -1;
+    }
+
+    private static boolean startsWithIgnoreCase(StringBuilder pending, int start, String prefix) {
+        return pending.length() - start >= prefix.length()
+                && pending.substring(start, start + prefix.length()).equalsIgnoreCase(prefix);
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String threadName) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, threadName);
+        }
+
+        // Hands a freshly accepted channel to this loop.
+        void adopt(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    logger.warning("Error registering connection: " + e.getMessage());
+                    connections.decrementAndGet();
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!dead) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A bug tripped by one peer must not take down every connection on this loop.
+                            logger.log(Level.WARNING, name + " error on connection, closing it", e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!dead) {
+                        logger.severe(name + " event loop error: " + e.getMessage());
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Per-connection state. Only touched by its event loop, except for send().
+    // The first byte a peer sends decides whether it speaks binary frames or
+    // text lines for the rest of the connection.
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private ByteBuffer readBuffer = ByteBufferPool.acquire(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private SelectionKey key;
+        private boolean inputClosed = false;
+        private Boolean binary;
+
+        // Text mode only.
+        private CharBuffer decoded;
+        private CharsetDecoder decoder;
+        private StringBuilder pending;
+        private final Queue<String> untagged = new ArrayDeque<>();
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int numRead = channel.read(readBuffer);
+            if (numRead == -1) {
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            if (binary == null && readBuffer.position() > 0) {
+                binary = readBuffer.get(0) == WireCodec.MAGIC;
+                if (!binary) {
+                    decoded = CharBuffer.allocate(READ_BUFFER_SIZE);
+                    decoder = StandardCharsets.UTF_8.newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                    pending = new StringBuilder();
+                }
+            }
+            if (binary == null) {
+                return;
+            }
+            readBuffer.flip();
+            if (binary) {
+                readFrames();
+            } else {
+                readLines();
+            }
+        }
+
+        // Dispatches every complete frame and keeps a partial one buffered,
+        // growing the buffer if the frame will not fit.
+        private void readFrames() throws IOException {
+            int length;
+            while ((length = WireCodec.frameLength(readBuffer)) != -1 && readBuffer.remaining() >= length) {
+                long requestId = WireCodec.requestId(readBuffer);
+                byte code = WireCodec.code(readBuffer);
+                String payload = WireCodec.payload(readBuffer);
+                readBuffer.position(readBuffer.position() + length);
+                String command = WireCodec.command(code);
+                if (code == WireCodec.TEXT || command == null) {
+                    dispatch(requestId, null, payload == null ? "" : payload);
+                } else {
+                    dispatch(requestId, command, payload);
+                }
+            }
+            if (length > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBufferPool.acquire(length);
+                larger.put(readBuffer);
+                ByteBufferPool.release(readBuffer);
+                readBuffer = larger;
+            } else {
+                readBuffer.compact();
+            }
+        }
+
+        private void readLines() throws ProtocolException {
+            decoder.decode(readBuffer, decoded, false);
+            readBuffer.compact();
+            decoded.flip();
+            pending.append(decoded);
+            decoded.clear();
+            String message;
+            while ((message = nextMessage(pending)) != null) {
+                String requestId = Helpers.requestId(message);
+                String request = Helpers.stripRequestId(message);
+                if (requestId == null) {
+                    dispatchUntagged(request);
+                    continue;
+                }
+                outstanding.incrementAndGet();
+                try {
+                    workers.execute(() -> send(StandardCharsets.UTF_8.encode(
+                            Helpers.tagResponse(requestId, handle(null, request)) + "\n")));
+                } catch (RejectedExecutionException e) {
+                    send(StandardCharsets.UTF_8.encode(Helpers.tagResponse(requestId, shed()) + "\n"));
+                }
+            }
+            // Bounds what a peer can make this connection buffer: every request
+            // that fits has been taken off, so the rest can never complete.
+            if (pending.length() > MAX_REQUEST_CHARS) {
+                throw new ProtocolException("Request longer than " + MAX_REQUEST_CHARS + " characters");
+            }
+        }
+
+        // A peer that does not tag its lines matches responses by order, so
+        // its requests are handled one at a time by whichever worker picked up
+        // the first; tagged ones may complete in any order.
+        private void dispatchUntagged(String request) {
+            outstanding.incrementAndGet();
+            synchronized (untagged) {
+                untagged.add(request);
+                if (untagged.size() > 1) {
+                    return;
+                }
+            }
+            try {
+                workers.execute(this::answerUntagged);
+            } catch (RejectedExecutionException e) {
+                // Nothing else was queued, and only the event loop adds.
+                synchronized (untagged) {
+                    untagged.poll();
+                }
+                send(StandardCharsets.UTF_8.encode(shed() + "\n"));
+            }
+        }
+
+        // Answers queued untagged requests in order; the head is the one being
+        // handled, so later ones queue behind it rather than start a worker.
+        private void answerUntagged() {
+            String request;
+            synchronized (untagged) {
+                request = untagged.peek();
+            }
+            while (request != null) {
+                send(StandardCharsets.UTF_8.encode(handle(null, request) + "\n"));
+                synchronized (untagged) {
+                    untagged.poll();
+                    request = untagged.peek();
+                }
+            }
+        }
+
+        // A frame's command is known up front; TEXT frames carry a whole line.
+        private void dispatch(long requestId, String command, String arg) {
+            outstanding.incrementAndGet();
+            try {
+                workers.execute(() -> send(WireCodec.encodeResponse(requestId, handle(command, arg))));
+            } catch (RejectedExecutionException e) {
+                send(WireCodec.encodeResponse(requestId, shed()));
+            }
+        }
+
+        private String shed() {
+            requestsShed.increment();
+            return CommunicationConstants.OVERLOADED_RESPONSE + ":" + SHED_RETRY_AFTER_MILLIS;
+        }
+
+        private String handle(String command, String arg) {
+            try {
+                return command == null ? handler.handle(arg) : handler.handle(command, arg);
+            } catch (Exception e) {
+                logger.warning(name + " error handling request: " + e.getMessage());
+                return CommunicationConstants.ERROR_RESPONSE + ": " + e.getMessage();
+            }
+        }
+
+        // Queues a response; may be called from any thread.
+        private void send(ByteBuffer response) {
+            writes.add(response);
+            outstanding.decrementAndGet();
+            loop.execute(() -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = writes.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                ByteBufferPool.release(writes.poll());
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        // Closes a half-closed connection once every request has been answered.
+        private void closeIfDone() {
+            if (inputClosed && outstanding.get() == 0 && writes.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel.isOpen()) {
+                connections.decrementAndGet();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (readBuffer != null) {
+                ByteBufferPool.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.simpleci.common;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * The binary frame format spoken between the dispatcher, runners and
+ * observers. Every frame is a 16-byte header followed by the payload:
+ *
+ *   byte  magic (0xC0, a byte that never occurs in UTF-8 text)
+ *   byte  version (1)
+ *   byte  command code, see COMMANDS; RESPONSE for answers, TEXT for a
+ *         request without a code whose payload is the whole text line
+ *   byte  flags, reserved
+ *   long  request ID, echoed in the response
+ *   int   payload length
+ *
+ * A request's payload is what follows "<command>:" in the text protocol, so
+ * handlers see the same arguments either way. Servers tell the two apart by
+ * the first byte of a connection and keep answering text lines for older
+ * peers.
+ *
+ * Frames are parsed in place: the header is read with absolute gets from the
+ * connection's buffer and a partial frame stays there until the rest arrives.
+ * Encoded frames come from ByteBufferPool; whoever writes one out may release
+ * it to the pool afterwards.
+ */
+public final class WireCodec {
+    public static final byte MAGIC = (byte) 0xC0;
+    public static final byte VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    public static final int MAX_PAYLOAD_BYTES = 64 * 1024 * 1024;
+
+    public static final byte RESPONSE = 0;
+    public static final byte TEXT = (byte) 0xFF;
+
+    // Command codes are the index in this array. Only ever append to it, as
+    // codes are part of the wire format.
+    private static final String[] COMMANDS = {
+        null,
+        CommunicationConstants.STATUS_CMD,
+        CommunicationConstants.REGISTER_CMD,
+        CommunicationConstants.COMMIT_CMD,
+        CommunicationConstants.DISPATCH_CMD,
+        CommunicationConstants.RESULTS_CMD,
+        CommunicationConstants.RUNT_TEST_CMD,
+        CommunicationConstants.PING_CMD,
+        CommunicationConstants.HEARTBEAT_CMD,
+        CommunicationConstants.METRICS_CMD,
+        CommunicationConstants.STATS_CMD,
+        CommunicationConstants.RESULT_CHUNK_CMD,
+        CommunicationConstants.RESULT_END_CMD,
+        CommunicationConstants.TAIL_CMD,
+        CommunicationConstants.RESULT_CMD,
+        CommunicationConstants.HISTORY_CMD,
+        CommunicationConstants.TOPOLOGY_CMD,
+        CommunicationConstants.FORWARD_CMD,
+        CommunicationConstants.CANCEL_CMD,
+    };
+    private static final Map<String, Byte> CODES = new HashMap<>();
+    // Encodes straight into the frame; unpaired surrogates become '?' as with
+    // String.getBytes.
+    private static final ThreadLocal<CharsetEncoder> ENCODERS = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    static {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            CODES.put(COMMANDS[i], (byte) i);
+        }
+    }
+
+    private WireCodec() {
+    }
+
+    /**
+     * Returns the command with the given code, or null for RESPONSE, TEXT and
+     * codes this version does not know.
+     */
+    public static String command(byte code) {
+        int index = code & 0xFF;
+        return index < COMMANDS.length ? COMMANDS[index] : null;
+    }
+
+    /**
+     * Encodes a request given as a text protocol line.
+     */
+    public static ByteBuffer encodeRequest(long requestId, String request) {
+        int colon = request.indexOf(':');
+        Byte code = CODES.get(colon == -1 ? request : request.substring(0, colon));
+        if (code == null) {
+            return encode(TEXT, requestId, request, 0);
+        }
+        return encode(code, requestId, request, colon == -1 ? request.length() : colon + 1);
+    }
+
+    public static ByteBuffer encodeResponse(long requestId, String response) {
+        return encode(RESPONSE, requestId, response, 0);
+    }
+
+    // Encodes the text from the given index on as the payload.
+    private static ByteBuffer encode(byte code, long requestId, String text, int from) {
+        int length = utf8Length(text, from);
+        ByteBuffer frame = ByteBufferPool.acquire(HEADER_BYTES + length);
+        frame.put(MAGIC).put(VERSION).put(code).put((byte) 0).putLong(requestId).putInt(length);
+        CharsetEncoder encoder = ENCODERS.get().reset();
+        encoder.encode(CharBuffer.wrap(text, from, text.length()), frame, true);
+        encoder.flush(frame);
+        return frame.flip();
+    }
+
+    // Number of bytes the encoder writes for the text from the given index on.
+    private static int utf8Length(String text, int from) {
+        int length = 0;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the length, header included, of the frame starting at the
+     * buffer's position, or -1 if its header has not fully arrived. The frame
+     * is complete once that many bytes remain.
+     */
+    public static int frameLength(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < HEADER_BYTES) {
+            return -1;
+        }
+        return HEADER_BYTES + checkHeader(buffer, buffer.position());
+    }
+
+    // Validates the header at the given index and returns the payload length.
+    private static int checkHeader(ByteBuffer buffer, int at) throws ProtocolException {
+        if (buffer.get(at) != MAGIC) {
+            throw new ProtocolException("Not a frame");
+        }
+        if (buffer.get(at + 1) != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + buffer.get(at + 1));
+        }
+        int length = buffer.getInt(at + 12);
+        if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+            throw new ProtocolException("Bad frame length " + length);
+        }
+        return length;
+    }
+
+    // Header fields of the frame starting at the buffer's position.
+
+    public static byte code(ByteBuffer frame) {
+        return frame.get(frame.position() + 2);
+    }
+
+    public static long requestId(ByteBuffer frame) {
+        return frame.getLong(frame.position() + 4);
+    }
+
+    public static int payloadLength(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 12);
+    }
+
+    /**
+     * Decodes the payload of the complete frame at the buffer's position, or
+     * returns null if it is empty.
+     */
+    public static String payload(ByteBuffer frame) {
+        int length = payloadLength(frame);
+        if (length == 0) {
+            return null;
+        }
+        int start = frame.position() + HEADER_BYTES;
+        if (frame.hasArray()) {
+            return new String(frame.array(), frame.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        frame.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads one frame from a blocking stream into the given header buffer and
+     * returns its payload, or throws EOFException at the end of the stream.
+     * The header fields can then be read from the header buffer.
+     */
+    public static String read(DataInputStream in, ByteBuffer header) throws IOException {
+        in.readFully(header.array(), header.arrayOffset(), HEADER_BYTES);
+        header.clear();
+        byte[] payload = new byte[checkHeader(header, 0)];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,270 @@
+package com.simpleci.helpers;
+
+import com.simpleci.common.ByteBufferPool;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.WireCodec;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Keeps long-lived connections to dispatchers and runners and pipelines
+ * requests over them. Every request is tagged with a request ID so several
+ * requests can be in flight on one connection; responses are matched back to
+ * their futures by that ID, in whatever order the peer answers.
+ *
+ * Requests are sent as {@link WireCodec} frames, or as tagged text lines with
+ * -Dsimpleci.wire=text for peers that predate the binary format.
+ */
+public class ConnectionPool implements Closeable {
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final boolean TEXT_WIRE = "text".equalsIgnoreCase(System.getProperty("simpleci.wire"));
+
+    // Configuration
+    private final int maxConnectionsPerEndpoint;
+    private final int maxInFlightPerConnection;
+    private final long idleTimeoutMillis;
+    private final long requestTimeoutMillis;
+
+    // Internal state
+    private volatile boolean closed = false;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<String, List<Connection>> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "connection-pool-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ConnectionPool() {
+        this(4, 64, 60000, 10000);
+    }
+
+    public ConnectionPool(int maxConnectionsPerEndpoint, int maxInFlightPerConnection, long idleTimeoutMillis,
+            long requestTimeoutMillis) {
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        long reapInterval = Math.max(1000, idleTimeoutMillis / 2);
+        reaper.scheduleAtFixedRate(this::closeIdleConnections, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the request to host:port over a pooled connection. The returned
+     * future completes with the peer's response line, or exceptionally if the
+     * connection breaks or the request times out.
+     */
+    public CompletableFuture<String> send(String host, int port, String request) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Connection pool is closed"));
+        }
+        try {
+            return acquire(host, port).send(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private Connection acquire(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        List<Connection> connections = endpoints.computeIfAbsent(key, k -> new ArrayList<>());
+        synchronized (connections) {
+            Connection leastLoaded = leastLoaded(connections);
+            if (leastLoaded != null && (leastLoaded.inFlight.size() < maxInFlightPerConnection
+                    || connections.size() >= maxConnectionsPerEndpoint)) {
+                // Marked used under the lock so the reaper cannot take it as idle before the request is sent.
+                leastLoaded.lastUsed = System.currentTimeMillis();
+                return leastLoaded;
+            }
+        }
+        // Connect without the lock, so a slow endpoint does not hold up callers
+        // that can use an open connection. Callers racing to open one may each
+        // connect; those that find the endpoint full by then use what is there.
+        Connection connection = new Connection(key, host, port);
+        synchronized (connections) {
+            Connection leastLoaded = connections.size() >= maxConnectionsPerEndpoint ? leastLoaded(connections) : null;
+            if (leastLoaded == null && !closed) {
+                connections.add(connection);
+                return connection;
+            }
+            connection.close(new IOException("Not needed"));
+            if (leastLoaded == null) {
+                throw new IOException("Connection pool is closed");
+            }
+            leastLoaded.lastUsed = System.currentTimeMillis();
+            return leastLoaded;
+        }
+    }
+
+    // Returns the open connection with the fewest requests in flight, or null.
+    // Called with the endpoint's lock held.
+    private Connection leastLoaded(List<Connection> connections) {
+        Connection leastLoaded = null;
+        for (Connection connection : connections) {
+            if (connection.closing || connection.closed.get()) {
+                continue;
+            }
+            if (leastLoaded == null || connection.inFlight.size() < leastLoaded.inFlight.size()) {
+                leastLoaded = connection;
+            }
+        }
+        return leastLoaded;
+    }
+
+    private void remove(Connection connection) {
+        List<Connection> connections = endpoints.get(connection.key);
+        if (connections != null) {
+            synchronized (connections) {
+                connections.remove(connection);
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (List<Connection> connections : endpoints.values()) {
+            List<Connection> idle = new ArrayList<>();
+            synchronized (connections) {
+                for (Connection connection : connections) {
+                    if (connection.inFlight.isEmpty() && now - connection.lastUsed > idleTimeoutMillis) {
+                        connection.closing = true;
+                        idle.add(connection);
+                    }
+                }
+            }
+            for (Connection connection : idle) {
+                logger.fine("Closing idle connection to " + connection.key);
+                connection.close(new IOException("Idle connection closed"));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reaper.shutdown();
+        for (List<Connection> connections : endpoints.values()) {
+            List<Connection> all;
+            synchronized (connections) {
+                all = new ArrayList<>(connections);
+            }
+            for (Connection connection : all) {
+                connection.close(new IOException("Connection pool is closed"));
+            }
+        }
+        endpoints.clear();
+    }
+
+    // A single pipelined connection with its own reader thread.
+    private class Connection {
+        private final String key;
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final Map<Long, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile long lastUsed = System.currentTimeMillis();
+        // Set under the endpoint's lock once the reaper picks it as idle, so
+        // acquire passes it over while it is being closed.
+        private boolean closing = false;
+
+        Connection(String key, String host, int port) throws IOException {
+            this.key = key;
+            this.socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new BufferedInputStream(socket.getInputStream());
+            Thread reader = new Thread(this::readResponses, "connection-pool-reader-" + key);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        CompletableFuture<String> send(String request) {
+            long requestId = nextRequestId.incrementAndGet();
+            CompletableFuture<String> future = new CompletableFuture<>();
+            inFlight.put(requestId, future);
+            lastUsed = System.currentTimeMillis();
+            try {
+                ByteBuffer frame = TEXT_WIRE ? ByteBuffer.wrap((CommunicationConstants.REQUEST_ID_PREFIX + requestId
+                        + " " + request + "\n").getBytes(StandardCharsets.UTF_8))
+                        : WireCodec.encodeRequest(requestId, request);
+                synchronized (out) {
+                    out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    out.flush();
+                }
+                ByteBufferPool.release(frame);
+            } catch (IOException e) {
+                close(e);
+                return future;
+            }
+            return future.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .whenComplete((response, error) -> inFlight.remove(requestId));
+        }
+
+        private void readResponses() {
+            try {
+                if (TEXT_WIRE) {
+                    readTextResponses();
+                    return;
+                }
+                DataInputStream frames = new DataInputStream(in);
+                ByteBuffer header = ByteBuffer.allocate(WireCodec.HEADER_BYTES);
+                while (true) {
+                    String response = WireCodec.read(frames, header);
+                    CompletableFuture<String> future = inFlight.remove(WireCodec.requestId(header));
+                    if (future != null) {
+                        future.complete(response.trim());
+                    }
+                    lastUsed = System.currentTimeMillis();
+                }
+            } catch (EOFException e) {
+                close(new EOFException("Connection closed by " + key));
+            } catch (IOException | NumberFormatException e) {
+                close(e);
+            }
+        }
+
+        private void readTextResponses() throws IOException {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = lines.readLine()) != null) {
+                String requestId = Helpers.requestId(line);
+                if (requestId == null) {
+                    logger.warning("Dropping untagged response from " + key + ": " + line);
+                    continue;
+                }
+                CompletableFuture<String> future = inFlight.remove(Long.parseLong(requestId));
+                if (future != null) {
+                    future.complete(Helpers.stripRequestId(line).trim());
+                }
+                lastUsed = System.currentTimeMillis();
+            }
+            throw new EOFException();
+        }
+
+        void close(Exception cause) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            for (CompletableFuture<String> future : inFlight.values()) {
+                future.completeExceptionally(cause);
+            }
+            inFlight.clear();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.simpleci.helpers;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.HashRing;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A view of the dispatchers that share the work, each named "host:port". It
+ * starts from seed addresses, learns the live members from any dispatcher's
+ * answer to topology, and routes each commit to the dispatcher owning its
+ * branch on the {@link HashRing}. A member that stops answering can be dropped
+ * until the next refresh.
+ *
+ * A single dispatcher is a cluster of one, so clients need no separate path
+ * for it.
+ */
+public class DispatcherCluster {
+    private static final Pattern MEMBER = Pattern.compile("[^\\s,:]+:\\d+");
+
+    private final List<String> seeds;
+    private volatile HashRing ring;
+
+    public DispatcherCluster(Collection<String> seeds) {
+        this.seeds = new ArrayList<>(seeds);
+        this.ring = new HashRing(seeds);
+    }
+
+    /**
+     * Parses a comma-separated list of host:port addresses.
+     */
+    public static DispatcherCluster parse(String addresses) {
+        return new DispatcherCluster(parseMembers(addresses));
+    }
+
+    private static List<String> parseMembers(String addresses) {
+        List<String> members = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            if (!MEMBER.matcher(address.trim()).matches()) {
+                throw new IllegalArgumentException("Not a host:port address: " + address);
+            }
+            members.add(address.trim());
+        }
+        return members;
+    }
+
+    /**
+     * The live members, sorted.
+     */
+    public List<String> members() {
+        return ring.getMembers();
+    }
+
+    /**
+     * Returns the member whose partition the commit is in, or null if no
+     * member is live.
+     */
+    public String owner(Commit commit) {
+        return ring.owner(HashRing.key(commit));
+    }
+
+    /**
+     * Asks the known members, then the seeds, for the live members and
+     * returns true once one answers. Dispatchers that do not know topology
+     * are skipped.
+     */
+    public boolean refresh() {
+        Set<String> candidates = new LinkedHashSet<>(ring.getMembers());
+        candidates.addAll(seeds);
+        for (String candidate : candidates) {
+            String response = Helpers.communicate(host(candidate), port(candidate),
+                    CommunicationConstants.TOPOLOGY_CMD);
+            if (response == null || response.isEmpty()) {
+                continue;
+            }
+            try {
+                ring = new HashRing(parseMembers(response));
+                return true;
+            } catch (IllegalArgumentException e) {
+                // Answered by a dispatcher predating clusters.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the live members, e.g. with what a dispatcher's own peer
+     * checks found.
+     */
+    public void update(Collection<String> members) {
+        ring = new HashRing(members);
+    }
+
+    /**
+     * Stops routing to a member until a refresh lists it again. The last
+     * member is kept, as there is nowhere else to go.
+     */
+    public synchronized void markDown(String member) {
+        List<String> members = new ArrayList<>(ring.getMembers());
+        if (members.size() > 1 && members.remove(member)) {
+            ring = new HashRing(members);
+        }
+    }
+
+    public static String host(String member) {
+        return member.substring(0, member.lastIndexOf(':'));
+    }
+
+    public static int port(String member) {
+        return Integer.parseInt(member.substring(member.lastIndexOf(':') + 1));
+    }
+
+    @Override
+    public String toString() {
+        return ring.toString();
+    }
+}
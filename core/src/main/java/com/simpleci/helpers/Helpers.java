@@ -0,0 +1,68 @@
+package com.simpleci.helpers;
+
+import com.simpleci.common.CommunicationConstants;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+public class Helpers {
+    private static final Logger logger = Logger.getLogger(Helpers.class.getName());
+    private static final ConnectionPool connectionPool = new ConnectionPool();
+
+    /**
+     * Sends the request to the given host and port over a pooled connection and
+     * returns the response, or null if the peer could not be reached.
+     */
+    public static String communicate(String host, int port, String request) {
+        try {
+            return communicateAsync(host, port, request).get();
+        } catch (ExecutionException e) {
+            logger.warning("Error communicating with " + host + ":" + port + " - " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Sends the request to the given host and port over a pooled connection
+     * without waiting for the response.
+     */
+    public static CompletableFuture<String> communicateAsync(String host, int port, String request) {
+        return connectionPool.send(host, port, request);
+    }
+
+    /**
+     * Returns the request ID of a tagged line ("#<id> <message>"), or null if the
+     * line is untagged.
+     */
+    public static String requestId(String line) {
+        if (!line.startsWith(CommunicationConstants.REQUEST_ID_PREFIX)) {
+            return null;
+        }
+        int space = line.indexOf(' ');
+        return line.substring(CommunicationConstants.REQUEST_ID_PREFIX.length(), space == -1 ? line.length() : space);
+    }
+
+    /**
+     * Returns the line with its request ID tag, if any, removed.
+     */
+    public static String stripRequestId(String line) {
+        if (!line.startsWith(CommunicationConstants.REQUEST_ID_PREFIX)) {
+            return line;
+        }
+        int space = line.indexOf(' ');
+        return space == -1 ? "" : line.substring(space + 1);
+    }
+
+    /**
+     * Tags a response with the request ID it answers so pipelined clients can
+     * match it. Untagged requests get untagged responses.
+     */
+    public static String tagResponse(String requestId, String response) {
+        if (requestId == null) {
+            return response;
+        }
+        return CommunicationConstants.REQUEST_ID_PREFIX + requestId + " " + response;
+    }
+}
@@ -0,0 +1,86 @@
+package com.simpleci.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+    private static final List<String> MEMBERS = Arrays.asList("host-a:8888", "host-b:8888", "host-c:8888");
+    private static final int KEYS = 10000;
+
+    private static String key(int i) {
+        return "repo" + (i % 50) + ":branch-" + i;
+    }
+
+    @Test
+    void emptyRingOwnsNothing() {
+        assertNull(new HashRing(Collections.emptyList()).owner("repo:main"));
+    }
+
+    @Test
+    void ownershipDoesNotDependOnMemberOrder() {
+        HashRing ring = new HashRing(MEMBERS);
+        List<String> reversed = new ArrayList<>(MEMBERS);
+        Collections.reverse(reversed);
+        HashRing other = new HashRing(reversed);
+        assertEquals(ring.getMembers(), other.getMembers());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.owner(key(i)), other.owner(key(i)));
+        }
+    }
+
+    @Test
+    void keysSpreadOverAllMembers() {
+        HashRing ring = new HashRing(MEMBERS);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.owner(key(i)), 1, Integer::sum);
+        }
+        assertEquals(new HashSet<>(MEMBERS), owned.keySet());
+        for (int count : owned.values()) {
+            // A third each, give or take what 128 points per member allow.
+            assertTrue(count > KEYS / 5 && count < KEYS / 2, owned.toString());
+        }
+    }
+
+    @Test
+    void addingAMemberOnlyMovesKeysToIt() {
+        HashRing before = new HashRing(MEMBERS);
+        List<String> grown = new ArrayList<>(MEMBERS);
+        grown.add("host-d:8888");
+        HashRing after = new HashRing(grown);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String owner = after.owner(key(i));
+            if (!owner.equals(before.owner(key(i)))) {
+                assertEquals("host-d:8888", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < KEYS / 2, "moved " + moved);
+    }
+
+    @Test
+    void removingAMemberOnlyMovesItsKeys() {
+        HashRing before = new HashRing(MEMBERS);
+        HashRing after = new HashRing(MEMBERS.subList(0, 2));
+        for (int i = 0; i < KEYS; i++) {
+            String owner = before.owner(key(i));
+            if (!owner.equals("host-c:8888")) {
+                assertEquals(owner, after.owner(key(i)));
+            } else {
+                assertNotEquals("host-c:8888", after.owner(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void commitsOfABranchShareAnOwner() {
+        HashRing ring = new HashRing(MEMBERS);
+        Commit first = new Commit("repo", "main", "a1");
+        Commit second = new Commit("repo", "main", "b2");
+        assertEquals(HashRing.key(first), HashRing.key(second));
+        assertEquals(ring.owner(HashRing.key(first)), ring.owner(HashRing.key(second)));
+    }
+}
@@ -0,0 +1,101 @@
+package com.simpleci.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+class NioServerTest {
+    private NioServer server;
+
+    // Answers "sleep:<millis>" after that long, anything else at once.
+    @BeforeEach
+    void start() throws IOException {
+        server = new NioServer("test", "localhost", 0, message -> {
+            if (message.startsWith("sleep:")) {
+                try {
+                    Thread.sleep(Long.parseLong(message.substring(6)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "done " + message;
+        }, 1, 4);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    @Test
+    void untaggedLinesAreAnsweredInOrder() throws IOException {
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            requests.add("sleep:" + (i % 2 == 0 ? 50 - 2 * i : 0));
+        }
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(10000);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(String.join("\n", requests) + "\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            for (String request : requests) {
+                assertEquals("done " + request, in.readLine());
+            }
+        }
+    }
+
+    @Test
+    void taggedLinesMayOvertakeSlowerOnes() throws IOException {
+        String tag = CommunicationConstants.REQUEST_ID_PREFIX;
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(10000);
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(tag + "1 sleep:500\n" + tag + "2 sleep:0\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            assertEquals(tag + "2 done sleep:0", in.readLine());
+            assertEquals(tag + "1 done sleep:500", in.readLine());
+        }
+    }
+
+    @Test
+    void uploadLengthOverTheLimitIsRejected() {
+        for (String line : new String[] {"results:x:99999999999:", "results:x:2147483647:", "resultchunk:x:0:"
+                + Long.MAX_VALUE + "0:", "#7 results:x:PASS:" + (WireCodec.MAX_PAYLOAD_BYTES + 1) + ":"}) {
+            assertThrows(ProtocolException.class, () -> NioServer.nextMessage(new StringBuilder(line)), line);
+        }
+    }
+
+    @Test
+    void uploadIsSplitByItsLength() throws IOException {
+        StringBuilder pending = new StringBuilder("results:x:PASS:5:a\nb\ncping\n");
+        assertEquals("results:x:PASS:5:a\nb\nc", NioServer.nextMessage(pending));
+        assertEquals("ping", NioServer.nextMessage(pending));
+        assertNull(NioServer.nextMessage(pending));
+    }
+
+    @Test
+    void malformedUploadClosesOnlyItsConnection() throws IOException {
+        // The server has one event loop, so both connections share it.
+        try (Socket other = new Socket("localhost", server.getPort());
+                Socket bad = new Socket("localhost", server.getPort())) {
+            other.setSoTimeout(10000);
+            bad.setSoTimeout(10000);
+            bad.getOutputStream().write("results:x:2147483647:\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(-1, bad.getInputStream().read());
+
+            other.getOutputStream().write("ping\n".getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(other.getInputStream(),
+                    StandardCharsets.UTF_8));
+            assertEquals("done ping", in.readLine());
+        }
+    }
+}
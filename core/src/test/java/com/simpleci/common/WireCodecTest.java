@@ -0,0 +1,124 @@
+package com.simpleci.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class WireCodecTest {
+    @Test
+    void knownCommandIsSentAsItsCode() throws Exception {
+        ByteBuffer frame = WireCodec.encodeRequest(42, "dispatch:repo/main/abc");
+        assertEquals(frame.remaining(), WireCodec.frameLength(frame));
+        assertEquals(CommunicationConstants.DISPATCH_CMD, WireCodec.command(WireCodec.code(frame)));
+        assertEquals(42, WireCodec.requestId(frame));
+        assertEquals("repo/main/abc", WireCodec.payload(frame));
+    }
+
+    @Test
+    void commandWithoutArgumentHasNoPayload() throws Exception {
+        ByteBuffer frame = WireCodec.encodeRequest(1, CommunicationConstants.STATUS_CMD);
+        assertEquals(WireCodec.HEADER_BYTES, WireCodec.frameLength(frame));
+        assertEquals(CommunicationConstants.STATUS_CMD, WireCodec.command(WireCodec.code(frame)));
+        assertNull(WireCodec.payload(frame));
+    }
+
+    @Test
+    void unknownCommandIsSentAsText() {
+        ByteBuffer frame = WireCodec.encodeRequest(7, "nosuchcommand:a:b");
+        assertEquals(WireCodec.TEXT, WireCodec.code(frame));
+        assertNull(WireCodec.command(WireCodec.code(frame)));
+        assertEquals("nosuchcommand:a:b", WireCodec.payload(frame));
+    }
+
+    @Test
+    void responseKeepsMultiByteText() throws Exception {
+        String text = "PASS:ünïcødé ✓";
+        ByteBuffer frame = WireCodec.encodeResponse(-3, text);
+        assertEquals(WireCodec.RESPONSE, WireCodec.code(frame));
+        assertEquals(-3, WireCodec.requestId(frame));
+        assertEquals(text.getBytes("UTF-8").length, WireCodec.payloadLength(frame));
+        assertEquals(text, WireCodec.payload(frame));
+    }
+
+    @Test
+    void payloadLengthMatchesGetBytesForSurrogates() throws Exception {
+        String text = "a😀b\uD83Dc\uDE00";
+        ByteBuffer frame = WireCodec.encodeRequest(1, "result:" + text);
+        byte[] expected = text.getBytes("UTF-8");
+        assertEquals(expected.length, WireCodec.payloadLength(frame));
+        assertEquals(WireCodec.HEADER_BYTES + expected.length, frame.remaining());
+        assertEquals(new String(expected, "UTF-8"), WireCodec.payload(frame));
+    }
+
+    @Test
+    void releasedFrameIsReusedCleanly() throws Exception {
+        ByteBuffer first = WireCodec.encodeResponse(1, "a longer first payload");
+        ByteBufferPool.release(first);
+        ByteBuffer second = WireCodec.encodeResponse(2, "short");
+        assertEquals(WireCodec.HEADER_BYTES + 5, second.remaining());
+        assertEquals("short", WireCodec.payload(second));
+    }
+
+    @Test
+    void payloadIsReadAtTheBufferPosition() throws Exception {
+        ByteBuffer first = WireCodec.encodeResponse(1, "one");
+        ByteBuffer second = WireCodec.encodeResponse(2, "two");
+        ByteBuffer both = ByteBuffer.allocate(first.remaining() + second.remaining()).put(first).put(second).flip();
+        both.position(both.position() + WireCodec.frameLength(both));
+        assertEquals(2, WireCodec.requestId(both));
+        assertEquals("two", WireCodec.payload(both));
+    }
+
+    @Test
+    void partialFrameIsNotComplete() throws Exception {
+        ByteBuffer frame = WireCodec.encodeResponse(1, "some payload");
+        ByteBuffer header = frame.duplicate().limit(WireCodec.HEADER_BYTES - 1);
+        assertEquals(-1, WireCodec.frameLength(header));
+        ByteBuffer partial = frame.duplicate().limit(frame.limit() - 1);
+        assertTrue(WireCodec.frameLength(partial) > partial.remaining());
+    }
+
+    @Test
+    void badHeadersAreRejected() {
+        ByteBuffer text = ByteBuffer.wrap("status:0123456789abcdef\n".getBytes());
+        assertThrows(ProtocolException.class, () -> WireCodec.frameLength(text));
+        ByteBuffer version = WireCodec.encodeResponse(1, "x");
+        version.put(1, (byte) 99);
+        assertThrows(ProtocolException.class, () -> WireCodec.frameLength(version));
+        ByteBuffer length = WireCodec.encodeResponse(1, "x");
+        length.putInt(12, -1);
+        assertThrows(ProtocolException.class, () -> WireCodec.frameLength(length));
+        length.putInt(12, WireCodec.MAX_PAYLOAD_BYTES + 1);
+        assertThrows(ProtocolException.class, () -> WireCodec.frameLength(length));
+    }
+
+    @Test
+    void framesAreReadFromAStream() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer frame : new ByteBuffer[] {WireCodec.encodeRequest(5, "result:abc"),
+                WireCodec.encodeResponse(5, "PASS")}) {
+            bytes.write(frame.array(), frame.position(), frame.remaining());
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ByteBuffer header = ByteBuffer.allocate(WireCodec.HEADER_BYTES);
+        assertEquals("abc", WireCodec.read(in, header));
+        assertEquals(CommunicationConstants.RESULT_CMD, WireCodec.command(WireCodec.code(header)));
+        assertEquals("PASS", WireCodec.read(in, header));
+        assertEquals(WireCodec.RESPONSE, WireCodec.code(header));
+        assertEquals(5, WireCodec.requestId(header));
+        assertThrows(EOFException.class, () -> WireCodec.read(in, header));
+    }
+
+    @Test
+    void commandCodesAreStable() {
+        // Codes are part of the wire format; a reordered table breaks older peers.
+        assertEquals(CommunicationConstants.STATUS_CMD, WireCodec.command((byte) 1));
+        assertEquals(CommunicationConstants.DISPATCH_CMD, WireCodec.command((byte) 4));
+        assertEquals(CommunicationConstants.CANCEL_CMD, WireCodec.command((byte) 18));
+        assertNull(WireCodec.command(WireCodec.RESPONSE));
+        assertNull(WireCodec.command(WireCodec.TEXT));
+    }
+}
@@ -0,0 +1,100 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Sends commits where their checkout is cheap and there is room to run them.
+ *
+ * Each runner remembers the branches of the last HISTORY commits it was sent.
+ * A runner whose last commit was on the same branch only has to fetch the
+ * commits since; one that tested the branch further back has a larger delta;
+ * one that tested only the repository still has its objects and build caches.
+ * Warmth is weighed against room: the share of slots free, counting what the
+ * runner reported busy as well as what this dispatcher assigned since, and the
+ * load per slot. Ties go to the first candidate, keeping the round-robin order.
+ */
+class AffinityPlacement implements PlacementPolicy {
+    private static final int HISTORY = 8;
+    // A warm runner wins unless it is much busier than a cold one.
+    private static final double LOCALITY_WEIGHT = 2;
+    private static final double FREE_WEIGHT = 1;
+    private static final double LOAD_WEIGHT = 1;
+    // How warm a runner that only tested the repository is, relative to one
+    // that tested the branch. Kept low so that, with a single repository, an
+    // idle runner still beats a busy one.
+    private static final double REPO_LOCALITY = 0.25;
+    // Load per slot above which a runner counts as saturated.
+    private static final double MAX_LOAD_PER_SLOT = 2;
+
+    private final Map<TestRunnerInfo, Deque<Commit>> recent = new HashMap<>();
+
+    @Override
+    public TestRunnerInfo choose(Commit commit, List<TestRunnerInfo> candidates,
+            ToIntFunction<TestRunnerInfo> assignedSlots) {
+        TestRunnerInfo best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (TestRunnerInfo runner : candidates) {
+            if (!PlacementPolicy.canTest(runner, commit)) {
+                continue;
+            }
+            double score = LOCALITY_WEIGHT * locality(runner, commit)
+                    + FREE_WEIGHT * freeShare(runner, assignedSlots.applyAsInt(runner))
+                    - LOAD_WEIGHT * loadShare(runner);
+            if (score > bestScore) {
+                best = runner;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void assigned(Commit commit, TestRunnerInfo runner) {
+        Deque<Commit> commits = recent.computeIfAbsent(runner, r -> new ArrayDeque<>());
+        commits.addFirst(commit);
+        if (commits.size() > HISTORY) {
+            commits.removeLast();
+        }
+    }
+
+    @Override
+    public void removed(TestRunnerInfo runner) {
+        recent.remove(runner);
+    }
+
+    // 1 if the runner's last commit was on the branch, less the further back
+    // the branch was seen or if only the repository was, 0 if neither was.
+    private double locality(TestRunnerInfo runner, Commit commit) {
+        Deque<Commit> commits = recent.get(runner);
+        if (commits == null) {
+            return 0;
+        }
+        double locality = 0;
+        int age = 0;
+        for (Commit previous : commits) {
+            double recency = 1 - (double) age / HISTORY;
+            if (previous.getRepo().equals(commit.getRepo())) {
+                locality = Math.max(locality,
+                        previous.getBranch().equals(commit.getBranch()) ? recency : recency * REPO_LOCALITY);
+            }
+            age++;
+        }
+        return locality;
+    }
+
+    private static double freeShare(TestRunnerInfo runner, int assigned) {
+        int slots = Math.max(1, runner.getSlots());
+        int busy = Math.max(assigned, slots - runner.getFreeSlots());
+        return Math.max(0, slots - busy) / (double) slots;
+    }
+
+    // Load per slot scaled to [0, 1]; unknown load counts as none.
+    private static double loadShare(TestRunnerInfo runner) {
+        if (runner.getLoad() < 0) {
+            return 0;
+        }
+        return Math.min(runner.getLoad() / Math.max(1, runner.getSlots()), MAX_LOAD_PER_SLOT) / MAX_LOAD_PER_SLOT;
+    }
+}
@@ -0,0 +1,44 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Decides per branch whether queued commits may be collapsed into the newest
+ * one. Configured as a comma-separated list of "repo:branch" patterns where
+ * '*' matches anything, e.g. "*:main,api:release/*".
+ */
+public class CoalescingPolicy {
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    public CoalescingPolicy(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            String trimmed = entry.trim();
+            if (!trimmed.contains(":")) {
+                trimmed = "*:" + trimmed;
+            }
+            StringBuilder regex = new StringBuilder();
+            for (String literal : trimmed.split("\\*", -1)) {
+                if (regex.length() > 0) {
+                    regex.append(".*");
+                }
+                regex.append(Pattern.quote(literal));
+            }
+            patterns.add(Pattern.compile(regex.toString()));
+        }
+    }
+
+    public boolean coalesces(Commit commit) {
+        String key = commit.getRepo() + ":" + commit.getBranch();
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(key).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
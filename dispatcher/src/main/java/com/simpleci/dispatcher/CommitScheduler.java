@@ -0,0 +1,1185 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.Metrics;
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Pairs pending commits with free runner slots. Assignment happens only when a
+ * commit arrives or a slot frees up, so no thread ever polls or sleeps, and a
+ * commit is never queued or dispatched more than once at a time.
+ *
+ * On branches the {@link CoalescingPolicy} selects, a newly arrived commit
+ * replaces the branch's queued commit in place and only the newest is tested.
+ * If it fails, the skipped commits are bisected to find the first failure.
+ *
+ * When a commit leaves the queue, the {@link ShardPlanner} may split it into
+ * shards that run in parallel. Each shard is assigned, retried and completed
+ * on its own; the commit completes once its last shard has reported. The
+ * {@link PlacementPolicy} picks the runner for each shard.
+ *
+ * With a {@link QueueLog}, every change to the queue and the assignments is
+ * logged while it is made, and {@link #recover} rebuilds them after a restart.
+ * Bisections in progress are not logged; the probe already queued still runs.
+ *
+ * A shard still running past its {@link RunDeadlines deadline} while runners
+ * sit idle is started a second time elsewhere, as task "<taskId>#<n>". The
+ * first run to report completes the shard and the other is cancelled. These
+ * speculative runs are not logged either; after a restart only the original
+ * is waited for.
+ *
+ * The queue is bounded: {@link #admit} turns away commits that would take it
+ * past maxPending commits, or one repository past maxPendingPerRepo, so a
+ * flood from one repository cannot crowd out the others. Each repository has
+ * a queue of its own, and queued commits leave in fair-share order: the next
+ * one is the head of the queue of the repository with the fewest commits
+ * being tested. Bisection probes, requeued at the head, go before all others.
+ */
+public class CommitScheduler {
+    private static final Logger logger = Logger.getLogger(CommitScheduler.class.getName());
+    private static final Metrics.Histogram queueWait = Metrics.histogram("simpleci_queue_wait_millis",
+            "Time from a commit being queued to it being split into shards");
+    private static final Metrics.Histogram dispatchLatency = Metrics.histogram("simpleci_dispatch_millis",
+            "Time for a runner to accept or refuse a shard");
+    private static final Metrics.Histogram commitRun = Metrics.histogram("simpleci_commit_run_millis",
+            "Time from a commit leaving the queue to its last shard reporting");
+    private static final Metrics.Counter rejectedShards = Metrics.counter("simpleci_rejected_shards_total",
+            "Shards a runner refused or could not be sent");
+    private static final Metrics.Counter speculativeShards = Metrics.counter("simpleci_speculative_shards_total",
+            "Second runs started for shards past their deadline");
+    private static final Metrics.Counter speculativeWins = Metrics.counter("simpleci_speculative_wins_total",
+            "Shards whose second run reported first");
+
+    // How long a runner that refused work sits out before it is offered more.
+    private static final long REJECTED_RUNNER_DELAY_MILLIS = 2000;
+    // Weight of the latest run in the average run duration.
+    private static final double DURATION_SMOOTHING = 0.2;
+    // How long a runner's heartbeats may omit a shard assigned to it before
+    // the shard is taken back. Covers a runtest still on its way.
+    private static final long ORPHANED_SHARD_MILLIS = 10000;
+    // Most shards split off queued commits while looking for one a free
+    // runner can take, e.g. when only runners of other repositories are free.
+    private static final int MAX_READY_SHARDS = 256;
+    // Bounds of the wait suggested to senders turned away by admit().
+    private static final long MIN_RETRY_AFTER_MILLIS = 1000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 60000;
+
+    // Queue log record types. Only ever add to these, as they are on disk.
+    private static final byte QUEUED = 1;
+    private static final byte REQUEUED = 2;
+    private static final byte COALESCED = 3;
+    private static final byte SKIPPED = 4;
+    private static final byte STARTED = 5;
+    private static final byte ASSIGNED = 6;
+    private static final byte UNASSIGNED = 7;
+    private static final byte SHARD_DONE = 8;
+    private static final byte COMPLETED = 9;
+
+    private final ScheduledExecutorService timer;
+    private final CoalescingPolicy coalescingPolicy;
+    private final ShardPlanner shardPlanner;
+    private final PlacementPolicy placementPolicy;
+    private final QueueLog queueLog;
+    private final String reportTo;
+    private final int maxPending;
+    private final int maxPendingPerRepo;
+
+    // All guarded by "this".
+    // Repository -> its queued commits, in order.
+    private final Map<String, Deque<PendingEntry>> pendingCommits = new HashMap<>();
+    private int pendingTotal = 0;
+    // Queue positions across repositories. Requeued commits count down from
+    // -1, so the latest is first.
+    private long nextSequence = 0;
+    private long nextRequeueSequence = -1;
+    private final Map<String, PendingEntry> pendingById = new HashMap<>();
+    private final Map<String, PendingEntry> pendingByBranch = new HashMap<>();
+    // Repository -> commits being tested.
+    private final Map<String, Integer> runningPerRepo = new HashMap<>();
+    private final Map<String, List<Commit>> skippedCommits = new HashMap<>();
+    private final Map<String, Bisection> bisections = new HashMap<>();
+    private final Deque<Shard> readyShards = new ArrayDeque<>();
+    private final Map<String, CommitRun> runningCommits = new HashMap<>();
+    private final Set<TestRunnerInfo> availableRunners = new LinkedHashSet<>();
+    private final Set<TestRunnerInfo> registeredRunners = new HashSet<>();
+    private final Set<TestRunnerInfo> restingRunners = new HashSet<>();
+    private final Map<String, Assignment> dispatchedShards = new HashMap<>();
+    private final Map<TestRunnerInfo, Set<String>> runnerAssignments = new HashMap<>();
+    // Shard task ID -> task ID of its speculative run.
+    private final Map<String, String> speculativeRuns = new HashMap<>();
+    private final RunDeadlines deadlines = new RunDeadlines();
+    private boolean replaying = false;
+
+    // Statistics, also guarded by "this".
+    private double averageRunMillis = 0;
+    private long coalescedCommits = 0;
+    private long bisectRuns = 0;
+    private long bisectRunMillis = 0;
+    private long speculated = 0;
+    private long rejectedCommits = 0;
+
+    public CommitScheduler(ScheduledExecutorService timer) {
+        this(timer, new CoalescingPolicy(null), null, PlacementPolicy.create(null), null, null, Integer.MAX_VALUE,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Commits are never split if shardPlanner is null, and nothing is logged
+     * if queueLog is null. Runners are asked to send results to reportTo
+     * ("host:port"), or to the dispatcher they registered with if it is null.
+     */
+    CommitScheduler(ScheduledExecutorService timer, CoalescingPolicy coalescingPolicy, ShardPlanner shardPlanner,
+            PlacementPolicy placementPolicy, QueueLog queueLog, String reportTo, int maxPending,
+            int maxPendingPerRepo) {
+        this.timer = timer;
+        this.coalescingPolicy = coalescingPolicy;
+        this.shardPlanner = shardPlanner;
+        this.placementPolicy = placementPolicy;
+        this.queueLog = queueLog;
+        this.reportTo = reportTo;
+        this.maxPending = maxPending;
+        this.maxPendingPerRepo = maxPendingPerRepo;
+    }
+
+    /**
+     * Replays the queue log and returns the runners that hold shards, which
+     * the caller registers again. Runners that do not come back are detected
+     * like any other lost runner and their shards requeued.
+     */
+    Collection<TestRunnerInfo> recover() throws IOException {
+        long start = System.nanoTime();
+        Map<TestRunnerInfo, TestRunnerInfo> runners = new HashMap<>();
+        synchronized (this) {
+            replaying = true;
+            long records;
+            try {
+                records = queueLog.recover((type, in) -> replay(type, in, runners));
+            } finally {
+                replaying = false;
+            }
+            // Start from a snapshot so the replayed segments can go.
+            queueLog.snapshot(this::writeState);
+            logger.info("Recovered " + pendingTotal + " queued and " + runningCommits.size()
+                    + " running commits from " + records + " records in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            return new ArrayList<>(runnerAssignments.keySet());
+        }
+    }
+
+    /**
+     * Waits until every change made so far is in the queue log, so work can
+     * be acknowledged without being lost to a crash.
+     */
+    void sync() throws IOException {
+        if (queueLog != null) {
+            synchronized (this) {
+                // Rebuilds the log at once after a failed write.
+                snapshotIfDue();
+            }
+            queueLog.awaitDurable(queueLog.position());
+        }
+    }
+
+    /**
+     * Checks which of a batch of commits fit in the queue, in order, and adds
+     * those that do not to refused. Returns 0 if all fit, or else roughly how
+     * many milliseconds it takes to make room for the rest, going by the slots
+     * there are and how long commits run. Commits already tracked, or that
+     * would replace a queued commit of their branch, take no room. Batches
+     * admitted at once may overshoot the bounds by their size, as they are
+     * submitted afterwards; {@link #submit} itself never refuses a commit, so
+     * requeued and adopted work is not lost.
+     */
+    synchronized long admit(List<Commit> commits, List<Commit> refused) {
+        Map<String, Integer> added = new HashMap<>();
+        Set<String> coalescing = new HashSet<>();
+        int total = 0;
+        for (Commit commit : commits) {
+            if (pendingById.containsKey(commit.getId()) || runningCommits.containsKey(commit.getId())) {
+                continue;
+            }
+            boolean coalesces = coalescingPolicy.coalesces(commit);
+            if (coalesces && (pendingByBranch.containsKey(branchKey(commit))
+                    || coalescing.contains(branchKey(commit)))) {
+                continue;
+            }
+            String repo = commit.getRepo();
+            Deque<PendingEntry> queue = pendingCommits.get(repo);
+            int repoCount = (queue == null ? 0 : queue.size()) + added.getOrDefault(repo, 0);
+            if (pendingTotal + total >= maxPending || repoCount >= maxPendingPerRepo) {
+                refused.add(commit);
+                continue;
+            }
+            if (coalesces) {
+                coalescing.add(branchKey(commit));
+            }
+            added.merge(repo, 1, Integer::sum);
+            total++;
+        }
+        if (refused.isEmpty()) {
+            return 0;
+        }
+        rejectedCommits += refused.size();
+        int slots = 0;
+        for (TestRunnerInfo runner : registeredRunners) {
+            slots += runner.getSlots();
+        }
+        long millis = (long) (averageRunMillis * refused.size() / Math.max(1, slots));
+        return Math.max(MIN_RETRY_AFTER_MILLIS, Math.min(MAX_RETRY_AFTER_MILLIS, millis));
+    }
+
+    /**
+     * Queues a commit for testing. Returns false if it is already queued or
+     * being tested.
+     */
+    public boolean submit(Commit commit) {
+        synchronized (this) {
+            if (pendingById.containsKey(commit.getId()) || runningCommits.containsKey(commit.getId())) {
+                return false;
+            }
+            snapshotIfDue();
+            PendingEntry entry = coalescingPolicy.coalesces(commit) ? pendingByBranch.get(branchKey(commit)) : null;
+            if (entry != null) {
+                String olderId = entry.commit.getId();
+                coalesce(entry, commit);
+                log(COALESCED, out -> {
+                    out.writeUTF(olderId);
+                    writeCommit(out, commit);
+                });
+                logger.info("Coalesced " + olderId + " into " + commit + " ("
+                        + skippedCommits.get(commit.getId()).size() + " skipped)");
+            } else {
+                enqueue(commit, coalescingPolicy.coalesces(commit));
+                log(QUEUED, out -> {
+                    writeCommit(out, commit);
+                    out.writeBoolean(coalescingPolicy.coalesces(commit));
+                });
+            }
+        }
+        schedule();
+        return true;
+    }
+
+    // Queues a commit at the tail, as the one to replace with newer commits
+    // of its branch if coalescable.
+    private void enqueue(Commit commit, boolean coalescable) {
+        PendingEntry entry = new PendingEntry(commit, nextSequence++);
+        addPending(entry);
+        pendingById.put(commit.getId(), entry);
+        if (coalescable) {
+            pendingByBranch.put(branchKey(commit), entry);
+        }
+    }
+
+    // Replaces the branch's queued commit with the newer one, keeping its place.
+    private void coalesce(PendingEntry entry, Commit newer) {
+        Commit older = entry.commit;
+        pendingById.remove(older.getId());
+        List<Commit> skipped = skippedCommits.remove(older.getId());
+        if (skipped == null) {
+            skipped = new ArrayList<>();
+        }
+        skipped.add(older);
+        skippedCommits.put(newer.getId(), skipped);
+        entry.commit = newer;
+        pendingById.put(newer.getId(), entry);
+        coalescedCommits++;
+    }
+
+    /**
+     * Adds a runner, or picks up a new slot count for one already known.
+     */
+    public void addRunner(TestRunnerInfo runner) {
+        synchronized (this) {
+            registeredRunners.add(runner);
+            refresh(runner);
+        }
+        schedule();
+    }
+
+    /**
+     * Forgets a runner and puts the shards it was testing, if any, back at the
+     * head of the queue. Other shards of the same commits keep running.
+     */
+    public void removeRunner(TestRunnerInfo runner) {
+        synchronized (this) {
+            registeredRunners.remove(runner);
+            availableRunners.remove(runner);
+            placementPolicy.removed(runner);
+            Set<String> taskIds = runnerAssignments.remove(runner);
+            if (taskIds != null) {
+                for (String taskId : taskIds) {
+                    takeBack(dispatchedShards.remove(taskId));
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Takes back shards assigned to the runner that it has not reported
+     * running for ORPHANED_SHARD_MILLIS, e.g. because the runner restarted or
+     * the dispatcher lost their results while it was down.
+     */
+    void reconcile(TestRunnerInfo runner, Set<String> runningTaskIds) {
+        synchronized (this) {
+            Set<String> taskIds = runnerAssignments.get(runner);
+            if (taskIds == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (String taskId : new ArrayList<>(taskIds)) {
+                Assignment assignment = dispatchedShards.get(taskId);
+                if (runningTaskIds.contains(taskId)) {
+                    assignment.seenNanos = now;
+                } else if (TimeUnit.NANOSECONDS.toMillis(now - assignment.seenNanos) > ORPHANED_SHARD_MILLIS) {
+                    logger.info("Runner " + runner + " is not running " + taskId + "; taking it back");
+                    dispatchedShards.remove(taskId);
+                    unassign(runner, taskId);
+                    takeBack(assignment);
+                }
+            }
+            refresh(runner);
+        }
+        schedule();
+    }
+
+    /**
+     * Records that a shard's results arrived and frees its slot. Returns null
+     * if the shard is not being tested, e.g. because it was already retried
+     * elsewhere or another run of it reported first. Once the last shard of a
+     * commit is in, the caller stores the commit's result and then calls
+     * {@link #completeCommit}.
+     */
+    ShardResult completeShard(String taskId, boolean passed) {
+        ShardResult result;
+        Assignment other = null;
+        synchronized (this) {
+            Assignment assignment = dispatchedShards.remove(taskId);
+            if (assignment == null) {
+                return null;
+            }
+            snapshotIfDue();
+            unassign(assignment.runner, taskId);
+            refresh(assignment.runner);
+            Shard shard = assignment.shard;
+            String shardId = shard.getTaskId();
+            deadlines.record(shard, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - assignment.assignedNanos));
+            String speculativeId = speculativeRuns.remove(shardId);
+            if (speculativeId != null) {
+                other = dispatchedShards.remove(assignment.isSpeculative() ? shardId : speculativeId);
+                if (other != null) {
+                    unassign(other.runner, other.taskId);
+                    refresh(other.runner);
+                } else if (assignment.isSpeculative()) {
+                    // The original's runner was lost and the shard is waiting to run again.
+                    readyShards.remove(shard);
+                }
+                if (assignment.isSpeculative()) {
+                    speculativeWins.increment();
+                }
+            }
+            CommitRun run = runningCommits.get(shard.getCommit().getId());
+            String runnerName = runnerName(assignment.runner);
+            run.record(shard, runnerName, taskId, passed);
+            log(SHARD_DONE, out -> {
+                out.writeUTF(shardId);
+                out.writeBoolean(passed);
+                out.writeUTF(runnerName);
+                out.writeUTF(taskId);
+            });
+            result = new ShardResult(shard, run);
+        }
+        if (other != null) {
+            cancel(other);
+        }
+        schedule();
+        return result;
+    }
+
+    /**
+     * Starts a second run of each shard that is past its deadline, on a
+     * runner that would otherwise sit idle. Called periodically.
+     */
+    void speculate() {
+        List<Assignment> started = new ArrayList<>();
+        synchronized (this) {
+            // Queued work comes first.
+            if (!readyShards.isEmpty() || pendingTotal > 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Assignment assignment : new ArrayList<>(dispatchedShards.values())) {
+                if (availableRunners.isEmpty()) {
+                    break;
+                }
+                Shard shard = assignment.shard;
+                if (assignment.isSpeculative() || speculativeRuns.containsKey(shard.getTaskId())) {
+                    continue;
+                }
+                long deadline = deadlines.deadlineMillis(shard);
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(now - assignment.assignedNanos);
+                if (deadline == -1 || elapsed < deadline) {
+                    continue;
+                }
+                List<TestRunnerInfo> candidates = new ArrayList<>(availableRunners);
+                candidates.remove(assignment.runner);
+                TestRunnerInfo runner = placementPolicy.choose(shard.getCommit(), candidates, this::assignedSlots);
+                if (runner == null) {
+                    continue;
+                }
+                Assignment speculative = assign(shard, runner, ++speculated);
+                speculativeRuns.put(shard.getTaskId(), speculative.taskId);
+                placementPolicy.assigned(shard.getCommit(), runner);
+                refresh(runner);
+                speculativeShards.increment();
+                logger.info(shard + " has run " + elapsed + " ms of its " + deadline + " ms deadline on "
+                        + assignment.runner + "; also starting it on " + runner);
+                started.add(speculative);
+            }
+        }
+        for (Assignment assignment : started) {
+            send(assignment);
+        }
+    }
+
+    /**
+     * Finishes a commit whose shards have all reported. A failure of a commit
+     * that stood in for skipped commits starts a bisection of them.
+     */
+    void completeCommit(String commitId) {
+        synchronized (this) {
+            CommitRun run = runningCommits.remove(commitId);
+            if (run == null) {
+                return;
+            }
+            count(runningPerRepo, run.commit, -1);
+            log(COMPLETED, out -> out.writeUTF(commitId));
+            long runMillis = run.getElapsedMillis();
+            commitRun.record(runMillis);
+            averageRunMillis = averageRunMillis == 0 ? runMillis
+                    : averageRunMillis + DURATION_SMOOTHING * (runMillis - averageRunMillis);
+
+            List<Commit> skipped = skippedCommits.remove(commitId);
+            Bisection bisection = bisections.remove(commitId);
+            if (bisection != null) {
+                bisectRunMillis += runMillis;
+                bisection.record(run.commit, run.passed);
+                probe(bisection);
+            } else if (!run.passed && skipped != null) {
+                logger.info("Commit " + run.commit + " failed; bisecting " + skipped.size() + " skipped commits");
+                probe(new Bisection(skipped, run.commit));
+            }
+        }
+        schedule();
+    }
+
+    // Queues the next commit a bisection needs, or reports its outcome.
+    private void probe(Bisection bisection) {
+        Commit next = bisection.next();
+        if (next == null) {
+            logger.info("First failing commit on " + branchKey(bisection.firstFailure) + " is "
+                    + bisection.firstFailure.getId());
+            return;
+        }
+        bisections.put(next.getId(), bisection);
+        if (!pendingById.containsKey(next.getId()) && !runningCommits.containsKey(next.getId())) {
+            bisectRuns++;
+            requeue(next);
+        }
+    }
+
+    /**
+     * Returns true while the commit is queued or being tested.
+     */
+    public synchronized boolean isTracked(String commitId) {
+        return pendingById.containsKey(commitId) || runningCommits.containsKey(commitId);
+    }
+
+    /**
+     * The commits being tested, then the queued ones in queue order.
+     */
+    synchronized List<Commit> commits() {
+        List<Commit> commits = new ArrayList<>();
+        for (CommitRun run : runningCommits.values()) {
+            commits.add(run.commit);
+        }
+        for (PendingEntry entry : queueOrder()) {
+            commits.add(entry.commit);
+        }
+        return commits;
+    }
+
+    public synchronized int pendingCount() {
+        return pendingTotal;
+    }
+
+    /**
+     * Queued commits per repository.
+     */
+    synchronized Map<String, Integer> pendingByRepo() {
+        Map<String, Integer> counts = new TreeMap<>();
+        pendingCommits.forEach((repo, queue) -> counts.put(repo, queue.size()));
+        return counts;
+    }
+
+    public synchronized int dispatchedCount() {
+        return runningCommits.size();
+    }
+
+    /**
+     * Queue statistics as space-separated key=value pairs. The runner time saved
+     * is estimated as one average run per coalesced commit, less the time spent
+     * on bisection runs.
+     */
+    public synchronized String stats() {
+        return "pending=" + pendingTotal
+                + " dispatched=" + runningCommits.size()
+                + " shards=" + dispatchedShards.size()
+                + " coalesced=" + coalescedCommits
+                + " bisectRuns=" + bisectRuns
+                + " speculated=" + speculated
+                + " rejected=" + rejectedCommits
+                + " avgRunMillis=" + (long) averageRunMillis
+                + " savedRunMillis=" + ((long) (coalescedCommits * averageRunMillis) - bisectRunMillis);
+    }
+
+    // Assigns shards to free slots until one of them runs out, splitting the
+    // next queued commit whenever no waiting shard can be placed. The chosen
+    // runner goes to the back of the candidates, so ties rotate across hosts.
+    private void schedule() {
+        while (true) {
+            Shard shard;
+            TestRunnerInfo runner;
+            Assignment assignment;
+            synchronized (this) {
+                if (availableRunners.isEmpty()) {
+                    return;
+                }
+                Assignment placement = place();
+                while (placement == null && pendingTotal > 0 && readyShards.size() < MAX_READY_SHARDS) {
+                    startNextCommit();
+                    placement = place();
+                }
+                if (placement == null) {
+                    return;
+                }
+                shard = placement.shard;
+                runner = placement.runner;
+                readyShards.remove(shard);
+                availableRunners.remove(runner);
+                assignment = assign(shard, runner, 0);
+                placementPolicy.assigned(shard.getCommit(), runner);
+                refresh(runner);
+                TestRunnerInfo assigned = runner;
+                String taskId = shard.getTaskId();
+                log(ASSIGNED, out -> {
+                    out.writeUTF(taskId);
+                    writeRunner(out, assigned);
+                });
+            }
+            send(assignment);
+        }
+    }
+
+    // Returns the first waiting shard, in queue order, that the placement
+    // policy finds a free runner for, with that runner.
+    private Assignment place() {
+        if (readyShards.isEmpty()) {
+            return null;
+        }
+        List<TestRunnerInfo> candidates = new ArrayList<>(availableRunners);
+        Commit unplaceable = null;
+        for (Shard shard : readyShards) {
+            // Shards of one commit are placed alike.
+            if (shard.getCommit() == unplaceable) {
+                continue;
+            }
+            TestRunnerInfo runner = placementPolicy.choose(shard.getCommit(), candidates, this::assignedSlots);
+            if (runner != null) {
+                return new Assignment(shard, runner, 0);
+            }
+            unplaceable = shard.getCommit();
+        }
+        return null;
+    }
+
+    // Takes the next queued commit in fair-share order and splits it into shards.
+    private void startNextCommit() {
+        PendingEntry entry = takeNextEntry();
+        Commit commit = entry.commit;
+        pendingById.remove(commit.getId());
+        pendingByBranch.remove(branchKey(commit), entry);
+        queueWait.recordSince(entry.queuedNanos);
+        List<Shard> shards = shardPlanner == null ? Collections.singletonList(Shard.whole(commit))
+                : shardPlanner.plan(commit, freeSlots());
+        runningCommits.put(commit.getId(), new CommitRun(commit, shards));
+        count(runningPerRepo, commit, 1);
+        readyShards.addAll(shards);
+        log(STARTED, out -> {
+            writeCommit(out, commit);
+            writeShards(out, shards);
+        });
+    }
+
+    // Removes and returns the next commit: the latest requeued one if any,
+    // else the head of the queue of the repository with the fewest commits
+    // being tested, the earliest queued head breaking ties. One pass over the
+    // repositories, however long their queues.
+    private PendingEntry takeNextEntry() {
+        PendingEntry next = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Map.Entry<String, Deque<PendingEntry>> queue : pendingCommits.entrySet()) {
+            PendingEntry head = queue.getValue().peekFirst();
+            int running = head.sequence < 0 ? -1 : runningPerRepo.getOrDefault(queue.getKey(), 0);
+            if (running < fewest || running == fewest && head.sequence < next.sequence) {
+                next = head;
+                fewest = running;
+            }
+        }
+        removePending(next);
+        return next;
+    }
+
+    private void addPending(PendingEntry entry) {
+        Deque<PendingEntry> queue = pendingCommits.computeIfAbsent(entry.commit.getRepo(), repo -> new ArrayDeque<>());
+        if (entry.sequence < 0) {
+            queue.addFirst(entry);
+        } else {
+            queue.addLast(entry);
+        }
+        pendingTotal++;
+    }
+
+    private void removePending(PendingEntry entry) {
+        Deque<PendingEntry> queue = pendingCommits.get(entry.commit.getRepo());
+        // Commits leave from the head of their repository's queue, so the
+        // search is only for logs of older versions.
+        if (queue.peekFirst() == entry) {
+            queue.pollFirst();
+        } else {
+            queue.remove(entry);
+        }
+        if (queue.isEmpty()) {
+            pendingCommits.remove(entry.commit.getRepo());
+        }
+        pendingTotal--;
+    }
+
+    // The queued commits across repositories, requeued ones first.
+    private List<PendingEntry> queueOrder() {
+        List<PendingEntry> entries = new ArrayList<>(pendingTotal);
+        pendingCommits.values().forEach(entries::addAll);
+        entries.sort(Comparator.comparingLong(entry -> entry.sequence));
+        return entries;
+    }
+
+    private static void count(Map<String, Integer> counts, Commit commit, int delta) {
+        counts.merge(commit.getRepo(), delta, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    private int assignedSlots(TestRunnerInfo runner) {
+        Set<String> taskIds = runnerAssignments.get(runner);
+        return taskIds == null ? 0 : taskIds.size();
+    }
+
+    // Slots not yet given work on runners that can currently take it.
+    private int freeSlots() {
+        int free = 0;
+        for (TestRunnerInfo runner : availableRunners) {
+            free += runner.getSlots() - assignedSlots(runner);
+        }
+        return free;
+    }
+
+    // Hands a shard to a runner, as its original run or, with attempt > 0,
+    // as a speculative one.
+    private Assignment assign(Shard shard, TestRunnerInfo runner, long attempt) {
+        Assignment assignment = new Assignment(shard, runner, attempt);
+        dispatchedShards.put(assignment.taskId, assignment);
+        runnerAssignments.computeIfAbsent(runner, r -> new HashSet<>()).add(assignment.taskId);
+        return assignment;
+    }
+
+    // Returns a shard whose runner is gone to the queue. A speculative run is
+    // just dropped, as the original is still out.
+    private void takeBack(Assignment assignment) {
+        if (assignment.isSpeculative()) {
+            speculativeRuns.remove(assignment.shard.getTaskId(), assignment.taskId);
+            return;
+        }
+        readyShards.addFirst(assignment.shard);
+        String taskId = assignment.taskId;
+        log(UNASSIGNED, out -> out.writeUTF(taskId));
+    }
+
+    private void send(Assignment assignment) {
+        Shard shard = assignment.shard;
+        TestRunnerInfo runner = assignment.runner;
+        long start = System.nanoTime();
+        String command = shard.runCommand() + (assignment.isSpeculative() ? "#" + assignment.attempt : "");
+        if (reportTo != null) {
+            command += "@" + reportTo;
+        }
+        Helpers.communicateAsync(runner.getHost(), runner.getPort(), command)
+                .whenComplete((response, error) -> {
+                    dispatchLatency.recordSince(start);
+                    if (error == null && CommunicationConstants.OK_RESPONSE.equals(response)) {
+                        logger.info("Dispatched " + assignment.taskId + " (" + shard + ") to runner " + runner);
+                        return;
+                    }
+                    logger.info("Runner " + runner + " did not take " + assignment.taskId + ": "
+                            + (error != null ? error.getMessage() : response));
+                    rejectedShards.increment();
+                    rejected(assignment);
+                });
+    }
+
+    // Tells the runner of a run that lost to another run of its shard to stop.
+    // Its report, if it still sends one, is ignored.
+    private void cancel(Assignment assignment) {
+        logger.info("Cancelling " + assignment.taskId + " on " + assignment.runner);
+        Helpers.communicateAsync(assignment.runner.getHost(), assignment.runner.getPort(),
+                CommunicationConstants.CANCEL_CMD + ":" + assignment.taskId);
+    }
+
+    // Undoes an assignment the runner refused and retries the runner later.
+    private void rejected(Assignment refused) {
+        TestRunnerInfo runner = refused.runner;
+        synchronized (this) {
+            if (dispatchedShards.get(refused.taskId) != refused) {
+                return;
+            }
+            dispatchedShards.remove(refused.taskId);
+            unassign(runner, refused.taskId);
+            takeBack(refused);
+            restingRunners.add(runner);
+            refresh(runner);
+        }
+        schedule();
+        timer.schedule(() -> {
+            synchronized (this) {
+                restingRunners.remove(runner);
+                refresh(runner);
+            }
+            schedule();
+        }, REJECTED_RUNNER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void unassign(TestRunnerInfo runner, String taskId) {
+        Set<String> taskIds = runnerAssignments.get(runner);
+        if (taskIds != null) {
+            taskIds.remove(taskId);
+            if (taskIds.isEmpty()) {
+                runnerAssignments.remove(runner);
+            }
+        }
+    }
+
+    // Puts a commit at the head of the queue, outside any branch coalescing.
+    private void requeue(Commit commit) {
+        if (!pendingById.containsKey(commit.getId())) {
+            PendingEntry entry = new PendingEntry(commit, nextRequeueSequence--);
+            addPending(entry);
+            pendingById.put(commit.getId(), entry);
+            log(REQUEUED, out -> writeCommit(out, commit));
+        }
+    }
+
+    // Offers the runner for assignment only while it has a slot to spare.
+    private void refresh(TestRunnerInfo runner) {
+        Set<String> taskIds = runnerAssignments.get(runner);
+        int assigned = taskIds == null ? 0 : taskIds.size();
+        if (registeredRunners.contains(runner) && !restingRunners.contains(runner) && assigned < runner.getSlots()) {
+            availableRunners.add(runner);
+        } else {
+            availableRunners.remove(runner);
+        }
+    }
+
+    // --- Queue log ---
+
+    private void log(byte type, QueueLog.Fields fields) {
+        if (queueLog != null && !replaying) {
+            queueLog.append(type, fields);
+        }
+    }
+
+    // Compacts the log into a snapshot once it has grown enough. Called before
+    // a change is made, as the snapshot must match the records logged so far.
+    private void snapshotIfDue() {
+        if (queueLog != null && queueLog.snapshotDue()) {
+            queueLog.snapshot(this::writeState);
+        }
+    }
+
+    // Writes the records that rebuild the current state from nothing.
+    private void writeState(QueueLog.RecordWriter records) throws IOException {
+        List<PendingEntry> queued = queueOrder();
+        // Requeued commits are requeued again, the earliest first, so they
+        // come back in the same order ahead of the rest.
+        for (int i = queued.size() - 1; i >= 0; i--) {
+            Commit commit = queued.get(i).commit;
+            if (queued.get(i).sequence < 0) {
+                records.write(REQUEUED, fields -> writeCommit(fields, commit));
+            }
+        }
+        for (PendingEntry entry : queued) {
+            if (entry.sequence < 0) {
+                continue;
+            }
+            boolean coalescable = pendingByBranch.get(branchKey(entry.commit)) == entry;
+            records.write(QUEUED, fields -> {
+                writeCommit(fields, entry.commit);
+                fields.writeBoolean(coalescable);
+            });
+        }
+        for (Map.Entry<String, List<Commit>> skipped : skippedCommits.entrySet()) {
+            records.write(SKIPPED, fields -> {
+                fields.writeUTF(skipped.getKey());
+                fields.writeInt(skipped.getValue().size());
+                for (Commit commit : skipped.getValue()) {
+                    writeCommit(fields, commit);
+                }
+            });
+        }
+        for (CommitRun run : runningCommits.values()) {
+            records.write(STARTED, fields -> {
+                writeCommit(fields, run.commit);
+                writeShards(fields, run.shards);
+            });
+            for (Shard shard : run.shards) {
+                String taskId = shard.getTaskId();
+                Assignment assignment = dispatchedShards.get(taskId);
+                String runnerName = run.runners[shard.getIndex()];
+                if (assignment != null) {
+                    records.write(ASSIGNED, fields -> {
+                        fields.writeUTF(taskId);
+                        writeRunner(fields, assignment.runner);
+                    });
+                } else if (runnerName != null) {
+                    // Only the commit's outcome so far is kept, which every
+                    // finished shard then reports.
+                    String outputId = run.outputIds[shard.getIndex()];
+                    records.write(SHARD_DONE, fields -> {
+                        fields.writeUTF(taskId);
+                        fields.writeBoolean(run.passed);
+                        fields.writeUTF(runnerName);
+                        fields.writeUTF(outputId);
+                    });
+                }
+            }
+        }
+    }
+
+    // Applies one logged change. Runners are deduplicated through the map so
+    // each is one object, as the live state has it.
+    private void replay(byte type, DataInputStream in, Map<TestRunnerInfo, TestRunnerInfo> runners)
+            throws IOException {
+        switch (type) {
+            case QUEUED: {
+                Commit commit = readCommit(in);
+                enqueue(commit, in.readBoolean());
+                break;
+            }
+            case REQUEUED:
+                requeue(readCommit(in));
+                break;
+            case COALESCED: {
+                String olderId = in.readUTF();
+                Commit newer = readCommit(in);
+                PendingEntry entry = pendingById.get(olderId);
+                coalesce(entry, newer);
+                break;
+            }
+            case SKIPPED: {
+                String commitId = in.readUTF();
+                int count = in.readInt();
+                List<Commit> skipped = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    skipped.add(readCommit(in));
+                }
+                skippedCommits.put(commitId, skipped);
+                break;
+            }
+            case STARTED: {
+                Commit commit = readCommit(in);
+                List<Shard> shards = readShards(in, commit);
+                PendingEntry entry = pendingById.remove(commit.getId());
+                if (entry != null) {
+                    removePending(entry);
+                    pendingByBranch.remove(branchKey(commit), entry);
+                }
+                runningCommits.put(commit.getId(), new CommitRun(commit, shards));
+                count(runningPerRepo, commit, 1);
+                readyShards.addAll(shards);
+                break;
+            }
+            case ASSIGNED: {
+                String taskId = in.readUTF();
+                TestRunnerInfo runner = runners.computeIfAbsent(readRunner(in), r -> r);
+                assign(takeReadyShard(taskId), runner, 0);
+                break;
+            }
+            case UNASSIGNED: {
+                String taskId = in.readUTF();
+                Assignment assignment = dispatchedShards.remove(taskId);
+                unassign(assignment.runner, taskId);
+                readyShards.addFirst(assignment.shard);
+                break;
+            }
+            case SHARD_DONE: {
+                String taskId = in.readUTF();
+                boolean passed = in.readBoolean();
+                String runnerName = in.readUTF();
+                String outputId = in.readUTF();
+                Assignment assignment = dispatchedShards.remove(taskId);
+                Shard shard;
+                if (assignment != null) {
+                    unassign(assignment.runner, taskId);
+                    shard = assignment.shard;
+                } else {
+                    shard = takeReadyShard(taskId);
+                }
+                runningCommits.get(shard.getCommit().getId()).record(shard, runnerName, outputId, passed);
+                break;
+            }
+            case COMPLETED: {
+                String commitId = in.readUTF();
+                CommitRun run = runningCommits.remove(commitId);
+                if (run != null) {
+                    count(runningPerRepo, run.commit, -1);
+                }
+                skippedCommits.remove(commitId);
+                break;
+            }
+            default:
+                throw new IOException("Unknown queue log record type " + type);
+        }
+    }
+
+    private Shard takeReadyShard(String taskId) throws IOException {
+        for (Iterator<Shard> shards = readyShards.iterator(); shards.hasNext(); ) {
+            Shard shard = shards.next();
+            if (shard.getTaskId().equals(taskId)) {
+                shards.remove();
+                return shard;
+            }
+        }
+        throw new IOException("Queue log refers to unknown shard " + taskId);
+    }
+
+    private static void writeCommit(DataOutputStream out, Commit commit) throws IOException {
+        out.writeUTF(commit.getRepo());
+        out.writeUTF(commit.getBranch());
+        out.writeUTF(commit.getId());
+        out.writeUTF(commit.getTree() == null ? "" : commit.getTree());
+    }
+
+    private static Commit readCommit(DataInputStream in) throws IOException {
+        String repo = in.readUTF();
+        String branch = in.readUTF();
+        String id = in.readUTF();
+        String tree = in.readUTF();
+        return new Commit(repo, branch, id, tree.isEmpty() ? null : tree);
+    }
+
+    private static void writeShards(DataOutputStream out, List<Shard> shards) throws IOException {
+        out.writeInt(shards.size());
+        for (Shard shard : shards) {
+            out.writeInt(shard.getIndex());
+            out.writeInt(shard.getCount());
+            out.writeBoolean(shard.isExclude());
+            out.writeInt(shard.getTests().size());
+            for (String test : shard.getTests()) {
+                out.writeUTF(test);
+            }
+        }
+    }
+
+    private static List<Shard> readShards(DataInputStream in, Commit commit) throws IOException {
+        int count = in.readInt();
+        List<Shard> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            int shardCount = in.readInt();
+            boolean exclude = in.readBoolean();
+            int testCount = in.readInt();
+            List<String> tests = new ArrayList<>(testCount);
+            for (int j = 0; j < testCount; j++) {
+                tests.add(in.readUTF());
+            }
+            shards.add(new Shard(commit, index, shardCount, exclude, tests));
+        }
+        return shards;
+    }
+
+    private static void writeRunner(DataOutputStream out, TestRunnerInfo runner) throws IOException {
+        out.writeUTF(runner.getHost());
+        out.writeInt(runner.getPort());
+        out.writeInt(runner.getSlots());
+    }
+
+    private static TestRunnerInfo readRunner(DataInputStream in) throws IOException {
+        String host = in.readUTF();
+        int port = in.readInt();
+        return new TestRunnerInfo(host, port, in.readInt());
+    }
+
+    private static String runnerName(TestRunnerInfo runner) {
+        return runner.getHost() + ":" + runner.getPort();
+    }
+
+    private static String branchKey(Commit commit) {
+        return commit.getRepo() + ":" + commit.getBranch();
+    }
+
+    // A queue position. Coalescing swaps the commit, keeping the position and
+    // the time it was taken.
+    private static class PendingEntry {
+        private final long queuedNanos = System.nanoTime();
+        private final long sequence;
+        private Commit commit;
+
+        PendingEntry(Commit commit, long sequence) {
+            this.commit = commit;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Assignment {
+        private final Shard shard;
+        private final TestRunnerInfo runner;
+        // 0 for the shard's original run, n for speculative run "<taskId>#<n>".
+        private final long attempt;
+        private final String taskId;
+        private final long assignedNanos = System.nanoTime();
+        // When the runner was last known to hold the shard.
+        private long seenNanos = assignedNanos;
+
+        Assignment(Shard shard, TestRunnerInfo runner, long attempt) {
+            this.shard = shard;
+            this.runner = runner;
+            this.attempt = attempt;
+            this.taskId = attempt == 0 ? shard.getTaskId() : shard.getTaskId() + "#" + attempt;
+        }
+
+        boolean isSpeculative() {
+            return attempt != 0;
+        }
+    }
+
+    // A commit whose shards are being tested.
+    private static class CommitRun {
+        private final Commit commit;
+        private final List<Shard> shards;
+        private final long startNanos = System.nanoTime();
+        private final String[] runners;
+        // The task whose output each shard's results are, by shard index.
+        private final String[] outputIds;
+        private int remaining;
+        private boolean passed = true;
+
+        CommitRun(Commit commit, List<Shard> shards) {
+            this.commit = commit;
+            this.shards = shards;
+            this.runners = new String[shards.size()];
+            this.outputIds = new String[shards.size()];
+            this.remaining = shards.size();
+        }
+
+        void record(Shard shard, String runner, String outputId, boolean shardPassed) {
+            runners[shard.getIndex()] = runner;
+            outputIds[shard.getIndex()] = outputId;
+            remaining--;
+            passed &= shardPassed;
+        }
+
+        long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * What the dispatcher needs to store a shard's results: the shard, and
+     * once every shard has reported, the outcome of the whole commit.
+     */
+    static class ShardResult {
+        private final Shard shard;
+        private final boolean commitDone;
+        private final boolean commitPassed;
+        private final long commitMillis;
+        private final List<String> runners;
+        private final List<String> outputIds;
+
+        ShardResult(Shard shard, CommitRun run) {
+            this.shard = shard;
+            this.commitDone = run.remaining == 0;
+            this.commitPassed = run.passed;
+            this.commitMillis = run.getElapsedMillis();
+            this.runners = Arrays.asList(run.runners.clone());
+            this.outputIds = Arrays.asList(run.outputIds.clone());
+        }
+
+        Shard getShard() {
+            return shard;
+        }
+
+        boolean isCommitDone() {
+            return commitDone;
+        }
+
+        boolean isCommitPassed() {
+            return commitPassed;
+        }
+
+        long getCommitMillis() {
+            return commitMillis;
+        }
+
+        // The runner of each shard, by shard index.
+        List<String> getRunners() {
+            return runners;
+        }
+
+        // The task ID each shard's output is spooled under, by shard index.
+        List<String> getOutputIds() {
+            return outputIds;
+        }
+    }
+
+    // Binary search over skipped commits, oldest first, for the first failure.
+    // Everything before the range is assumed to pass and firstFailure, right
+    // after it, is known to fail.
+    private static class Bisection {
+        private List<Commit> range;
+        private Commit firstFailure;
+
+        Bisection(List<Commit> skipped, Commit failed) {
+            this.range = new ArrayList<>(skipped);
+            this.firstFailure = failed;
+        }
+
+        Commit next() {
+            return range.isEmpty() ? null : range.get(range.size() / 2);
+        }
+
+        void record(Commit probed, boolean passed) {
+            int mid = range.indexOf(probed);
+            if (mid == -1) {
+                return;
+            }
+            if (passed) {
+                range = new ArrayList<>(range.subList(mid + 1, range.size()));
+            } else {
+                firstFailure = probed;
+                range = new ArrayList<>(range.subList(0, mid));
+            }
+        }
+    }
+}
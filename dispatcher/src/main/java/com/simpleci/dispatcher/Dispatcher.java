@@ -0,0 +1,699 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.MessageHandler;
+import com.simpleci.common.Metrics;
+import com.simpleci.common.NioServer;
+import com.simpleci.helpers.DispatcherCluster;
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/**
+ * Queues commits from observers and hands them to runners.
+ *
+ * Several dispatchers can share the work: started with
+ * -Dsimpleci.peers=<host:port,...>, each owns the branches the
+ * {@link com.simpleci.common.HashRing} assigns it among the live dispatchers
+ * and forwards commits of other branches to their owners. Runners register
+ * with all of them. A peer that misses PEER_MISSES status checks drops out of
+ * the ring, and its queue is adopted if it left one in the shared data
+ * directory.
+ */
+public class Dispatcher {
+    private static final Logger logger = Logger.getLogger(Dispatcher.class.getName());
+    private static final Metrics.Histogram persistLatency = Metrics.histogram("simpleci_persist_millis",
+            "Time to merge a commit's shard output into the result store");
+    private static final Metrics.Counter commitsReceived = Metrics.counter("simpleci_commits_received_total",
+            "Commits sent by observers");
+    private static final Metrics.Counter commitsRejected = Metrics.counter("simpleci_commits_rejected_total",
+            "Commits turned away because the queue was full");
+    private static final Metrics.Counter cachedCommits = Metrics.counter("simpleci_cached_commits_total",
+            "Commits answered from the tree cache without a run");
+    private static final Metrics.Counter runnersLost = Metrics.counter("simpleci_runners_lost_total",
+            "Runners removed after their heartbeats stopped");
+
+    // Most output returned by one tail request.
+    private static final int TAIL_CHUNK_BYTES = 64 * 1024;
+    // Most results returned by one history request.
+    private static final int MAX_HISTORY = 1000;
+    // Heartbeat deadlines are checked every tick; the wheel spans about a minute.
+    private static final long HEARTBEAT_TICK_MILLIS = 100;
+    private static final int HEARTBEAT_WHEEL_SIZE = 512;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+    // Peers are checked every interval and leave the ring after this many misses.
+    private static final long PEER_CHECK_MILLIS = 1000;
+    private static final int PEER_MISSES = 3;
+    // How often running shards are checked against their deadlines.
+    private static final long SPECULATE_INTERVAL_MILLIS = 1000;
+    private static final Path DATA_ROOT = Paths.get("test_results");
+
+    // Configuration
+    private final String host;
+    private final int port;
+    private final String self;
+    private final List<String> peers = new ArrayList<>();
+    // Where this dispatcher keeps its state: the data root, or a directory
+    // per dispatcher in it when there are peers.
+    private final Path dataDir;
+
+    // Internal state
+    private volatile boolean dead = false;
+    private final List<TestRunnerInfo> runners = new CopyOnWriteArrayList<>();
+    private final DispatcherCluster cluster;
+    private final Map<String, Integer> peerMisses = new ConcurrentHashMap<>();
+    private final ResultSpool resultSpool;
+    private final ResultStore resultStore;
+    private final ResultCache resultCache;
+
+    private final MessageHandler handler = new DispatcherHandler();
+    private final NioServer server;
+
+    // Concurrency management
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final ShardPlanner shardPlanner;
+    private final QueueLog queueLog;
+    private final CommitScheduler commitScheduler;
+    // Suspicion (phi) at which a silent runner is removed; 8 is roughly a one
+    // in 10^8 chance that its next heartbeat was merely late.
+    private final FailureDetector failureDetector = new FailureDetector(HEARTBEAT_TICK_MILLIS, HEARTBEAT_WHEEL_SIZE,
+            HEARTBEAT_INTERVAL_MILLIS, Double.parseDouble(System.getProperty("simpleci.heartbeat.threshold", "8")),
+            this::removeRunnerAndRequeue);
+
+    public Dispatcher(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.self = host + ":" + port;
+        String peerList = System.getProperty("simpleci.peers");
+        if (peerList != null) {
+            for (String peer : DispatcherCluster.parse(peerList).members()) {
+                if (!peer.equals(self)) {
+                    peers.add(peer);
+                }
+            }
+        }
+        // Peers count as live until they miss their first checks.
+        List<String> members = new ArrayList<>(peers);
+        members.add(self);
+        this.cluster = new DispatcherCluster(members);
+        this.dataDir = peers.isEmpty() ? DATA_ROOT : DATA_ROOT.resolve(dataDirectoryName(self));
+
+        this.server = new NioServer("dispatcher", host, port, handler);
+        this.resultSpool = new ResultSpool(dataDir.resolve("spool"));
+        this.shardPlanner = new ShardPlanner(dataDir.resolve("test-durations"), Integer.getInteger("simpleci.shards", 4));
+        this.resultStore = new ResultStore(dataDir,
+                TimeUnit.DAYS.toMillis(Long.getLong("simpleci.results.retentionDays", 90)),
+                Boolean.parseBoolean(System.getProperty("simpleci.results.compress", "true")));
+        this.resultCache = new ResultCache(dataDir.resolve("tree-cache"),
+                Integer.getInteger("simpleci.cache.size", 100000), System.getProperty("simpleci.cache.environment"));
+
+        // Pick up the queue and assignments from before a restart. The queue takes
+        // at most simpleci.queue.max commits, by default half of them from one
+        // repository.
+        int maxPending = Integer.getInteger("simpleci.queue.max", 10000);
+        this.queueLog = new QueueLog(dataDir.resolve("queue"));
+        this.commitScheduler = new CommitScheduler(scheduler,
+                new CoalescingPolicy(System.getProperty("simpleci.coalesce")), shardPlanner,
+                PlacementPolicy.create(System.getProperty("simpleci.placement")), queueLog,
+                peers.isEmpty() ? null : self, maxPending,
+                Integer.getInteger("simpleci.queue.maxPerRepo", Math.max(1, maxPending / 2)));
+        for (TestRunnerInfo runner : commitScheduler.recover()) {
+            registerTestRunner(runner);
+        }
+    }
+
+    private static String dataDirectoryName(String member) {
+        return member.replace(':', '-');
+    }
+
+    public void start() throws IOException {
+        logger.info(String.format("Dispatcher serving on %s:%d", host, port));
+
+        // Schedule periodic tasks.
+        scheduler.scheduleAtFixedRate(failureDetector::tick, HEARTBEAT_TICK_MILLIS, HEARTBEAT_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compactResults, 1, 60, TimeUnit.MINUTES);
+        if (Boolean.parseBoolean(System.getProperty("simpleci.speculate", "true"))) {
+            // Rerun stragglers on idle runners.
+            scheduler.scheduleWithFixedDelay(commitScheduler::speculate, SPECULATE_INTERVAL_MILLIS,
+                    SPECULATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!peers.isEmpty()) {
+            logger.info("Sharing work with " + peers);
+            scheduler.scheduleWithFixedDelay(this::checkPeers, PEER_CHECK_MILLIS, PEER_CHECK_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            // Finish adoptions a crash interrupted.
+            try (DirectoryStream<Path> adopted = Files.newDirectoryStream(dataDir, "adopted-*")) {
+                for (Path queue : adopted) {
+                    scheduler.execute(() -> adoptQueue(queue));
+                }
+            }
+        }
+
+        Metrics.gauge("simpleci_queue_length", "Commits waiting for a runner",
+                () -> Collections.singletonMap("", (double) commitScheduler.pendingCount()));
+        Metrics.gauge("simpleci_server_queue_length", "Requests waiting for a dispatcher worker thread",
+                () -> Collections.singletonMap("", (double) server.getQueueLength()));
+        Metrics.gauge("simpleci_repo_queue_length", "Commits waiting for a runner per repository", () -> {
+            Map<String, Double> values = new TreeMap<>();
+            commitScheduler.pendingByRepo()
+                    .forEach((repo, count) -> values.put("repo=\"" + repo + "\"", (double) count));
+            return values;
+        });
+        Metrics.gauge("simpleci_runner_utilization", "Fraction of each runner's slots in use",
+                () -> runnerValues(runner -> (double) (runner.getSlots() - runner.getFreeSlots())
+                        / Math.max(1, runner.getSlots())));
+        Metrics.gauge("simpleci_runner_load", "System load average each runner last reported",
+                () -> runnerValues(TestRunnerInfo::getLoad));
+        Metrics.startExport(scheduler);
+
+        server.start();
+    }
+
+    private Map<String, Double> runnerValues(ToDoubleFunction<TestRunnerInfo> value) {
+        Map<String, Double> values = new TreeMap<>();
+        for (TestRunnerInfo runner : runners) {
+            values.put("runner=\"" + runner.getHost() + ":" + runner.getPort() + "\"", value.applyAsDouble(runner));
+        }
+        return values;
+    }
+
+    // The protocol handler, for driving the dispatcher without a socket.
+    MessageHandler handler() {
+        return handler;
+    }
+
+    // Called by the DispatcherHandler when an observer sends a commit.
+    public void addCommit(Commit commit) {
+        commitsReceived.increment();
+        if (commitScheduler.submit(commit)) {
+            logger.info("Received commit: " + commit);
+        } else {
+            logger.info("Ignoring commit already queued or running: " + commit);
+        }
+    }
+
+    // Handler for runner registration. A runner that registers again keeps its
+    // entry and just updates its advertised slot count.
+    public void registerTestRunner(TestRunnerInfo runner) {
+        logger.info("Registering runner: " + runner);
+        int index = runners.indexOf(runner);
+        if (index == -1) {
+            runners.add(runner);
+        } else {
+            TestRunnerInfo existing = runners.get(index);
+            existing.updateCapacity(runner.getSlots(), runner.getFreeSlots());
+            existing.setRepo(runner.getRepo());
+            runner = existing;
+        }
+        failureDetector.heartbeat(runner);
+        commitScheduler.addRunner(runner);
+    }
+
+    // Called when a runner stops sending heartbeats: removes it and requeues
+    // its shards.
+    private void removeRunnerAndRequeue(TestRunnerInfo runner) {
+        logger.info("Removing runner: " + runner);
+        runnersLost.increment();
+        failureDetector.remove(runner);
+        runners.remove(runner);
+        commitScheduler.removeRunner(runner);
+    }
+
+    // Handler for heartbeats. A runner the dispatcher does not know, e.g. one
+    // removed while it was unreachable, is registered again. Shards assigned
+    // to the runner that it no longer reports running are requeued; runners
+    // that do not list their tasks are taken at their word.
+    private void heartbeat(TestRunnerInfo reported, double load, Set<String> runningTaskIds) {
+        int index = runners.indexOf(reported);
+        if (index == -1) {
+            registerTestRunner(reported);
+            reported.setLoad(load);
+            return;
+        }
+        TestRunnerInfo runner = runners.get(index);
+        if (runningTaskIds != null) {
+            commitScheduler.reconcile(runner, runningTaskIds);
+        }
+        runner.setLoad(load);
+        if (reported.getRepo() != null) {
+            runner.setRepo(reported.getRepo());
+        }
+        failureDetector.heartbeat(runner);
+        int slots = reported.getSlots();
+        int freeSlots = reported.getFreeSlots();
+        if (slots != runner.getSlots()) {
+            logger.info("Runner " + runner + " now has " + slots + " slots");
+            runner.updateCapacity(slots, freeSlots);
+            commitScheduler.addRunner(runner);
+        } else {
+            runner.updateCapacity(slots, freeSlots);
+        }
+    }
+
+    // Checks every peer and updates the ring when one leaves or comes back.
+    private void checkPeers() {
+        for (String peer : peers) {
+            Helpers.communicateAsync(DispatcherCluster.host(peer), DispatcherCluster.port(peer),
+                    CommunicationConstants.STATUS_CMD).whenComplete((response, error) -> {
+                        boolean up = error == null && CommunicationConstants.OK_RESPONSE.equals(response);
+                        int misses = up ? 0 : peerMisses.getOrDefault(peer, 0) + 1;
+                        Integer previous = peerMisses.put(peer, misses);
+                        boolean wasUp = previous == null || previous < PEER_MISSES;
+                        if (wasUp && misses == PEER_MISSES) {
+                            logger.info("Peer " + peer + " is down");
+                            updateRing();
+                            Path queue = DATA_ROOT.resolve(dataDirectoryName(peer)).resolve("queue");
+                            scheduler.execute(() -> adoptQueue(peer, queue));
+                        } else if (!wasUp && up) {
+                            logger.info("Peer " + peer + " is back");
+                            updateRing();
+                        }
+                    });
+        }
+    }
+
+    private synchronized void updateRing() {
+        List<String> members = new ArrayList<>();
+        members.add(self);
+        for (String peer : peers) {
+            if (peerMisses.getOrDefault(peer, 0) < PEER_MISSES) {
+                members.add(peer);
+            }
+        }
+        cluster.update(members);
+        logger.info("Dispatchers are now " + cluster);
+    }
+
+    // Takes over the queue a failed peer left in the shared data directory.
+    // Renaming it first means only one dispatcher adopts it, and the peer
+    // starts with an empty queue if it comes back. Without a shared directory
+    // there is nothing to adopt and the peer resumes its queue on restart.
+    private void adoptQueue(String peer, Path queue) {
+        if (!Files.isDirectory(queue)) {
+            return;
+        }
+        Path adopted = dataDir.resolve("adopted-" + dataDirectoryName(peer) + "-" + System.currentTimeMillis());
+        try {
+            Files.move(queue, adopted, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Another dispatcher got there first, or the peer restarted.
+            return;
+        }
+        adoptQueue(adopted);
+    }
+
+    // Routes the commits of an adopted queue as if an observer had sent them,
+    // then deletes it.
+    private void adoptQueue(Path adopted) {
+        try {
+            List<Commit> commits;
+            try (QueueLog log = new QueueLog(adopted)) {
+                CommitScheduler orphaned = new CommitScheduler(scheduler, new CoalescingPolicy(null), null,
+                        PlacementPolicy.create(null), log, null, Integer.MAX_VALUE, Integer.MAX_VALUE);
+                orphaned.recover();
+                commits = orphaned.commits();
+            }
+            logger.info("Adopting " + commits.size() + " commits from " + adopted);
+            List<Commit> local = forward(commits);
+            local.removeIf(this::answerFromCache);
+            for (Commit commit : local) {
+                addCommit(commit);
+            }
+            commitScheduler.sync();
+            try (Stream<Path> files = Files.walk(adopted)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Error adopting queue " + adopted + ": " + e.getMessage());
+        }
+    }
+
+    // Sends commits of other partitions to their owners and returns the ones
+    // to test here. Commits a peer does not take stay here too: any
+    // dispatcher can test any commit, partitions only spread the load.
+    private List<Commit> forward(List<Commit> commits) {
+        Map<String, List<Commit>> byOwner = new LinkedHashMap<>();
+        for (Commit commit : commits) {
+            byOwner.computeIfAbsent(cluster.owner(commit), owner -> new ArrayList<>()).add(commit);
+        }
+        List<Commit> local = byOwner.containsKey(self) ? byOwner.remove(self) : new ArrayList<>();
+        for (Map.Entry<String, List<Commit>> entry : byOwner.entrySet()) {
+            String owner = entry.getKey();
+            String response = Helpers.communicate(DispatcherCluster.host(owner), DispatcherCluster.port(owner),
+                    CommunicationConstants.FORWARD_CMD + ":" + Commit.encodeBatch(entry.getValue()));
+            if (CommunicationConstants.OK_RESPONSE.equals(response)) {
+                logger.info("Forwarded " + entry.getValue().size() + " commit(s) to " + owner);
+                continue;
+            }
+            // An overloaded peer lists the commits it turned away and has the rest.
+            String[] parts = response == null ? new String[0] : response.trim().split(":", 3);
+            Set<String> refused = parts.length == 3 && parts[0].equals(CommunicationConstants.OVERLOADED_RESPONSE)
+                    ? new HashSet<>(Arrays.asList(parts[2].split(","))) : null;
+            int kept = 0;
+            for (Commit commit : entry.getValue()) {
+                if (refused == null || refused.contains(commit.getId())) {
+                    local.add(commit);
+                    kept++;
+                }
+            }
+            logger.warning("Peer " + owner + " did not take " + kept + " of " + entry.getValue().size()
+                    + " commit(s): " + response);
+        }
+        return local;
+    }
+
+    // Records a passing result straight away if a commit with the same tree
+    // already passed. Returns false if the commit has to be tested.
+    private boolean answerFromCache(Commit commit) {
+        if (commit.getTree() == null) {
+            return false;
+        }
+        String cachedCommit = resultCache.lookup(commit.getTree(), candidate -> {
+            try {
+                StoredResult stored = resultStore.lookup(candidate);
+                return stored != null && stored.isPassed();
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        if (cachedCommit == null) {
+            return false;
+        }
+        if (!cachedCommit.equals(commit.getId())) {
+            String output = "Tree " + commit.getTree() + " already passed in commit " + cachedCommit + "\n";
+            try {
+                resultStore.append(new StoredResult(commit.getId(), commit.getRepo(), commit.getBranch(), "cache", true,
+                        System.currentTimeMillis(), 0), new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                logger.warning("Error storing cached result for " + commit + ": " + e.getMessage());
+                return false;
+            }
+        }
+        logger.info("Reusing result of " + cachedCommit + " for commit " + commit);
+        cachedCommits.increment();
+        return true;
+    }
+
+    // Records the results of one shard, whose output is in the spool. Once the
+    // commit's last shard is in, stores the commit's output, merged from its
+    // shards, and completes it.
+    private void storeResults(String taskId, boolean passed, Map<String, Long> testMillis) throws IOException {
+        CommitScheduler.ShardResult shardResult = commitScheduler.completeShard(taskId, passed);
+        if (shardResult == null) {
+            // A late report for a shard that was handed to another runner.
+            logger.info("Ignoring results for " + taskId + ", which is not being tested");
+            resultSpool.delete(taskId);
+            return;
+        }
+        Shard shard = shardResult.getShard();
+        shardPlanner.record(shard, testMillis);
+        if (!shardResult.isCommitDone()) {
+            return;
+        }
+        Commit commit = shard.getCommit();
+        // Each shard's output is that of whichever of its runs reported first.
+        List<String> taskIds = shardResult.getOutputIds();
+        StoredResult result = new StoredResult(commit.getId(), commit.getRepo(), commit.getBranch(),
+                String.join(",", shardResult.getRunners()), shardResult.isCommitPassed(), System.currentTimeMillis(),
+                shardResult.getCommitMillis());
+        List<InputStream> parts = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < taskIds.size(); i++) {
+                if (!shard.isWhole()) {
+                    String header = "=== Shard " + (i + 1) + "/" + shard.getCount() + " on "
+                            + shardResult.getRunners().get(i) + " ===\n";
+                    parts.add(new ByteArrayInputStream(header.getBytes(StandardCharsets.UTF_8)));
+                }
+                parts.add(Files.newInputStream(resultSpool.file(taskIds.get(i))));
+            }
+            resultStore.append(result, new SequenceInputStream(Collections.enumeration(parts)));
+            persistLatency.recordSince(start);
+            if (result.isPassed() && commit.getTree() != null) {
+                resultCache.put(commit.getTree(), commit.getId());
+            }
+        } finally {
+            // The commit is done either way; a failure to store it is reported to the runner.
+            for (InputStream part : parts) {
+                part.close();
+            }
+            for (String partId : taskIds) {
+                resultSpool.delete(partId);
+            }
+            commitScheduler.completeCommit(commit.getId());
+        }
+    }
+
+    private void compactResults() {
+        try {
+            resultStore.compact();
+        } catch (IOException e) {
+            logger.warning("Error compacting results: " + e.getMessage());
+        }
+    }
+
+    // Graceful shutdown.
+    public void shutdown() {
+        dead = true;
+        server.close();
+        scheduler.shutdown();
+        try {
+            queueLog.close();
+            resultStore.close();
+            resultCache.close();
+        } catch (IOException e) {
+            logger.warning("Error closing result store: " + e.getMessage());
+        }
+    }
+
+    // --- Internal Classes ---
+
+    // Handles requests from observers and runners. Runs on the server's worker
+    // threads; uploads and chunks arrive complete, framed by their length.
+    private class DispatcherHandler implements MessageHandler {
+        // A text line: <command>[:<arg>].
+        @Override
+        public String handle(String data) throws IOException {
+            int colon = data.indexOf(':');
+            if (colon == -1) {
+                return handle(data, null);
+            }
+            return handle(data.substring(0, colon), colon + 1 < data.length() ? data.substring(colon + 1) : null);
+        }
+
+        @Override
+        public String handle(String command, String arg) throws IOException {
+            if (CommunicationConstants.STATUS_CMD.equalsIgnoreCase(command)) {
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.STATS_CMD.equalsIgnoreCase(command)) {
+                return commitScheduler.stats() + " " + resultCache.stats();
+            } else if (CommunicationConstants.METRICS_CMD.equalsIgnoreCase(command)) {
+                return Metrics.summary();
+            } else if (CommunicationConstants.REGISTER_CMD.equalsIgnoreCase(command)) {
+                // Expected format: register:host:port[:slots[:repo]], where a runner
+                // naming a repository is only sent commits of that repository.
+                String[] parts = arg == null ? new String[0] : arg.trim().split(":");
+                if (parts.length < 2) {
+                    return "Invalid register command";
+                }
+                String runnerHost = parts[0];
+                int runnerPort = Integer.parseInt(parts[1]);
+                int slots = parts.length >= 3 ? Integer.parseInt(parts[2]) : 1;
+                TestRunnerInfo runner = new TestRunnerInfo(runnerHost, runnerPort, slots);
+                if (parts.length >= 4 && !parts[3].isEmpty()) {
+                    runner.setRepo(parts[3]);
+                }
+                // Runners register when they start, so shards still assigned
+                // to this one were lost with its previous run.
+                commitScheduler.removeRunner(runner);
+                registerTestRunner(runner);
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.HEARTBEAT_CMD.equalsIgnoreCase(command)) {
+                // Expected format: heartbeat:host:port:slots:freeSlots:load[:<taskId>,...[:repo]]
+                String[] parts = arg == null ? new String[0] : arg.trim().split(":", -1);
+                if (parts.length < 5) {
+                    return "Invalid heartbeat command";
+                }
+                TestRunnerInfo runner = new TestRunnerInfo(parts[0], Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]));
+                runner.updateCapacity(runner.getSlots(), Integer.parseInt(parts[3]));
+                if (parts.length >= 7 && !parts[6].isEmpty()) {
+                    runner.setRepo(parts[6]);
+                }
+                Set<String> runningTaskIds = parts.length < 6 ? null
+                        : parts[5].isEmpty() ? Collections.emptySet() : new HashSet<>(Arrays.asList(parts[5].split(",")));
+                heartbeat(runner, Double.parseDouble(parts[4]), runningTaskIds);
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.TOPOLOGY_CMD.equalsIgnoreCase(command)) {
+                // Response: the live dispatchers, <host>:<port>,...
+                return String.join(",", cluster.members());
+            } else if (CommunicationConstants.DISPATCH_CMD.equalsIgnoreCase(command)
+                    || CommunicationConstants.FORWARD_CMD.equalsIgnoreCase(command)) {
+                // Expected format: dispatch:<commitId>, or a batch as described in Commit. A
+                // peer sends forward instead, whose commits are never passed on again, so
+                // dispatchers that briefly disagree on the ring cannot bounce them around.
+                // Answered OK, or overloaded:<retryAfterMillis>:<commitId>,... listing the
+                // commits that did not fit in the queue, for the sender to send again.
+                if (arg == null) {
+                    return "Invalid dispatch command";
+                }
+                List<Commit> commits;
+                try {
+                    commits = Commit.decodeBatch(arg);
+                } catch (IllegalArgumentException e) {
+                    return "Invalid dispatch command";
+                }
+                // Results are indexed by commit ID, so one too long to index could never be stored.
+                commits.removeIf(commit -> {
+                    if (ResultIndex.fits(commit.getId())) {
+                        return false;
+                    }
+                    logger.warning("Dropping commit with an ID longer than " + ResultIndex.MAX_KEY_BYTES
+                            + " bytes: " + commit.getId());
+                    return true;
+                });
+                if (CommunicationConstants.DISPATCH_CMD.equalsIgnoreCase(command) && !peers.isEmpty()) {
+                    commits = forward(commits);
+                }
+                // Commits whose tree already passed need no runner.
+                commits.removeIf(Dispatcher.this::answerFromCache);
+                if (!commits.isEmpty() && runners.isEmpty()) {
+                    return "No runners are registered";
+                }
+                // Turn away what does not fit rather than queue beyond what the runners can work off.
+                List<Commit> refused = new ArrayList<>();
+                long retryAfterMillis = commitScheduler.admit(commits, refused);
+                commits.removeAll(refused);
+                for (Commit commit : commits) {
+                    addCommit(commit);
+                }
+                // Acknowledge only what survives a crash.
+                commitScheduler.sync();
+                if (!refused.isEmpty()) {
+                    commitsRejected.add(refused.size());
+                    logger.warning("Queue full, turning away " + refused.size() + " commit(s); retry in "
+                            + retryAfterMillis + " ms");
+                    StringJoiner ids = new StringJoiner(",");
+                    refused.forEach(commit -> ids.add(commit.getId()));
+                    return CommunicationConstants.OVERLOADED_RESPONSE + ":" + retryAfterMillis + ":" + ids;
+                }
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.RESULTS_CMD.equalsIgnoreCase(command)) {
+                // Expected format: results:<commitId>[:<status>]:<length>:<output>
+                String[] parts = arg == null ? new String[0] : arg.split(":", 4);
+                if (parts.length < 3) {
+                    return "Invalid results command";
+                }
+                String commitId = parts[0];
+                boolean legacy = parts[1].chars().allMatch(Character::isDigit);
+                if (!legacy && parts.length < 4) {
+                    return "Invalid results command";
+                }
+                // Uploads without a status predate failure reporting and count as passed.
+                boolean passed = legacy || CommunicationConstants.PASS_STATUS.equalsIgnoreCase(parts[1]);
+                String resultOutput = legacy ? arg.split(":", 3)[2] : parts[3];
+                resultSpool.write(commitId, resultOutput.getBytes(StandardCharsets.UTF_8));
+                storeResults(commitId, passed, Collections.emptyMap());
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.RESULT_CHUNK_CMD.equalsIgnoreCase(command)) {
+                // Expected format: resultchunk:<commitId>:<byteOffset>:<length>:<data>
+                String[] parts = arg == null ? new String[0] : arg.split(":", 4);
+                if (parts.length < 4) {
+                    return "Invalid resultchunk command";
+                }
+                resultSpool.append(parts[0], Long.parseLong(parts[1]), parts[3]);
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.RESULT_END_CMD.equalsIgnoreCase(command)) {
+                // Expected format: resultend:<taskId>:<status>:<totalBytes>[:<test>=<millis>,...]
+                // where the task ID is the commit ID, or "<commitId>.<shard>" for a shard, and tests
+                // the runner found unaffected by the commit and skipped take -1 ms.
+                String[] parts = arg == null ? new String[0] : arg.trim().split(":");
+                if (parts.length < 3) {
+                    return "Invalid resultend command";
+                }
+                String taskId = parts[0];
+                if (!resultSpool.finish(taskId, Long.parseLong(parts[2]))) {
+                    return "Incomplete results";
+                }
+                Map<String, Long> testMillis = new HashMap<>();
+                if (parts.length >= 4 && !parts[3].isEmpty()) {
+                    for (String test : parts[3].split(",")) {
+                        int eq = test.lastIndexOf('=');
+                        testMillis.put(test.substring(0, eq), Long.parseLong(test.substring(eq + 1)));
+                    }
+                }
+                storeResults(taskId, CommunicationConstants.PASS_STATUS.equalsIgnoreCase(parts[1]), testMillis);
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (CommunicationConstants.TAIL_CMD.equalsIgnoreCase(command)) {
+                // Expected format: tail:<commitId>[:<byteOffset>], or tail:<commitId>.<shard>[:<byteOffset>]
+                // to follow one shard of a split commit while it runs.
+                // Response: <RUNNING|DONE>:<nextOffset>:<base64 data>
+                String[] parts = arg == null ? new String[0] : arg.trim().split(":");
+                if (parts.length < 1) {
+                    return "Invalid tail command";
+                }
+                long offset = parts.length >= 2 ? Long.parseLong(parts[1]) : 0;
+                // Queued commits count as running so a tail can be started before the tests are.
+                boolean running = resultSpool.isRunning(parts[0]) || commitScheduler.isTracked(parts[0]);
+                ByteBuffer output = running ? resultSpool.read(parts[0], offset, TAIL_CHUNK_BYTES)
+                        : resultStore.readOutput(parts[0], offset, TAIL_CHUNK_BYTES);
+                if (output == null) {
+                    output = ByteBuffer.allocate(0);
+                }
+                return (running ? "RUNNING" : "DONE") + ":" + (offset + output.remaining()) + ":"
+                        + StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(output));
+            } else if (CommunicationConstants.RESULT_CMD.equalsIgnoreCase(command)) {
+                // Expected format: result:<commitId>
+                // Response: <PASS|FAIL>:<durationMillis>:<finishedMillis>:<runner>
+                if (arg == null) {
+                    return "Invalid result command";
+                }
+                StoredResult result = resultStore.lookup(arg.trim());
+                if (result == null) {
+                    return "Unknown commit";
+                }
+                return result.getStatus() + ":" + result.getDurationMillis() + ":" + result.getFinishedMillis() + ":"
+                        + result.getRunner();
+            } else if (CommunicationConstants.HISTORY_CMD.equalsIgnoreCase(command)) {
+                // Expected format: history[:<limit>[:<repo>[:<branch>]]]
+                // Response, newest first: <commitId>,<status>,<durationMillis>,<finishedMillis>,<repo>,<branch>;...
+                String[] parts = arg == null ? new String[0] : arg.trim().split(":", 3);
+                int limit = parts.length >= 1 ? Math.min(Integer.parseInt(parts[0]), MAX_HISTORY) : 20;
+                String repo = parts.length >= 2 ? parts[1] : null;
+                String branch = parts.length >= 3 ? parts[2] : null;
+                StringJoiner history = new StringJoiner(";");
+                for (StoredResult result : resultStore.history(limit, repo, branch)) {
+                    history.add(result.getCommitId() + "," + result.getStatus() + "," + result.getDurationMillis() + ","
+                            + result.getFinishedMillis() + "," + result.getRepo() + "," + result.getBranch());
+                }
+                return history.toString();
+            }
+            return "Invalid command";
+        }
+    }
+
+    public static void main(String[] args) {
+        // Branches to coalesce are set with -Dsimpleci.coalesce=<repo:branch,...>, see CoalescingPolicy.
+        String host = "localhost";
+        int port = 8888;
+        if (args.length >= 1) host = args[0];
+        if (args.length >= 2) port = Integer.parseInt(args[1]);
+        try {
+            Dispatcher dispatcher = new Dispatcher(host, port);
+            dispatcher.start();
+        } catch (IOException e) {
+            logger.severe("Error starting dispatcher: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
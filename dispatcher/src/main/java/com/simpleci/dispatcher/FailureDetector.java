@@ -0,0 +1,193 @@
+package com.simpleci.dispatcher;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Decides when a runner has stopped sending heartbeats. Heartbeat intervals
+ * are tracked per runner, and suspicion is the phi accrual value: how
+ * unlikely the current silence is given those intervals, as -log10 of the
+ * probability that a heartbeat is still to come. A runner is suspected once
+ * phi passes the threshold, so one late or dropped heartbeat is tolerated
+ * while a runner that goes silent is noticed quickly.
+ *
+ * Deadlines live in a hashed timing wheel. A heartbeat only records its
+ * arrival; when a runner's bucket comes round, the entry is either moved to
+ * the bucket of its current deadline or, if that has passed, reported. Both
+ * are O(1), and nothing is sent to runners.
+ */
+class FailureDetector {
+    private static final Logger logger = Logger.getLogger(FailureDetector.class.getName());
+
+    // Heartbeat intervals remembered per runner.
+    private static final int WINDOW_SIZE = 100;
+    // Keeps a very regular runner from being suspected on a small hiccup.
+    private static final double MIN_STD_DEV_MILLIS = 200;
+    // Silence tolerated on top of the estimate, e.g. for GC pauses.
+    private static final long ACCEPTABLE_PAUSE_MILLIS = 1000;
+
+    private final long tickMillis;
+    private final double expectedIntervalMillis;
+    // Standard deviations past the mean interval at which phi reaches the threshold.
+    private final double thresholdDeviations;
+    private final Consumer<TestRunnerInfo> onSuspect;
+
+    // All guarded by "this".
+    private final List<Deque<Tracker>> wheel = new ArrayList<>();
+    private final Map<TestRunnerInfo, Tracker> trackers = new HashMap<>();
+    private long ticks = 0;
+
+    FailureDetector(long tickMillis, int wheelSize, long expectedIntervalMillis, double threshold,
+            Consumer<TestRunnerInfo> onSuspect) {
+        this.tickMillis = tickMillis;
+        this.expectedIntervalMillis = expectedIntervalMillis;
+        this.thresholdDeviations = deviationsFor(threshold);
+        this.onSuspect = onSuspect;
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Records a heartbeat, starting to watch the runner if it is new.
+     */
+    synchronized void heartbeat(TestRunnerInfo runner) {
+        long now = System.nanoTime();
+        Tracker tracker = trackers.get(runner);
+        if (tracker == null) {
+            tracker = new Tracker(runner, now);
+            trackers.put(runner, tracker);
+            schedule(tracker);
+            return;
+        }
+        tracker.arrived(now);
+    }
+
+    synchronized void remove(TestRunnerInfo runner) {
+        Tracker tracker = trackers.remove(runner);
+        if (tracker != null) {
+            tracker.removed = true;
+        }
+    }
+
+    synchronized double phi(TestRunnerInfo runner) {
+        Tracker tracker = trackers.get(runner);
+        return tracker == null ? 0 : tracker.phi(System.nanoTime());
+    }
+
+    /**
+     * Advances the wheel by one bucket. Called every tickMillis.
+     */
+    void tick() {
+        List<TestRunnerInfo> suspected = new ArrayList<>();
+        synchronized (this) {
+            Deque<Tracker> bucket = wheel.get((int) (ticks++ % wheel.size()));
+            long now = System.nanoTime();
+            for (int i = bucket.size(); i > 0; i--) {
+                Tracker tracker = bucket.pollFirst();
+                if (tracker.removed) {
+                    continue;
+                }
+                if (tracker.rounds > 0) {
+                    tracker.rounds--;
+                    bucket.addLast(tracker);
+                } else if (tracker.deadline() > now) {
+                    schedule(tracker);
+                } else {
+                    logger.info("Suspecting runner " + tracker.runner + " (phi " + String.format("%.1f", tracker.phi(now))
+                            + ")");
+                    trackers.remove(tracker.runner);
+                    suspected.add(tracker.runner);
+                }
+            }
+        }
+        for (TestRunnerInfo runner : suspected) {
+            onSuspect.accept(runner);
+        }
+    }
+
+    // Puts the tracker in the bucket its current deadline falls in.
+    private void schedule(Tracker tracker) {
+        long remainingTicks = Math.max(1, TimeUnit.NANOSECONDS.toMillis(tracker.deadline() - System.nanoTime())
+                / tickMillis + 1);
+        tracker.rounds = (remainingTicks - 1) / wheel.size();
+        wheel.get((int) ((ticks + remainingTicks - 1) % wheel.size())).addLast(tracker);
+    }
+
+    // Approximates the normal CDF with a logistic curve, as phi accrual
+    // detectors commonly do.
+    private static double phi(double elapsedMillis, double meanMillis, double stdDevMillis) {
+        double y = (elapsedMillis - meanMillis) / stdDevMillis;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return elapsedMillis > meanMillis ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    // Solves phi(mean + z * stdDev) = threshold for z by bisection.
+    private static double deviationsFor(double threshold) {
+        double low = 0;
+        double high = 40;
+        for (int i = 0; i < 100; i++) {
+            double mid = (low + high) / 2;
+            if (phi(mid, 0, 1) < threshold) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+
+    private class Tracker {
+        private final TestRunnerInfo runner;
+        private final long[] intervals = new long[WINDOW_SIZE];
+        private int count = 0;
+        private int next = 0;
+        private double sum = 0;
+        private double sumOfSquares = 0;
+        private long lastNanos;
+        private long rounds;
+        private boolean removed;
+
+        Tracker(TestRunnerInfo runner, long now) {
+            this.runner = runner;
+            this.lastNanos = now;
+        }
+
+        void arrived(long now) {
+            long interval = TimeUnit.NANOSECONDS.toMillis(now - lastNanos);
+            lastNanos = now;
+            if (count == WINDOW_SIZE) {
+                sum -= intervals[next];
+                sumOfSquares -= (double) intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW_SIZE;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+
+        double mean() {
+            return count == 0 ? expectedIntervalMillis : sum / count;
+        }
+
+        double stdDev() {
+            double variance = count == 0 ? 0 : sumOfSquares / count - mean() * mean();
+            return Math.max(MIN_STD_DEV_MILLIS, Math.sqrt(Math.max(0, variance)));
+        }
+
+        double phi(long now) {
+            double elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastNanos) - ACCEPTABLE_PAUSE_MILLIS;
+            return FailureDetector.phi(Math.max(0, elapsed), mean(), stdDev());
+        }
+
+        // When phi will reach the threshold if no heartbeat arrives.
+        long deadline() {
+            double millis = ACCEPTABLE_PAUSE_MILLIS + mean() + thresholdDeviations * stdDev();
+            return lastNanos + TimeUnit.MILLISECONDS.toNanos((long) millis);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Picks the runner a shard of a commit is sent to. Configured with
+ * -Dsimpleci.placement: "affinity" (the default, see
+ * {@link AffinityPlacement}), "roundrobin", or the name of a class with a
+ * no-argument constructor implementing this interface.
+ *
+ * Policies are only called by the {@link CommitScheduler}, under its lock.
+ */
+public interface PlacementPolicy {
+    /**
+     * Returns the runner to test a shard of the commit on, or null if none of
+     * the candidates can. Candidates all have a slot free and come in
+     * round-robin order; assignedSlots tells how many of a runner's slots
+     * this dispatcher has already given work.
+     */
+    TestRunnerInfo choose(Commit commit, List<TestRunnerInfo> candidates,
+            ToIntFunction<TestRunnerInfo> assignedSlots);
+
+    /**
+     * Called when a shard of the commit has been handed to the runner.
+     */
+    default void assigned(Commit commit, TestRunnerInfo runner) {
+    }
+
+    /**
+     * Called when the runner is gone.
+     */
+    default void removed(TestRunnerInfo runner) {
+    }
+
+    /**
+     * Whether the runner can test the commit at all: runners that name their
+     * repository only test that one, and commits without a repository run
+     * anywhere.
+     */
+    static boolean canTest(TestRunnerInfo runner, Commit commit) {
+        return runner.getRepo() == null || Commit.DEFAULT.equals(commit.getRepo())
+                || runner.getRepo().equals(commit.getRepo());
+    }
+
+    static PlacementPolicy create(String name) {
+        if (name == null || name.equals("affinity")) {
+            return new AffinityPlacement();
+        }
+        if (name.equals("roundrobin")) {
+            return (commit, candidates, assignedSlots) -> {
+                for (TestRunnerInfo runner : candidates) {
+                    if (canTest(runner, commit)) {
+                        return runner;
+                    }
+                }
+                return null;
+            };
+        }
+        try {
+            return (PlacementPolicy) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown placement policy " + name, e);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.simpleci.dispatcher;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/**
+ * Write-ahead log of the {@link CommitScheduler}'s queue and assignment
+ * transitions, so a restarted dispatcher resumes with the commits it had
+ * queued and the shards it had handed out.
+ *
+ * Records are appended to an in-memory buffer and written by one flusher
+ * thread, which fsyncs once for everything that arrived while the previous
+ * fsync ran. Callers that must not acknowledge work before it is durable wait
+ * with {@link #awaitDurable}. Each record is framed as
+ * [length][crc32][type][fields]; recovery stops at the first torn record.
+ *
+ * The log lives in numbered segment files. Every SNAPSHOT_RECORDS records the
+ * scheduler writes its whole state as records into a snapshot, the log moves
+ * to a new segment, and older segments are deleted once the snapshot is
+ * durable. Recovery replays the snapshot and then the segments after it.
+ *
+ * A failed write leaves a gap that records after it must not be written
+ * beyond, as a replay would apply them without what came before. Until a
+ * snapshot replaces the log, whose records are the whole state, waiters are
+ * failed and new records dropped; {@link #snapshotDue} asks for one at once.
+ */
+class QueueLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(QueueLog.class.getName());
+
+    private static final int SNAPSHOT_MAGIC = 0x51534e50;
+    private static final long SNAPSHOT_RECORDS = 100000;
+    // Sanity limit on one record, to tell a torn length from a real one.
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    // How long the flusher waits after a failed write before the next.
+    private static final long RETRY_MILLIS = 1000;
+
+    interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    interface Replayer {
+        void apply(byte type, DataInputStream fields) throws IOException;
+    }
+
+    interface State {
+        void write(RecordWriter records) throws IOException;
+    }
+
+    private final Path directory;
+    private final Path snapshotFile;
+    private final Thread flusher;
+
+    // All guarded by "this".
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final RecordWriter records = new RecordWriter();
+    // Sealed buffers and snapshots waiting for the flusher, in order.
+    private final List<Object> queued = new ArrayList<>();
+    private long appended = 0;
+    private long durable = 0;
+    private long recordsSinceSnapshot = 0;
+    private long segment;
+    private boolean closed = false;
+    // The last write error, until a snapshot was written; records up to
+    // lostUpTo were not written and will not be.
+    private IOException failure = null;
+    private long lostUpTo = 0;
+    private int pendingSnapshots = 0;
+
+    // Only touched by the flusher thread after start.
+    private FileChannel channel;
+
+    QueueLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.snapshotFile = directory.resolve("snapshot");
+        Files.createDirectories(directory);
+        this.flusher = new Thread(this::flushLoop, "queue-log-flusher");
+        flusher.setDaemon(true);
+    }
+
+    /**
+     * Feeds the snapshot and every logged record after it to the replayer,
+     * then starts a fresh segment for new records. Returns the number of
+     * records replayed.
+     */
+    long recover(Replayer replayer) throws IOException {
+        long records = 0;
+        long firstSegment = 0;
+        if (Files.exists(snapshotFile)) {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+            if (snapshot.remaining() < 12 || snapshot.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a queue snapshot: " + snapshotFile);
+            }
+            firstSegment = snapshot.getLong();
+            records += replay(snapshot, replayer);
+        }
+        List<Long> segments = segments();
+        long last = firstSegment;
+        for (long number : segments) {
+            if (number < firstSegment) {
+                Files.deleteIfExists(segmentFile(number));
+                continue;
+            }
+            Path file = segmentFile(number);
+            ByteBuffer segmentBytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            records += replay(segmentBytes, replayer);
+            if (segmentBytes.hasRemaining()) {
+                logger.warning("Truncating torn queue log " + file + " at " + segmentBytes.position() + " bytes");
+                try (FileChannel torn = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    torn.truncate(segmentBytes.position());
+                }
+            }
+            last = number;
+        }
+        segment = last + 1;
+        channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        flusher.start();
+        return records;
+    }
+
+    // Applies records from the buffer's position until its end or the first
+    // bad record, where the position is left. Fields are read in place from
+    // one stream over the whole buffer, as allocations per record would
+    // dominate replaying a long queue.
+    private static long replay(ByteBuffer buffer, Replayer replayer) throws IOException {
+        long records = 0;
+        CRC32 crc = new CRC32();
+        SeekableInput input = new SeekableInput(buffer.array());
+        DataInputStream fields = new DataInputStream(input);
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length < 1 || length > MAX_RECORD_BYTES || length > buffer.remaining() - 8) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), start + 8, length);
+            if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+                break;
+            }
+            input.seek(start + 9, start + 8 + length);
+            replayer.apply(buffer.get(start + 8), fields);
+            buffer.position(start + 8 + length);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Appends a record and returns the log position it ends at, for
+     * {@link #awaitDurable}.
+     */
+    synchronized long append(byte type, Fields fields) {
+        records.target = buffer;
+        try {
+            appended += records.write(type, fields);
+        } catch (IOException e) {
+            // Writes to memory do not fail.
+            throw new UncheckedIOException(e);
+        }
+        recordsSinceSnapshot++;
+        notifyAll();
+        return appended;
+    }
+
+    synchronized boolean snapshotDue() {
+        return recordsSinceSnapshot >= SNAPSHOT_RECORDS || failure != null && pendingSnapshots == 0;
+    }
+
+    /**
+     * Captures the state, as the records that rebuild it, and starts a new
+     * segment for the records that follow. Must be called while the state
+     * cannot change; the snapshot file is written by the flusher.
+     */
+    synchronized void snapshot(State state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(segment + 1);
+            records.target = bytes;
+            state.write(records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        queued.add(buffer);
+        queued.add(new Snapshot(segment + 1, bytes.toByteArray()));
+        buffer = new ByteArrayOutputStream();
+        segment++;
+        recordsSinceSnapshot = 0;
+        pendingSnapshots++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until everything appended up to the position is on disk, and
+     * throws if it was lost to a failed write.
+     */
+    synchronized void awaitDurable(long position) throws IOException {
+        while (durable < position && !closed) {
+            if (failure != null && position <= lostUpTo) {
+                throw new IOException("Queue log not written: " + failure.getMessage(), failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    synchronized long position() {
+        return appended;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<Object> work;
+            long upTo;
+            boolean gap;
+            synchronized (this) {
+                while (buffer.size() == 0 && queued.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && buffer.size() == 0 && queued.isEmpty()) {
+                    return;
+                }
+                work = new ArrayList<>(queued);
+                work.add(buffer);
+                queued.clear();
+                buffer = new ByteArrayOutputStream();
+                upTo = appended;
+                gap = failure != null;
+            }
+            int snapshots = 0;
+            int start = 0;
+            for (int i = 0; i < work.size(); i++) {
+                if (work.get(i) instanceof Snapshot) {
+                    snapshots++;
+                    start = i;
+                }
+            }
+            // After a gap only the last snapshot and what follows it may be
+            // written, as it holds everything before.
+            boolean written = !gap || snapshots > 0;
+            IOException error = null;
+            if (written) {
+                try {
+                    for (Object item : work.subList(gap ? start : 0, work.size())) {
+                        if (item instanceof Snapshot) {
+                            rotate((Snapshot) item);
+                        } else {
+                            write(((ByteArrayOutputStream) item).toByteArray());
+                        }
+                    }
+                    channel.force(false);
+                } catch (IOException e) {
+                    logger.severe("Error writing queue log, failing writes until a snapshot: " + e.getMessage());
+                    error = e;
+                }
+            }
+            synchronized (this) {
+                pendingSnapshots -= snapshots;
+                if (written && error == null) {
+                    failure = null;
+                    durable = upTo;
+                } else {
+                    if (error != null) {
+                        failure = error;
+                    }
+                    lostUpTo = upTo;
+                }
+                notifyAll();
+                if (failure != null && !closed) {
+                    try {
+                        wait(RETRY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    // Seals the current segment, writes the snapshot and drops the segments
+    // it replaces.
+    private void rotate(Snapshot snapshot) throws IOException {
+        // Opened first, so a failure leaves a channel to try again with.
+        FileChannel next = FileChannel.open(segmentFile(snapshot.firstSegment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        try {
+            channel.close();
+        } finally {
+            channel = next;
+        }
+        Path temp = directory.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.wrap(snapshot.bytes);
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+            out.force(false);
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long number : segments()) {
+            if (number < snapshot.firstSegment) {
+                Files.deleteIfExists(segmentFile(number));
+            }
+        }
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("wal-%08d.log", number));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Frames records onto a stream, reusing one buffer for their fields.
+     */
+    static class RecordWriter {
+        private final Payload payload = new Payload();
+        private final DataOutputStream fields = new DataOutputStream(payload);
+        private final CRC32 crc = new CRC32();
+        private final byte[] header = new byte[8];
+        private ByteArrayOutputStream target;
+
+        // Returns the bytes written.
+        int write(byte type, Fields recordFields) throws IOException {
+            payload.reset();
+            fields.writeByte(type);
+            recordFields.write(fields);
+            crc.reset();
+            crc.update(payload.bytes(), 0, payload.size());
+            ByteBuffer.wrap(header).putInt(payload.size()).putInt((int) crc.getValue());
+            target.write(header);
+            target.write(payload.bytes(), 0, payload.size());
+            return header.length + payload.size();
+        }
+    }
+
+    private static class Payload extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    // A stream over a byte array that can be pointed at any range of it.
+    private static class SeekableInput extends ByteArrayInputStream {
+        SeekableInput(byte[] bytes) {
+            super(bytes);
+        }
+
+        void seek(int from, int to) {
+            pos = from;
+            count = to;
+        }
+    }
+
+    private static class Snapshot {
+        private final long firstSegment;
+        private final byte[] bytes;
+
+        Snapshot(long firstSegment, byte[] bytes) {
+            this.firstSegment = firstSegment;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.simpleci.dispatcher;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Maps tree hashes to a commit that passed with that tree, so a new commit
+ * with the same code (a merge, revert, rebase or cherry-pick) can reuse the
+ * result instead of being tested again. Only passing results are cached, so
+ * a failure is always re-tested in case it was flaky.
+ *
+ * Keys include a fingerprint of the configured test environment, and
+ * changing it invalidates every entry. The cache holds at most capacity
+ * entries and evicts the least recently used. Entries are appended to a log
+ * file as they are added and replayed on start; the log is rewritten once it
+ * holds twice as many lines as the cache.
+ */
+class ResultCache implements Closeable {
+    private static final Logger logger = Logger.getLogger(ResultCache.class.getName());
+
+    private final Path file;
+    private final int capacity;
+    private final String environment;
+
+    // All guarded by "this".
+    private final LinkedHashMap<String, String> entries;
+    private BufferedWriter log;
+    private int logLines;
+    private long hits = 0;
+    private long misses = 0;
+
+    ResultCache(Path file, int capacity, String environment) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.environment = environment == null || environment.isEmpty() ? "" : fingerprint(environment);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > ResultCache.this.capacity;
+            }
+        };
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ");
+                if (fields.length == 2) {
+                    entries.put(fields[0], fields[1]);
+                }
+            }
+        }
+        rewriteLog();
+    }
+
+    /**
+     * Returns the commit whose passing result can stand in for the tree, or
+     * null. An entry the caller no longer accepts, e.g. because its result has
+     * expired, is dropped and counted as a miss.
+     */
+    synchronized String lookup(String tree, Predicate<String> stillValid) {
+        String key = key(tree);
+        String commitId = entries.get(key);
+        if (commitId != null && !stillValid.test(commitId)) {
+            entries.remove(key);
+            commitId = null;
+        }
+        if (commitId == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return commitId;
+    }
+
+    synchronized void put(String tree, String commitId) {
+        String key = key(tree);
+        entries.put(key, commitId);
+        try {
+            if (logLines >= capacity * 2) {
+                rewriteLog();
+            } else {
+                log.write(key + " " + commitId);
+                log.newLine();
+                log.flush();
+                logLines++;
+            }
+        } catch (IOException e) {
+            logger.warning("Error persisting result cache: " + e.getMessage());
+        }
+    }
+
+    synchronized String stats() {
+        return "cacheHits=" + hits + " cacheMisses=" + misses + " cacheSize=" + entries.size();
+    }
+
+    // Writes the current entries, least recently used first, to a fresh log.
+    private void rewriteLog() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLines = entries.size();
+        log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private String key(String tree) {
+        return environment.isEmpty() ? tree : tree + "/" + environment;
+    }
+
+    private static String fingerprint(String environment) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(environment.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,229 @@
+package com.simpleci.dispatcher;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Memory-mapped hash table from commit ID to the location of its latest
+ * record in the {@link ResultStore}. Slots are fixed size and probed
+ * linearly; the table is rewritten at twice the size once it is 70% full.
+ * Entries are never removed one by one: the store rebuilds the table when
+ * whole segments go away.
+ */
+class ResultIndex implements Closeable {
+    private static final int MAGIC = 0x53434958;
+    private static final int HEADER_BYTES = 16;
+    // state (1), key length (1), unused (2), segment (4), offset (8), key (64)
+    private static final int SLOT_BYTES = 80;
+    static final int MAX_KEY_BYTES = 64;
+    private static final double MAX_LOAD = 0.7;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+
+    private ResultIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Maps an existing index, or returns null if there is none or it is not
+     * one of ours, in which case the caller rebuilds it.
+     */
+    static ResultIndex open(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < HEADER_BYTES) {
+            return null;
+        }
+        ResultIndex index = new ResultIndex(file);
+        index.map(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if (index.map.getInt(0) != MAGIC
+                || Files.size(file) != HEADER_BYTES + (long) index.map.getInt(4) * SLOT_BYTES) {
+            index.close();
+            return null;
+        }
+        index.capacity = index.map.getInt(4);
+        index.count = index.map.getInt(8);
+        return index;
+    }
+
+    static ResultIndex create(Path file, int capacity) throws IOException {
+        ResultIndex index = new ResultIndex(file);
+        index.initialize(file, capacity);
+        return index;
+    }
+
+    private void initialize(Path target, int newCapacity) throws IOException {
+        Files.deleteIfExists(target);
+        FileChannel newChannel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        newChannel.write(ByteBuffer.allocate(1), HEADER_BYTES + (long) newCapacity * SLOT_BYTES - 1);
+        map(newChannel);
+        capacity = newCapacity;
+        count = 0;
+        map.putInt(0, MAGIC);
+        map.putInt(4, capacity);
+        map.putInt(8, count);
+    }
+
+    private void map(FileChannel newChannel) throws IOException {
+        channel = newChannel;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    /**
+     * Returns {segment, offset} for the commit's record, or null.
+     */
+    long[] get(String commitId) {
+        byte[] key = key(commitId);
+        int slot = find(key);
+        if (slot == -1) {
+            return null;
+        }
+        int base = HEADER_BYTES + slot * SLOT_BYTES;
+        return new long[] {map.getInt(base + 4), map.getLong(base + 8)};
+    }
+
+    void put(String commitId, int segment, long offset) throws IOException {
+        byte[] key = key(commitId);
+        int slot = find(key);
+        if (slot == -1) {
+            if (count + 1 > capacity * MAX_LOAD) {
+                grow();
+            }
+            slot = probe(key);
+            count++;
+            map.putInt(8, count);
+        }
+        int base = HEADER_BYTES + slot * SLOT_BYTES;
+        map.put(base + 1, (byte) key.length);
+        map.putInt(base + 4, segment);
+        map.putLong(base + 8, offset);
+        map.put(base + 16, key);
+        // Marked used last, so a torn update never exposes a half-written key.
+        map.put(base, (byte) 1);
+    }
+
+    /**
+     * Calls the visitor with (commitId, {segment, offset}) for every entry.
+     */
+    void forEach(BiConsumer<String, long[]> visitor) {
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = HEADER_BYTES + slot * SLOT_BYTES;
+            if (map.get(base) == 0) {
+                continue;
+            }
+            byte[] key = new byte[map.get(base + 1)];
+            map.get(base + 16, key);
+            visitor.accept(new String(key, StandardCharsets.UTF_8),
+                    new long[] {map.getInt(base + 4), map.getLong(base + 8)});
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Replaces the contents with only the entries the filter keeps.
+     */
+    void retain(BiPredicate<String, long[]> filter) throws IOException {
+        rewrite(capacity, filter);
+    }
+
+    private void grow() throws IOException {
+        rewrite(capacity * 2, (commitId, location) -> true);
+    }
+
+    // Copies the entries into a fresh table and swaps it in atomically.
+    private void rewrite(int newCapacity, BiPredicate<String, long[]> filter) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        ResultIndex rewritten = new ResultIndex(temp);
+        rewritten.initialize(temp, newCapacity);
+        forEach((commitId, location) -> {
+            if (filter.test(commitId, location)) {
+                try {
+                    rewritten.put(commitId, (int) location[0], location[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        rewritten.close();
+        close();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        capacity = newCapacity;
+        count = map.getInt(8);
+    }
+
+    private int find(byte[] key) {
+        int slot = hash(key);
+        while (map.get(HEADER_BYTES + slot * SLOT_BYTES) != 0) {
+            if (matches(slot, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    // First free slot in the key's probe sequence; the table is never full.
+    private int probe(byte[] key) {
+        int slot = hash(key);
+        while (map.get(HEADER_BYTES + slot * SLOT_BYTES) != 0) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return slot;
+    }
+
+    private boolean matches(int slot, byte[] key) {
+        int base = HEADER_BYTES + slot * SLOT_BYTES;
+        if (map.get(base + 1) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (map.get(base + 16 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        return h & (capacity - 1);
+    }
+
+    /**
+     * Whether the commit ID is short enough to be a key.
+     */
+    static boolean fits(String commitId) {
+        return commitId.getBytes(StandardCharsets.UTF_8).length <= MAX_KEY_BYTES;
+    }
+
+    private static byte[] key(String commitId) {
+        byte[] key = commitId.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Commit ID longer than " + MAX_KEY_BYTES + " bytes: " + commitId);
+        }
+        return key;
+    }
+
+    void force() {
+        map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,118 @@
+package com.simpleci.dispatcher;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes streamed test output to disk as it arrives. Each in-progress commit
+ * or shard has an open FileChannel on "<commitId>.txt.part"; chunks are written at
+ * their byte offset, so chunks that overtake each other on different pooled
+ * connections still land in place. Once a commit's output is complete it is
+ * handed to the {@link ResultStore} and the spool file is removed.
+ */
+class ResultSpool {
+    // Upper bound on a single chunk, and so on the buffer it is encoded into.
+    static final int MAX_CHUNK_BYTES = 256 * 1024;
+
+    private final Path directory;
+    private final Map<String, FileChannel> openChannels = new ConcurrentHashMap<>();
+
+    ResultSpool(Path directory) {
+        this.directory = directory;
+    }
+
+    void append(String commitId, long offset, String data) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(data);
+        if (bytes.remaining() > MAX_CHUNK_BYTES) {
+            throw new IOException("Chunk of " + bytes.remaining() + " bytes exceeds " + MAX_CHUNK_BYTES);
+        }
+        FileChannel channel = channel(commitId);
+        while (bytes.hasRemaining()) {
+            offset += channel.write(bytes, offset);
+        }
+    }
+
+    // Spools a whole upload that arrived in one piece.
+    void write(String commitId, byte[] data) throws IOException {
+        FileChannel channel = channel(commitId);
+        ByteBuffer bytes = ByteBuffer.wrap(data);
+        long offset = 0;
+        while (bytes.hasRemaining()) {
+            offset += channel.write(bytes, offset);
+        }
+        channel.truncate(data.length);
+    }
+
+    /**
+     * Completes a commit's output, which is then read from {@link #file}.
+     * Returns false if fewer bytes than the runner reported have arrived. The
+     * commit still counts as running until the file is deleted.
+     */
+    boolean finish(String commitId, long totalBytes) throws IOException {
+        FileChannel channel = channel(commitId);
+        if (channel.size() < totalBytes) {
+            return false;
+        }
+        channel.truncate(totalBytes);
+        return true;
+    }
+
+    void delete(String commitId) throws IOException {
+        FileChannel channel = openChannels.remove(commitId);
+        if (channel != null) {
+            channel.close();
+        }
+        Files.deleteIfExists(file(commitId));
+    }
+
+    boolean isRunning(String commitId) {
+        return openChannels.containsKey(commitId);
+    }
+
+    /**
+     * Reads up to maxBytes of a running commit's output starting at the given
+     * offset. Returns an empty buffer if nothing is there yet.
+     */
+    ByteBuffer read(String commitId, long offset, int maxBytes) throws IOException {
+        Path file = file(commitId);
+        if (!Files.exists(file)) {
+            return ByteBuffer.allocate(0);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long available = Math.max(0, channel.size() - offset);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(available, maxBytes));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) <= 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private FileChannel channel(String commitId) throws IOException {
+        FileChannel channel = openChannels.get(commitId);
+        if (channel != null) {
+            return channel;
+        }
+        synchronized (this) {
+            channel = openChannels.get(commitId);
+            if (channel == null) {
+                Files.createDirectories(directory);
+                channel = FileChannel.open(file(commitId), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                openChannels.put(commitId, channel);
+            }
+            return channel;
+        }
+    }
+
+    Path file(String commitId) {
+        return directory.resolve(commitId + ".txt.part");
+    }
+}
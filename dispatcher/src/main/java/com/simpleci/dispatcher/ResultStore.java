@@ -0,0 +1,463 @@
+package com.simpleci.dispatcher;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/**
+ * Append-only store for test results. Records go to numbered segment files
+ * ("segment-00000001.log"), and a memory-mapped {@link ResultIndex} maps each
+ * commit ID to its latest record, so lookups never list or scan directories.
+ *
+ * A record is laid out as:
+ *
+ *   int magic, int headerLength, UTF commitId, UTF repo, UTF branch,
+ *   UTF runner, byte status, byte flags, long finishedMillis,
+ *   long durationMillis, long outputLength, output, int crc32(output),
+ *   int recordLength
+ *
+ * The trailing length lets history be read newest first by walking back from
+ * the end of the last segment. Output is deflated unless disabled.
+ *
+ * Sealed segments are deleted once all their records are older than the
+ * retention period, and rewritten without superseded or expired records once
+ * less than half of them are still live. On open, the last segment is checked
+ * and cut back to its last complete record, and a missing index is rebuilt
+ * from the segments.
+ */
+public class ResultStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(ResultStore.class.getName());
+
+    private static final int RECORD_MAGIC = 0x53435231;
+    private static final int FLAG_DEFLATED = 1;
+    private static final int TRAILER_BYTES = 8;
+    // Segments are sealed once they grow past this size.
+    static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    // Sealed segments with fewer live records than this fraction are rewritten.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final Path directory;
+    private final long retentionMillis;
+    private final boolean compress;
+
+    // All guarded by "this".
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private final ResultIndex index;
+
+    public ResultStore(Path directory, long retentionMillis, boolean compress) throws IOException {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        this.compress = compress;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Left over from an interrupted compaction; the segment itself is intact.
+                    Files.delete(file);
+                } else if (name.endsWith(".log")) {
+                    int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+                    segments.put(id, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                }
+            }
+        }
+        ResultIndex existing = ResultIndex.open(directory.resolve("index"));
+        if (existing == null) {
+            logger.info("Rebuilding result index in " + directory);
+            index = ResultIndex.create(directory.resolve("index"), INITIAL_INDEX_CAPACITY);
+            for (int segment : segments.keySet()) {
+                recover(segment);
+            }
+        } else {
+            index = existing;
+            if (!segments.isEmpty()) {
+                recover(segments.lastKey());
+            }
+        }
+    }
+
+    // Re-indexes a segment's complete records and drops any torn write at its end.
+    private void recover(int segment) throws IOException {
+        FileChannel channel = segments.get(segment);
+        long position = 0;
+        while (position < channel.size()) {
+            Record record = readRecord(segment, position);
+            if (record == null || !checksumMatches(segment, record)) {
+                logger.warning("Truncating segment " + segment + " at offset " + position);
+                channel.truncate(position);
+                break;
+            }
+            if (ResultIndex.fits(record.result.getCommitId())) {
+                index.put(record.result.getCommitId(), segment, position);
+            } else {
+                // Written before long IDs were turned away; it can never be looked up.
+                logger.warning("Skipping result with an unindexable commit ID in segment " + segment
+                        + " at offset " + position);
+            }
+            position += record.length;
+        }
+    }
+
+    /**
+     * Appends a commit's result, reading its output from the stream, and makes
+     * it the one returned for the commit from now on.
+     */
+    public synchronized void append(StoredResult result, InputStream output) throws IOException {
+        if (!ResultIndex.fits(result.getCommitId())) {
+            throw new IOException("Commit ID longer than " + ResultIndex.MAX_KEY_BYTES + " bytes: "
+                    + result.getCommitId());
+        }
+        int segment = activeSegment();
+        FileChannel channel = segments.get(segment);
+        long start = channel.size();
+        ByteBuffer header = encodeHeader(result, compress ? FLAG_DEFLATED : 0);
+        try {
+            channel.position(start);
+            writeFully(channel, header);
+            long dataStart = channel.position();
+
+            CRC32 crc = new CRC32();
+            OutputStream data = new CheckedOutputStream(Channels.newOutputStream(channel), crc);
+            if (compress) {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                DeflaterOutputStream deflated = new DeflaterOutputStream(data, deflater, 8192);
+                output.transferTo(deflated);
+                deflated.finish();
+                deflater.end();
+            } else {
+                output.transferTo(data);
+            }
+            data.flush();
+            long dataLength = channel.position() - dataStart;
+
+            ByteBuffer length = ByteBuffer.allocate(Long.BYTES).putLong(0, dataLength);
+            channel.write(length, dataStart - Long.BYTES);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            trailer.putInt((int) crc.getValue()).putInt((int) (dataStart + dataLength + TRAILER_BYTES - start)).flip();
+            channel.position(dataStart + dataLength);
+            writeFully(channel, trailer);
+            index.put(result.getCommitId(), segment, start);
+        } catch (IOException | RuntimeException e) {
+            channel.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the latest result stored for the commit, or null.
+     */
+    public synchronized StoredResult lookup(String commitId) throws IOException {
+        Record record = locate(commitId);
+        return record == null ? null : record.result;
+    }
+
+    /**
+     * Reads up to maxBytes of a commit's output starting at the given offset
+     * into the uncompressed output. Returns null if the commit is unknown.
+     */
+    public synchronized ByteBuffer readOutput(String commitId, long offset, int maxBytes) throws IOException {
+        Record record = locate(commitId);
+        if (record == null) {
+            return null;
+        }
+        FileChannel channel = segments.get(record.segment);
+        InputStream data = new BoundedChannelInputStream(channel, record.dataOffset, record.dataLength);
+        if ((record.flags & FLAG_DEFLATED) != 0) {
+            data = new InflaterInputStream(data);
+        }
+        try (InputStream in = data) {
+            in.skipNBytes(offset);
+            return ByteBuffer.wrap(in.readNBytes(maxBytes));
+        } catch (EOFException e) {
+            return ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Returns up to limit results, newest first, optionally only those of one
+     * repository and branch (either may be null for any). Records are walked
+     * back from the end of the log, so only the headers are read.
+     */
+    public synchronized List<StoredResult> history(int limit, String repo, String branch) throws IOException {
+        List<StoredResult> results = new ArrayList<>();
+        for (int segment : segments.descendingKeySet()) {
+            FileChannel channel = segments.get(segment);
+            long end = channel.size();
+            while (end > 0 && results.size() < limit) {
+                ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+                readFully(channel, length, end - Integer.BYTES);
+                long start = end - length.getInt(0);
+                Record record = readRecord(segment, start);
+                if (record == null) {
+                    throw new IOException("Corrupt record in segment " + segment + " before offset " + end);
+                }
+                StoredResult result = record.result;
+                if ((repo == null || repo.equals(result.getRepo()))
+                        && (branch == null || branch.equals(result.getBranch()))) {
+                    results.add(result);
+                }
+                end = start;
+            }
+            if (results.size() >= limit) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Applies retention and compacts sealed segments. Safe to call while the
+     * store is in use; appends wait until it is done.
+     */
+    public synchronized void compact() throws IOException {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        boolean removed = false;
+        int active = segments.isEmpty() ? -1 : segments.lastKey();
+        for (int segment : new ArrayList<>(segments.keySet())) {
+            if (segment == active) {
+                continue;
+            }
+            List<Record> records = new ArrayList<>();
+            FileChannel channel = segments.get(segment);
+            for (long position = 0; position < channel.size(); ) {
+                Record record = readRecord(segment, position);
+                if (record == null) {
+                    break;
+                }
+                records.add(record);
+                position += record.length;
+            }
+            List<Record> live = new ArrayList<>();
+            for (Record record : records) {
+                // A record with an ID too long to index was never live.
+                long[] location = ResultIndex.fits(record.result.getCommitId())
+                        ? index.get(record.result.getCommitId()) : null;
+                if (record.result.getFinishedMillis() >= cutoff && location != null
+                        && location[0] == segment && location[1] == record.offset) {
+                    live.add(record);
+                }
+            }
+            if (live.isEmpty()) {
+                logger.info("Deleting result segment " + segment + " (" + records.size() + " records)");
+                channel.close();
+                segments.remove(segment);
+                Files.delete(segmentFile(segment));
+                removed = true;
+            } else if (live.size() < records.size() * COMPACTION_THRESHOLD) {
+                logger.info("Compacting result segment " + segment + ": keeping " + live.size() + " of "
+                        + records.size() + " records");
+                rewrite(segment, live);
+            }
+        }
+        if (removed) {
+            index.retain((commitId, location) -> segments.containsKey((int) location[0]));
+        }
+        index.force();
+    }
+
+    // Copies the live records into a new file that replaces the segment,
+    // keeping their order, and points the index at their new offsets.
+    private void rewrite(int segment, List<Record> live) throws IOException {
+        FileChannel channel = segments.get(segment);
+        Path temp = directory.resolve(segmentFile(segment).getFileName() + ".tmp");
+        Map<String, Long> offsets = new LinkedHashMap<>();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (Record record : live) {
+                offsets.put(record.result.getCommitId(), out.position());
+                long copied = 0;
+                while (copied < record.length) {
+                    copied += channel.transferTo(record.offset + copied, record.length - copied, out);
+                }
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(temp, segmentFile(segment), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segments.put(segment, FileChannel.open(segmentFile(segment), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            index.put(entry.getKey(), segment, entry.getValue());
+        }
+    }
+
+    private Record locate(String commitId) throws IOException {
+        long[] location = ResultIndex.fits(commitId) ? index.get(commitId) : null;
+        if (location == null || !segments.containsKey((int) location[0])) {
+            return null;
+        }
+        Record record = readRecord((int) location[0], location[1]);
+        if (record == null || !record.result.getCommitId().equals(commitId)) {
+            logger.warning("Result index points at the wrong record for " + commitId);
+            return null;
+        }
+        return record;
+    }
+
+    // Reads the record header at the given offset, or returns null if there is
+    // no complete record there.
+    private Record readRecord(int segment, long offset) throws IOException {
+        FileChannel channel = segments.get(segment);
+        long size = channel.size();
+        if (offset < 0 || offset + Integer.BYTES * 2 > size) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES * 2);
+        readFully(channel, prefix, offset);
+        int headerLength = prefix.getInt(Integer.BYTES);
+        if (prefix.getInt(0) != RECORD_MAGIC || headerLength < prefix.capacity() || offset + headerLength > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        readFully(channel, header, offset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+        in.skipBytes(Integer.BYTES * 2);
+        String commitId = in.readUTF();
+        String repo = in.readUTF();
+        String branch = in.readUTF();
+        String runner = in.readUTF();
+        boolean passed = in.readByte() == 1;
+        int flags = in.readByte();
+        long finishedMillis = in.readLong();
+        long durationMillis = in.readLong();
+        long dataLength = in.readLong();
+        long length = headerLength + dataLength + TRAILER_BYTES;
+        if (dataLength < 0 || offset + length > size) {
+            return null;
+        }
+        ByteBuffer recordLength = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, recordLength, offset + length - Integer.BYTES);
+        if (recordLength.getInt(0) != length) {
+            return null;
+        }
+        StoredResult result = new StoredResult(commitId, repo, branch, runner, passed, finishedMillis, durationMillis);
+        return new Record(segment, offset, length, offset + headerLength, dataLength, flags, result);
+    }
+
+    private boolean checksumMatches(int segment, Record record) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = new BoundedChannelInputStream(segments.get(segment), record.dataOffset,
+                record.dataLength)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        ByteBuffer stored = ByteBuffer.allocate(Integer.BYTES);
+        readFully(segments.get(segment), stored, record.dataOffset + record.dataLength);
+        return stored.getInt(0) == (int) crc.getValue();
+    }
+
+    private static ByteBuffer encodeHeader(StoredResult result, int flags) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(RECORD_MAGIC);
+        out.writeInt(0);
+        out.writeUTF(result.getCommitId());
+        out.writeUTF(result.getRepo());
+        out.writeUTF(result.getBranch());
+        out.writeUTF(result.getRunner());
+        out.writeByte(result.isPassed() ? 1 : 0);
+        out.writeByte(flags);
+        out.writeLong(result.getFinishedMillis());
+        out.writeLong(result.getDurationMillis());
+        out.writeLong(0);
+        ByteBuffer header = ByteBuffer.wrap(bytes.toByteArray());
+        header.putInt(Integer.BYTES, header.capacity());
+        return header;
+    }
+
+    // The segment new records go to, starting a new one when it is full.
+    private int activeSegment() throws IOException {
+        if (segments.isEmpty() || segments.lastEntry().getValue().size() >= SEGMENT_BYTES) {
+            int segment = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            segments.put(segment, FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        return segments.lastKey();
+    }
+
+    private Path segmentFile(int segment) {
+        return directory.resolve(String.format("segment-%08d.log", segment));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.close();
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+    }
+
+    private static class Record {
+        private final int segment;
+        private final long offset;
+        private final long length;
+        private final long dataOffset;
+        private final long dataLength;
+        private final int flags;
+        private final StoredResult result;
+
+        Record(int segment, long offset, long length, long dataOffset, long dataLength, int flags,
+                StoredResult result) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.flags = flags;
+            this.result = result;
+        }
+    }
+
+    // Reads a byte range of a channel with positional reads, leaving the
+    // channel's own position alone.
+    private static class BoundedChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        BoundedChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int read = channel.read(buffer, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
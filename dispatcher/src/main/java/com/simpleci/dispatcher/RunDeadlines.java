@@ -0,0 +1,68 @@
+package com.simpleci.dispatcher;
+
+import java.util.*;
+
+/**
+ * How long shards are expected to run, learned per repository from the
+ * durations of its last WINDOW shards split the same way. A shard is overdue
+ * once it has run SLACK times the PERCENTILE of those durations, and never
+ * before MIN_DEADLINE_MILLIS or before MIN_SAMPLES shards have reported.
+ *
+ * Not thread-safe; the {@link CommitScheduler} uses it under its lock.
+ */
+class RunDeadlines {
+    private static final int WINDOW = 200;
+    private static final int MIN_SAMPLES = 10;
+    private static final double PERCENTILE = 0.95;
+    private static final double SLACK = 1.5;
+    // Below this a second run, which has to check out the commit first,
+    // would rarely finish sooner.
+    private static final long MIN_DEADLINE_MILLIS = 5000;
+
+    private final Map<String, Window> windows = new HashMap<>();
+
+    void record(Shard shard, long millis) {
+        windows.computeIfAbsent(key(shard), key -> new Window()).add(millis);
+    }
+
+    /**
+     * Returns how long the shard may run before it is overdue, or -1 if there
+     * is not enough history to tell.
+     */
+    long deadlineMillis(Shard shard) {
+        Window window = windows.get(key(shard));
+        if (window == null || window.size < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(MIN_DEADLINE_MILLIS, (long) (window.percentile() * SLACK));
+    }
+
+    // A commit split four ways runs each shard about a quarter as long as whole.
+    private static String key(Shard shard) {
+        return shard.getCommit().getRepo() + "/" + shard.getCount();
+    }
+
+    // The last WINDOW durations, with the percentile cached until the next one.
+    private static class Window {
+        private final long[] millis = new long[WINDOW];
+        private int size = 0;
+        private int next = 0;
+        private long percentile = -1;
+
+        void add(long value) {
+            millis[next] = value;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+            percentile = -1;
+        }
+
+        long percentile() {
+            if (percentile == -1) {
+                long[] sorted = Arrays.copyOf(millis, size);
+                Arrays.sort(sorted);
+                percentile = sorted[Math.min(size - 1, (int) (size * PERCENTILE))];
+            }
+            return percentile;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import java.util.*;
+
+/**
+ * The part of a commit's test suite sent to one runner slot. A commit that is
+ * not split is a single shard whose task ID is the commit ID; shard k of a
+ * split commit has the task ID "<commitId>.<k>".
+ *
+ * Runners receive runtest:<commitId> for a whole suite, or
+ * runtest:<commitId>:<shard>:<shardCount>:<include|exclude>:<test>,<test>,...
+ * Shard 0 excludes the tests of the other shards instead of listing its own,
+ * so tests without recorded durations still run exactly once. A dispatcher
+ * that is one of several appends @<host>:<port>, where results are to go.
+ */
+class Shard {
+    static final String INCLUDE = "include";
+    static final String EXCLUDE = "exclude";
+
+    private final Commit commit;
+    private final int index;
+    private final int count;
+    private final boolean exclude;
+    private final List<String> tests;
+
+    Shard(Commit commit, int index, int count, boolean exclude, List<String> tests) {
+        this.commit = commit;
+        this.index = index;
+        this.count = count;
+        this.exclude = exclude;
+        this.tests = tests;
+    }
+
+    static Shard whole(Commit commit) {
+        return new Shard(commit, 0, 1, true, Collections.emptyList());
+    }
+
+    Commit getCommit() {
+        return commit;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isWhole() {
+        return count == 1;
+    }
+
+    boolean isExclude() {
+        return exclude;
+    }
+
+    List<String> getTests() {
+        return tests;
+    }
+
+    String getTaskId() {
+        return isWhole() ? commit.getId() : commit.getId() + "." + index;
+    }
+
+    String runCommand() {
+        String command = CommunicationConstants.RUNT_TEST_CMD + ":" + commit.getId();
+        if (isWhole()) {
+            return command;
+        }
+        return command + ":" + index + ":" + count + ":" + (exclude ? EXCLUDE : INCLUDE) + ":"
+                + String.join(",", tests);
+    }
+
+    @Override
+    public String toString() {
+        return isWhole() ? commit.toString() : commit + " shard " + (index + 1) + "/" + count;
+    }
+}
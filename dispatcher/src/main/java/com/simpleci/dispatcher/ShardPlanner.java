@@ -0,0 +1,142 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.Commit;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Splits commits into shards balanced by how long each test took in past
+ * runs. Durations are reported by runners per repository and test, smoothed,
+ * and persisted to a properties file so they survive restarts.
+ *
+ * Shards are filled longest test first, each test going to the shard with the
+ * least work so far. A commit is only split when there is a recorded suite of
+ * at least two tests and more than one free slot to run the shards on.
+ */
+class ShardPlanner {
+    private static final Logger logger = Logger.getLogger(ShardPlanner.class.getName());
+
+    // Weight of the latest run in a test's duration.
+    private static final double DURATION_SMOOTHING = 0.3;
+
+    private final Path file;
+    private final int maxShards;
+
+    // Repository -> test -> duration in milliseconds, guarded by "this".
+    private final Map<String, Map<String, Long>> durations = new HashMap<>();
+
+    ShardPlanner(Path file, int maxShards) {
+        this.file = file;
+        this.maxShards = maxShards;
+        if (!Files.exists(file)) {
+            return;
+        }
+        Properties saved = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            saved.load(reader);
+        } catch (IOException e) {
+            logger.warning("Error reading test durations: " + e.getMessage());
+            return;
+        }
+        for (String key : saved.stringPropertyNames()) {
+            int slash = key.indexOf('/');
+            if (slash != -1) {
+                durations.computeIfAbsent(key.substring(0, slash), repo -> new HashMap<>())
+                        .put(key.substring(slash + 1), Long.parseLong(saved.getProperty(key)));
+            }
+        }
+    }
+
+    /**
+     * Splits a commit into at most freeSlots shards, or returns it whole.
+     */
+    synchronized List<Shard> plan(Commit commit, int freeSlots) {
+        Map<String, Long> suite = durations.get(commit.getRepo());
+        int count = Math.min(Math.min(maxShards, freeSlots), suite == null ? 0 : suite.size());
+        if (count < 2) {
+            return Collections.singletonList(Shard.whole(commit));
+        }
+        List<Map.Entry<String, Long>> tests = new ArrayList<>(suite.entrySet());
+        tests.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        long[] load = new long[count];
+        List<List<String>> assigned = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            assigned.add(new ArrayList<>());
+        }
+        for (Map.Entry<String, Long> test : tests) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (load[i] < load[lightest]) {
+                    lightest = i;
+                }
+            }
+            load[lightest] += test.getValue();
+            assigned.get(lightest).add(test.getKey());
+        }
+        List<Shard> shards = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            shards.add(new Shard(commit, i, count, false, assigned.get(i)));
+            others.addAll(assigned.get(i));
+        }
+        shards.add(0, new Shard(commit, 0, count, true, others));
+        logger.info("Split " + commit + " into " + count + " shards of about " + load[0] + "ms");
+        return shards;
+    }
+
+    /**
+     * Records the per-test durations a shard reported. A whole-suite run
+     * replaces the known suite, and tests a shard was asked to run but did
+     * not report no longer exist and are forgotten. Tests reported with a
+     * negative duration were skipped and keep their last one.
+     */
+    synchronized void record(Shard shard, Map<String, Long> reported) {
+        if (reported.isEmpty()) {
+            return;
+        }
+        Map<String, Long> suite = durations.computeIfAbsent(shard.getCommit().getRepo(), repo -> new HashMap<>());
+        if (shard.isWhole()) {
+            suite.keySet().retainAll(reported.keySet());
+        } else if (!shard.isExclude()) {
+            for (String test : shard.getTests()) {
+                if (!reported.containsKey(test)) {
+                    suite.remove(test);
+                }
+            }
+        }
+        for (Map.Entry<String, Long> test : reported.entrySet()) {
+            Long previous = suite.get(test.getKey());
+            if (test.getValue() < 0) {
+                if (previous == null) {
+                    // Skipped before it was ever timed; counts as instant until it runs.
+                    suite.put(test.getKey(), 0L);
+                }
+                continue;
+            }
+            suite.put(test.getKey(), previous == null ? test.getValue()
+                    : Math.round(previous + DURATION_SMOOTHING * (test.getValue() - previous)));
+        }
+        save();
+    }
+
+    private void save() {
+        Properties saved = new Properties();
+        for (Map.Entry<String, Map<String, Long>> repo : durations.entrySet()) {
+            for (Map.Entry<String, Long> test : repo.getValue().entrySet()) {
+                saved.setProperty(repo.getKey() + "/" + test.getKey(), Long.toString(test.getValue()));
+            }
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (Writer writer = Files.newBufferedWriter(temp)) {
+                saved.store(writer, "Test durations in milliseconds, by repository/test");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Error saving test durations: " + e.getMessage());
+        }
+    }
+}
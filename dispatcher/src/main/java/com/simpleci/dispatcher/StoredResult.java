@@ -0,0 +1,64 @@
+package com.simpleci.dispatcher;
+
+import com.simpleci.common.CommunicationConstants;
+
+/**
+ * Metadata kept with each commit's output in the {@link ResultStore}.
+ */
+public class StoredResult {
+    private final String commitId;
+    private final String repo;
+    private final String branch;
+    private final String runner;
+    private final boolean passed;
+    private final long finishedMillis;
+    private final long durationMillis;
+
+    public StoredResult(String commitId, String repo, String branch, String runner, boolean passed,
+            long finishedMillis, long durationMillis) {
+        this.commitId = commitId;
+        this.repo = repo;
+        this.branch = branch;
+        this.runner = runner;
+        this.passed = passed;
+        this.finishedMillis = finishedMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public String getRunner() {
+        return runner;
+    }
+
+    public boolean isPassed() {
+        return passed;
+    }
+
+    public String getStatus() {
+        return passed ? CommunicationConstants.PASS_STATUS : CommunicationConstants.FAIL_STATUS;
+    }
+
+    public long getFinishedMillis() {
+        return finishedMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredResult{commit=" + commitId + ", status=" + getStatus() + ", durationMillis=" + durationMillis + "}";
+    }
+}
@@ -0,0 +1,84 @@
+package com.simpleci.dispatcher;
+
+public class TestRunnerInfo {
+    private final String host;
+    private final int port;
+
+    // Capacity as last advertised by the runner on registration or heartbeat.
+    private volatile int slots;
+    private volatile int freeSlots;
+    // System load average reported in the last heartbeat, negative if unknown.
+    private volatile double load = -1;
+    // The repository the runner tests, or null if it takes any.
+    private volatile String repo;
+
+    public TestRunnerInfo(String host, int port) {
+        this(host, port, 1);
+    }
+
+    public TestRunnerInfo(String host, int port, int slots) {
+        this.host = host;
+        this.port = port;
+        this.slots = slots;
+        this.freeSlots = slots;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getFreeSlots() {
+        return freeSlots;
+    }
+
+    public double getLoad() {
+        return load;
+    }
+
+    public void setLoad(double load) {
+        this.load = load;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public void setRepo(String repo) {
+        this.repo = repo;
+    }
+
+    public void updateCapacity(int slots, int freeSlots) {
+        this.slots = slots;
+        this.freeSlots = freeSlots;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TestRunnerInfo)) {
+            return false;
+        }
+        TestRunnerInfo other = (TestRunnerInfo) o;
+        return port == other.port && host.equals(other.host);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * host.hashCode() + port;
+    }
+
+    @Override
+    public String toString() {
+        return "TestRunnerInfo{host=" + host + ", port=" + port + ", slots=" + slots + "}";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,65 @@
+package com.simpleci.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.simpleci.common.Commit;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+class CommitSchedulerRecoveryTest {
+    private static final int COMMITS = 100000;
+
+    @TempDir
+    Path directory;
+
+    private ScheduledExecutorService timer;
+
+    @BeforeEach
+    void startTimer() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void stopTimer() {
+        timer.shutdownNow();
+    }
+
+    private CommitScheduler scheduler(QueueLog log) {
+        return new CommitScheduler(timer, new CoalescingPolicy(null), null, PlacementPolicy.create(null), log, null,
+                Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Test
+    void recoversALongQueueQuickly() throws Exception {
+        List<Commit> queued = new ArrayList<>();
+        try (QueueLog log = new QueueLog(directory)) {
+            CommitScheduler scheduler = scheduler(log);
+            scheduler.recover();
+            for (int i = 0; i < COMMITS; i++) {
+                Commit commit = new Commit("repo" + i % 10, "branch" + i % 100, String.format("%040x", i));
+                queued.add(commit);
+                assertTrue(scheduler.submit(commit));
+            }
+            scheduler.sync();
+        }
+        try (QueueLog log = new QueueLog(directory)) {
+            CommitScheduler scheduler = scheduler(log);
+            // Recovery must not hold up a restarting dispatcher; it takes well
+            // under a second on a laptop, so this leaves plenty of headroom.
+            assertTimeout(Duration.ofSeconds(10), scheduler::recover);
+            assertEquals(COMMITS, scheduler.pendingCount());
+            assertEquals(queued, scheduler.commits());
+        }
+        // Recovery wrote a snapshot, which is what the next restart reads.
+        try (QueueLog log = new QueueLog(directory)) {
+            CommitScheduler scheduler = scheduler(log);
+            scheduler.recover();
+            assertEquals(queued, scheduler.commits());
+            assertEquals(10, scheduler.pendingByRepo().size());
+        }
+    }
+}
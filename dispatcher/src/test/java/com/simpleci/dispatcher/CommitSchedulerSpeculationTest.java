@@ -0,0 +1,125 @@
+package com.simpleci.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.NioServer;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+class CommitSchedulerSpeculationTest {
+    // Enough runs for a deadline, which is then the minimum of 5 s as they are instant.
+    private static final int HISTORY = 10;
+    private static final long WAIT_MILLIS = 15000;
+
+    private ScheduledExecutorService timer;
+    private final List<NioServer> servers = new ArrayList<>();
+
+    @BeforeEach
+    void startTimer() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void stop() {
+        timer.shutdownNow();
+        servers.forEach(NioServer::close);
+    }
+
+    // A runner that takes every command and remembers it.
+    private TestRunnerInfo runner(int slots, BlockingQueue<String> received) throws IOException {
+        NioServer server = new NioServer("runner", "localhost", 0, message -> {
+            received.add(message);
+            return CommunicationConstants.OK_RESPONSE;
+        }, 1, 2);
+        server.start();
+        servers.add(server);
+        return new TestRunnerInfo("localhost", server.getPort(), slots);
+    }
+
+    private static Commit commit(String id) {
+        return new Commit("repo", "branch-" + id, id);
+    }
+
+    // Waits for the next command naming the given task, skipping others.
+    private static void expect(BlockingQueue<String> received, String command) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            String message = received.poll(100, TimeUnit.MILLISECONDS);
+            if (command.equals(message)) {
+                return;
+            }
+        }
+        fail("Runner never received " + command);
+    }
+
+    private static void complete(CommitScheduler scheduler, CommitScheduler.ShardResult result) {
+        assertNotNull(result);
+        assertTrue(result.isCommitDone());
+        scheduler.completeCommit(result.getShard().getCommit().getId());
+    }
+
+    @Test
+    void overdueShardsRunTwiceAndTheLoserIsCancelled() throws Exception {
+        BlockingQueue<String> first = new LinkedBlockingQueue<>();
+        BlockingQueue<String> second = new LinkedBlockingQueue<>();
+        CommitScheduler scheduler = new CommitScheduler(timer);
+        scheduler.addRunner(runner(2, first));
+        for (int i = 0; i < HISTORY; i++) {
+            String id = "warmup" + i;
+            assertTrue(scheduler.submit(commit(id)));
+            complete(scheduler, scheduler.completeShard(id, true));
+        }
+
+        assertTrue(scheduler.submit(commit("c1")));
+        assertTrue(scheduler.submit(commit("c2")));
+        assertEquals(2, scheduler.dispatchedCount());
+        scheduler.addRunner(runner(2, second));
+        // Not yet overdue, so the idle runner is left alone.
+        scheduler.speculate();
+        assertTrue(scheduler.stats().contains(" speculated=0 "), scheduler.stats());
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!scheduler.stats().contains(" speculated=2 ") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            scheduler.speculate();
+        }
+        assertTrue(scheduler.stats().contains(" speculated=2 "), scheduler.stats());
+        // Reruns are numbered in the order they were started, which depends on map order.
+        Map<String, String> reruns = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            String command = second.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(command);
+            String taskId = command.substring(CommunicationConstants.RUNT_TEST_CMD.length() + 1);
+            reruns.put(taskId.substring(0, taskId.indexOf('#')), taskId);
+        }
+        String c1Rerun = reruns.get("c1");
+        String c2Rerun = reruns.get("c2");
+        assertTrue(c1Rerun.matches("c1#[12]"), c1Rerun);
+        assertTrue(c2Rerun.matches("c2#[12]"), c2Rerun);
+        // Each shard is already being run twice.
+        scheduler.speculate();
+        assertTrue(scheduler.stats().contains(" speculated=2 "), scheduler.stats());
+
+        // The rerun of c1 wins: the original is cancelled and its late report ignored.
+        CommitScheduler.ShardResult rerunWon = scheduler.completeShard(c1Rerun, true);
+        assertEquals(Collections.singletonList(c1Rerun), rerunWon.getOutputIds());
+        complete(scheduler, rerunWon);
+        expect(first, CommunicationConstants.CANCEL_CMD + ":c1");
+        assertNull(scheduler.completeShard("c1", false));
+
+        // The original of c2 wins: the rerun is cancelled and its late report ignored.
+        CommitScheduler.ShardResult originalWon = scheduler.completeShard("c2", true);
+        assertEquals(Collections.singletonList("c2"), originalWon.getOutputIds());
+        complete(scheduler, originalWon);
+        expect(second, CommunicationConstants.CANCEL_CMD + ":" + c2Rerun);
+        assertNull(scheduler.completeShard(c2Rerun, false));
+
+        assertEquals(0, scheduler.dispatchedCount());
+        assertFalse(scheduler.isTracked("c1"));
+        assertFalse(scheduler.isTracked("c2"));
+    }
+}
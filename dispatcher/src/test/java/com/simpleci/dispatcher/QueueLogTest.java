@@ -0,0 +1,115 @@
+package com.simpleci.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class QueueLogTest {
+    @TempDir
+    Path directory;
+
+    // Recovers the log and returns its records as "<type>:<text>".
+    private static List<String> recover(QueueLog log) throws IOException {
+        List<String> records = new ArrayList<>();
+        long count = log.recover((type, fields) -> records.add(type + ":" + fields.readUTF()));
+        assertEquals(records.size(), count);
+        return records;
+    }
+
+    private static long append(QueueLog log, int type, String text) {
+        return log.append((byte) type, out -> out.writeUTF(text));
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal-")).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void recordsSurviveARestart() throws IOException {
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Collections.emptyList(), recover(log));
+            append(log, 1, "a");
+            append(log, 2, "b");
+            log.awaitDurable(append(log, 1, "c"));
+        }
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Arrays.asList("1:a", "2:b", "1:c"), recover(log));
+            log.awaitDurable(append(log, 3, "d"));
+        }
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Arrays.asList("1:a", "2:b", "1:c", "3:d"), recover(log));
+        }
+    }
+
+    @Test
+    void snapshotReplacesEarlierSegments() throws IOException {
+        try (QueueLog log = new QueueLog(directory)) {
+            recover(log);
+            append(log, 1, "a");
+            append(log, 1, "b");
+            append(log, 2, "a");
+            // The state those three records leave.
+            log.snapshot(records -> records.write((byte) 1, out -> out.writeUTF("b")));
+            append(log, 1, "c");
+            log.awaitDurable(log.position());
+        }
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Arrays.asList("1:b", "1:c"), recover(log));
+        }
+        assertTrue(Files.exists(directory.resolve("snapshot")));
+        // Only the segment after the snapshot, and the one recovery started.
+        assertEquals(2, segments().size());
+    }
+
+    @Test
+    void tornTailIsTruncated() throws IOException {
+        try (QueueLog log = new QueueLog(directory)) {
+            recover(log);
+            append(log, 1, "a");
+            append(log, 1, "b");
+            log.awaitDurable(append(log, 1, "c"));
+        }
+        Path segment = segments().get(0);
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // As if the process died in the middle of writing the last record.
+            channel.truncate(size - 2);
+        }
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Arrays.asList("1:a", "1:b"), recover(log));
+            log.awaitDurable(append(log, 1, "d"));
+        }
+        assertTrue(Files.size(segment) < size - 2);
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Arrays.asList("1:a", "1:b", "1:d"), recover(log));
+        }
+    }
+
+    @Test
+    void replayStopsAtACorruptRecord() throws IOException {
+        try (QueueLog log = new QueueLog(directory)) {
+            recover(log);
+            append(log, 1, "a");
+            append(log, 1, "b");
+            log.awaitDurable(append(log, 1, "c"));
+        }
+        Path segment = segments().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        // Each record is an 8-byte header, the type and a 3-byte UTF string;
+        // flip a byte in the second one's text.
+        bytes[12 + 11] ^= 1;
+        Files.write(segment, bytes);
+        try (QueueLog log = new QueueLog(directory)) {
+            assertEquals(Collections.singletonList("1:a"), recover(log));
+        }
+    }
+}
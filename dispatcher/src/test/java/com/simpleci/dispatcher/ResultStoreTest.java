@@ -0,0 +1,92 @@
+package com.simpleci.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResultStoreTest {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String LONG_ID = "x".repeat(ResultIndex.MAX_KEY_BYTES + 1);
+
+    @TempDir
+    Path directory;
+
+    private static StoredResult result(String commitId) {
+        return new StoredResult(commitId, "repo", "main", "runner", true, System.currentTimeMillis(), 10);
+    }
+
+    private static InputStream output(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path segment() {
+        return directory.resolve("segment-00000001.log");
+    }
+
+    @Test
+    void commitIdTooLongToIndexIsRefusedBeforeWriting() throws IOException {
+        try (ResultStore store = new ResultStore(directory, DAY_MILLIS, true)) {
+            store.append(result("good"), output("fine"));
+            long size = Files.size(segment());
+            assertThrows(IOException.class, () -> store.append(result(LONG_ID), output("lost")));
+            assertEquals(size, Files.size(segment()));
+            assertNull(store.lookup(LONG_ID));
+        }
+        try (ResultStore store = new ResultStore(directory, DAY_MILLIS, true)) {
+            assertEquals("good", store.lookup("good").getCommitId());
+        }
+    }
+
+    @Test
+    void recoverySkipsARecordItCannotIndex() throws IOException {
+        try (ResultStore store = new ResultStore(directory, DAY_MILLIS, false)) {
+            store.append(result("before"), output("one"));
+        }
+        // As an older version would have written it, before long IDs were turned away.
+        Files.write(segment(), record(LONG_ID, "two"), StandardOpenOption.APPEND);
+        try (ResultStore store = new ResultStore(directory, DAY_MILLIS, false)) {
+            assertEquals("before", store.lookup("before").getCommitId());
+            assertNull(store.lookup(LONG_ID));
+            store.append(result("after"), output("three"));
+        }
+        Files.delete(directory.resolve("index"));
+        try (ResultStore store = new ResultStore(directory, DAY_MILLIS, false)) {
+            assertEquals("before", store.lookup("before").getCommitId());
+            assertEquals("after", store.lookup("after").getCommitId());
+        }
+    }
+
+    // An uncompressed record in the layout described in ResultStore.
+    private static byte[] record(String commitId, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeUTF(commitId);
+        header.writeUTF("repo");
+        header.writeUTF("main");
+        header.writeUTF("runner");
+        header.writeByte(1);
+        header.writeByte(0);
+        header.writeLong(System.currentTimeMillis());
+        header.writeLong(10);
+        header.writeLong(data.length);
+        int headerLength = Integer.BYTES * 2 + headerBytes.size();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x53435231);
+        out.writeInt(headerLength);
+        headerBytes.writeTo(out);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+        out.writeInt(headerLength + data.length + Integer.BYTES * 2);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+package com.simpleci.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.simpleci.common.Commit;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class RunDeadlinesTest {
+    private static final Commit COMMIT = new Commit("repo", "main", "c1");
+    private static final Shard WHOLE = Shard.whole(COMMIT);
+
+    private static Shard shardOf(Commit commit, int count) {
+        return new Shard(commit, 1, count, false, Collections.singletonList("test"));
+    }
+
+    private static void record(RunDeadlines deadlines, Shard shard, long millis, int times) {
+        for (int i = 0; i < times; i++) {
+            deadlines.record(shard, millis);
+        }
+    }
+
+    @Test
+    void noDeadlineUntilEnoughShardsReported() {
+        RunDeadlines deadlines = new RunDeadlines();
+        assertEquals(-1, deadlines.deadlineMillis(WHOLE));
+        record(deadlines, WHOLE, 60000, 9);
+        assertEquals(-1, deadlines.deadlineMillis(WHOLE));
+        deadlines.record(WHOLE, 60000);
+        assertEquals(90000, deadlines.deadlineMillis(WHOLE));
+    }
+
+    @Test
+    void deadlineIsSlackTimesThePercentile() {
+        RunDeadlines deadlines = new RunDeadlines();
+        for (int i = 1; i <= 100; i++) {
+            deadlines.record(WHOLE, i * 1000L);
+        }
+        // The 95th percentile of 1..100 seconds, counting from zero, is the 96th.
+        assertEquals(144000, deadlines.deadlineMillis(WHOLE));
+    }
+
+    @Test
+    void shortRunsGetTheMinimumDeadline() {
+        RunDeadlines deadlines = new RunDeadlines();
+        record(deadlines, WHOLE, 10, 20);
+        assertEquals(5000, deadlines.deadlineMillis(WHOLE));
+    }
+
+    @Test
+    void onlyTheLatestRunsCount() {
+        RunDeadlines deadlines = new RunDeadlines();
+        record(deadlines, WHOLE, 100000, 200);
+        // Ten slow runs are still in the window, the top 5% of it.
+        record(deadlines, WHOLE, 10000, 190);
+        assertEquals(150000, deadlines.deadlineMillis(WHOLE));
+        deadlines.record(WHOLE, 10000);
+        assertEquals(15000, deadlines.deadlineMillis(WHOLE));
+    }
+
+    @Test
+    void deadlinesAreKeptPerRepositoryAndShardCount() {
+        RunDeadlines deadlines = new RunDeadlines();
+        record(deadlines, WHOLE, 60000, 10);
+        record(deadlines, shardOf(COMMIT, 4), 20000, 10);
+        assertEquals(90000, deadlines.deadlineMillis(WHOLE));
+        assertEquals(30000, deadlines.deadlineMillis(shardOf(COMMIT, 4)));
+        // Another commit split the same way shares the history.
+        assertEquals(30000, deadlines.deadlineMillis(shardOf(new Commit("repo", "other", "c2"), 4)));
+        assertEquals(-1, deadlines.deadlineMillis(shardOf(COMMIT, 2)));
+        assertEquals(-1, deadlines.deadlineMillis(Shard.whole(new Commit("other", "main", "c3"))));
+    }
+}
@@ -0,0 +1,162 @@
+package com.simpleci.dispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.simpleci.common.Commit;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardPlannerTest {
+    private static final Commit COMMIT = new Commit("repo", "main", "c1");
+
+    @TempDir
+    Path directory;
+
+    private Path file() {
+        return directory.resolve("durations.properties");
+    }
+
+    private ShardPlanner planner(int maxShards) {
+        return new ShardPlanner(file(), maxShards);
+    }
+
+    // Records a whole-suite run of the repository, which sets the durations outright the first time.
+    private static void recordSuite(ShardPlanner planner, Map<String, Long> durations) {
+        planner.record(Shard.whole(COMMIT), durations);
+    }
+
+    private static Map<String, Long> durations(Object... testsAndMillis) {
+        Map<String, Long> durations = new LinkedHashMap<>();
+        for (int i = 0; i < testsAndMillis.length; i += 2) {
+            durations.put((String) testsAndMillis[i], ((Number) testsAndMillis[i + 1]).longValue());
+        }
+        return durations;
+    }
+
+    // The durations as persisted, by test.
+    private Map<String, Long> saved() throws IOException {
+        Properties saved = new Properties();
+        try (Reader reader = Files.newBufferedReader(file())) {
+            saved.load(reader);
+        }
+        Map<String, Long> durations = new TreeMap<>();
+        for (String key : saved.stringPropertyNames()) {
+            durations.put(key.substring("repo/".length()), Long.parseLong(saved.getProperty(key)));
+        }
+        return durations;
+    }
+
+    @Test
+    void commitWithoutHistoryIsNotSplit() {
+        List<Shard> shards = planner(4).plan(COMMIT, 4);
+        assertEquals(1, shards.size());
+        assertTrue(shards.get(0).isWhole());
+    }
+
+    @Test
+    void fewerThanTwoShardsKeepsTheCommitWhole() {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 100));
+        assertTrue(planner.plan(COMMIT, 4).get(0).isWhole());
+
+        recordSuite(planner, durations("a", 100, "b", 100));
+        assertTrue(planner.plan(COMMIT, 1).get(0).isWhole());
+        assertEquals(1, planner(1).plan(COMMIT, 4).size());
+    }
+
+    @Test
+    void freeSlotsAndMaxShardsCapTheShardCount() {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 50, "b", 40, "c", 30, "d", 20, "e", 10, "f", 5));
+        assertEquals(3, planner.plan(COMMIT, 3).size());
+        assertEquals(4, planner.plan(COMMIT, 10).size());
+        for (Shard shard : planner.plan(COMMIT, 3)) {
+            assertEquals(3, shard.getCount());
+        }
+    }
+
+    @Test
+    void longestTestsAreSpreadOverTheLightestShards() {
+        ShardPlanner planner = planner(4);
+        Map<String, Long> suite = durations("a", 100, "b", 60, "c", 50, "d", 40, "e", 10);
+        recordSuite(planner, suite);
+        List<Shard> shards = planner.plan(COMMIT, 2);
+        assertEquals(2, shards.size());
+
+        // Longest first, each to the shard with the least work: a to 0, b and c to 1, d to 0, e to 1.
+        Shard first = shards.get(0);
+        Shard second = shards.get(1);
+        assertEquals(0, first.getIndex());
+        assertTrue(first.isExclude());
+        assertEquals(1, second.getIndex());
+        assertFalse(second.isExclude());
+        assertEquals(Arrays.asList("b", "c", "e"), second.getTests());
+        // Shard 0 runs whatever the others do not, so it lists their tests to leave out.
+        assertEquals(second.getTests(), first.getTests());
+        assertEquals("c1.1", second.getTaskId());
+    }
+
+    @Test
+    void excludeListCoversEveryOtherShard() {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 80, "b", 70, "c", 60, "d", 50, "e", 40, "f", 30, "g", 20));
+        List<Shard> shards = planner.plan(COMMIT, 4);
+        Set<String> others = new HashSet<>();
+        for (Shard shard : shards.subList(1, shards.size())) {
+            assertFalse(shard.getTests().isEmpty());
+            assertTrue(Collections.disjoint(others, shard.getTests()));
+            others.addAll(shard.getTests());
+        }
+        assertEquals(others, new HashSet<>(shards.get(0).getTests()));
+        assertEquals(shards.get(0).getTests().size(), others.size());
+    }
+
+    @Test
+    void wholeSuiteRunReplacesTheSuite() throws IOException {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 100, "b", 100, "c", 100));
+        recordSuite(planner, durations("a", 100, "d", 100));
+        assertEquals(durations("a", 100, "d", 100), saved());
+        assertEquals(2, planner.plan(COMMIT, 4).size());
+    }
+
+    @Test
+    void durationsAreSmoothed() throws IOException {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 100, "b", 100));
+        recordSuite(planner, durations("a", 200, "b", 100));
+        assertEquals(130, saved().get("a"));
+        assertEquals(100, saved().get("b"));
+    }
+
+    @Test
+    void skippedTestsKeepTheirDuration() throws IOException {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 100, "b", 100));
+        recordSuite(planner, durations("a", -1, "b", 100, "new", -1));
+        assertEquals(durations("a", 100, "b", 100, "new", 0), saved());
+    }
+
+    @Test
+    void testsAShardDidNotReportAreForgotten() throws IOException {
+        ShardPlanner planner = planner(4);
+        recordSuite(planner, durations("a", 100, "b", 60, "c", 50, "d", 40, "e", 10));
+        List<Shard> shards = planner.plan(COMMIT, 2);
+
+        // Shard 1 ran b, c and e; c is gone from the suite.
+        planner.record(shards.get(1), durations("b", 60, "e", 10));
+        // Shard 0 ran everything else; an exclude list says nothing about what it should have run.
+        planner.record(shards.get(0), durations("a", 100));
+        assertEquals(durations("a", 100, "b", 60, "d", 40, "e", 10), saved());
+    }
+
+    @Test
+    void durationsSurviveARestart() {
+        recordSuite(planner(4), durations("a", 100, "b", 60, "c", 50, "d", 40, "e", 10));
+        List<Shard> shards = planner(4).plan(COMMIT, 2);
+        assertEquals(Arrays.asList("b", "c", "e"), shards.get(1).getTests());
+    }
+}
@@ -0,0 +1,283 @@
+package com.simpleci.observer;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.Metrics;
+import com.simpleci.helpers.DispatcherCluster;
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Watches any number of repositories and branches for new commits. Ref changes
+ * are picked up through a WatchService on the git directories, with periodic
+ * polling as a fallback where watching is unavailable. Commits detected close
+ * together are sent to the dispatcher as one batch.
+ *
+ * With several dispatchers, the observer learns them from the one it is given
+ * and sends each branch's commits straight to the dispatcher owning it.
+ *
+ * Commits a dispatcher turns away as overloaded or fails to take, or that
+ * reach no dispatcher, are kept and sent again after an exponential backoff, or later if the
+ * dispatcher asked for that. At most "simpleci.observer.maxBuffered" commits
+ * are kept; beyond that the oldest are dropped.
+ */
+public class Observer {
+    private static final Logger logger = Logger.getLogger(Observer.class.getName());
+    private static final Metrics.Histogram detectLatency = Metrics.histogram("simpleci_detect_millis",
+            "Time to scan a repository for new commits");
+    private static final Metrics.Histogram sendLatency = Metrics.histogram("simpleci_send_millis",
+            "Time for the dispatcher to accept a batch of commits");
+    private static final Metrics.Counter commitsDetected = Metrics.counter("simpleci_commits_detected_total",
+            "New commits found in watched repositories");
+    private static final Metrics.Counter sendRetries = Metrics.counter("simpleci_send_retries_total",
+            "Times commits were kept to be sent again after a dispatcher turned them away");
+    private static final Metrics.Counter commitsDropped = Metrics.counter("simpleci_commits_dropped_total",
+            "Commits given up on because too many were waiting to be sent");
+
+    // How long to keep collecting detections before sending them as one batch.
+    private static final long BATCH_WINDOW_MILLIS = 200;
+    // Rescan interval when some repository cannot be watched.
+    private static final long POLL_INTERVAL_SECONDS = 5;
+    // Rescan interval as a safety net for missed watch events.
+    private static final long SAFETY_POLL_SECONDS = 60;
+    // How often the dispatchers are asked who is live.
+    private static final long TOPOLOGY_REFRESH_SECONDS = 30;
+    // Bounds of the wait before sending turned-away commits again.
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    private static final int MAX_BUFFERED = Integer.getInteger("simpleci.observer.maxBuffered", 10000);
+
+    private final List<WatchedRepo> repos = new ArrayList<>();
+    private final DispatcherCluster dispatchers;
+
+    // Scans, batching and sending all run on this single thread.
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Commits waiting to be sent, turned-away ones first.
+    private final List<Commit> batch = new ArrayList<>();
+    // The current backoff, 0 while dispatchers take what they are sent.
+    private long backoffMillis = 0;
+    private final Map<WatchKey, WatchedRepo> watchKeys = new ConcurrentHashMap<>();
+    private WatchService watchService;
+
+    public Observer(String repoPath, String dispatcherHost, int dispatcherPort) throws IOException {
+        this(Collections.singletonMap(repoPath, Collections.emptyList()), dispatcherHost, dispatcherPort);
+    }
+
+    /**
+     * Watches each repository path for the listed branches; an empty list
+     * follows whatever the repository's HEAD points to.
+     */
+    public Observer(Map<String, List<String>> repoBranches, String dispatcherHost, int dispatcherPort)
+            throws IOException {
+        for (Map.Entry<String, List<String>> entry : repoBranches.entrySet()) {
+            repos.add(new WatchedRepo(entry.getKey(), entry.getValue()));
+        }
+        this.dispatchers = new DispatcherCluster(Collections.singletonList(dispatcherHost + ":" + dispatcherPort));
+    }
+
+    // Sends each dispatcher the commits of its partition. A dispatcher that
+    // cannot be reached is dropped until the next topology refresh, and its
+    // commits go to the new owner. Commits to send again are added to unsent;
+    // returns the longest wait a dispatcher asked for, or 0.
+    private long sendCommits(List<Commit> commits, List<Commit> unsent) {
+        long retryAfterMillis = 0;
+        Map<String, List<Commit>> byOwner = new LinkedHashMap<>();
+        for (Commit commit : commits) {
+            byOwner.computeIfAbsent(dispatchers.owner(commit), owner -> new ArrayList<>()).add(commit);
+        }
+        for (Map.Entry<String, List<Commit>> entry : byOwner.entrySet()) {
+            String dispatcher = entry.getKey();
+            String command = CommunicationConstants.DISPATCH_CMD + ":" + Commit.encodeBatch(entry.getValue());
+            long start = System.nanoTime();
+            String response = Helpers.communicate(DispatcherCluster.host(dispatcher),
+                    DispatcherCluster.port(dispatcher), command);
+            sendLatency.recordSince(start);
+            if (response == null && dispatchers.members().size() > 1) {
+                dispatchers.markDown(dispatcher);
+                retryAfterMillis = Math.max(retryAfterMillis, sendCommits(entry.getValue(), unsent));
+                continue;
+            }
+            String overloaded = CommunicationConstants.OVERLOADED_RESPONSE + ":";
+            String error = CommunicationConstants.ERROR_RESPONSE + ":";
+            if (response == null || response.startsWith(overloaded) || response.startsWith(error)) {
+                // The dispatcher may have taken part of the batch and listed the rest. One that
+                // failed, as when it could not log them durably, may have lost any of them.
+                String[] parts = response == null || response.startsWith(error) ? new String[0]
+                        : response.trim().split(":", 3);
+                Set<String> refused = parts.length == 3 ? new HashSet<>(Arrays.asList(parts[2].split(","))) : null;
+                int kept = 0;
+                for (Commit commit : entry.getValue()) {
+                    if (refused == null || refused.contains(commit.getId())) {
+                        unsent.add(commit);
+                        kept++;
+                    }
+                }
+                if (parts.length >= 2) {
+                    try {
+                        retryAfterMillis = Math.max(retryAfterMillis, Long.parseLong(parts[1]));
+                    } catch (NumberFormatException e) {
+                        // Back off as for an unreachable dispatcher.
+                    }
+                }
+                logger.warning("Dispatcher " + dispatcher + (response == null ? " unreachable"
+                        : response.startsWith(error) ? " failed (" + response + ")" : " overloaded")
+                        + "; keeping " + kept + " of " + entry.getValue().size() + " commit(s) to send again");
+                continue;
+            }
+            logger.info("Dispatcher " + dispatcher + " response for " + entry.getValue().size() + " commit(s): "
+                    + response);
+        }
+        return retryAfterMillis;
+    }
+
+    // Runs on the scheduler thread.
+    private void scan(WatchedRepo repo) {
+        long start = System.nanoTime();
+        List<Commit> commits = repo.scan();
+        detectLatency.recordSince(start);
+        if (commits.isEmpty()) {
+            return;
+        }
+        commitsDetected.add(commits.size());
+        for (Commit commit : commits) {
+            logger.info("New commit detected: " + commit);
+        }
+        // While backing off a flush is already scheduled.
+        if (batch.isEmpty()) {
+            scheduler.schedule(this::flush, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        batch.addAll(commits);
+        if (batch.size() > MAX_BUFFERED) {
+            int dropped = batch.size() - MAX_BUFFERED;
+            logger.warning("Dropping the " + dropped + " oldest commit(s) not yet sent; dispatchers are not "
+                    + "keeping up");
+            commitsDropped.add(dropped);
+            batch.subList(0, dropped).clear();
+        }
+    }
+
+    private void scanAll() {
+        for (WatchedRepo repo : repos) {
+            scan(repo);
+        }
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Commit> commits = new ArrayList<>(batch);
+        batch.clear();
+        List<Commit> unsent = new ArrayList<>();
+        long retryAfterMillis = sendCommits(commits, unsent);
+        if (unsent.isEmpty()) {
+            backoffMillis = 0;
+            return;
+        }
+        batch.addAll(unsent);
+        sendRetries.increment();
+        backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+        long delay = Math.max(retryAfterMillis, backoffMillis);
+        // Jitter keeps observers turned away together from all coming back together.
+        delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+        scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns false if some repository could not be watched.
+    private boolean registerWatches() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warning("File watching unavailable, falling back to polling: " + e.getMessage());
+            return false;
+        }
+        boolean complete = true;
+        for (WatchedRepo repo : repos) {
+            for (Path dir : repo.watchDirectories()) {
+                try {
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    watchKeys.put(key, repo);
+                } catch (IOException e) {
+                    logger.warning("Unable to watch " + dir + ", polling instead: " + e.getMessage());
+                    complete = false;
+                }
+            }
+        }
+        return complete;
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            WatchedRepo repo = watchKeys.get(key);
+            key.pollEvents();
+            if (!key.reset()) {
+                watchKeys.remove(key);
+            }
+            if (repo != null) {
+                scheduler.execute(() -> scan(repo));
+            }
+        }
+    }
+
+    public void start() {
+        boolean watching = registerWatches();
+        if (watchService != null) {
+            Thread watcher = new Thread(this::watch, "observer-watch");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        long pollInterval = watching ? SAFETY_POLL_SECONDS : POLL_INTERVAL_SECONDS;
+        logger.info("Watching " + repos + (watching ? "" : ", polling every " + pollInterval + "s"));
+        scheduler.scheduleWithFixedDelay(this::scanAll, 0, pollInterval, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (dispatchers.refresh()) {
+                logger.fine("Dispatchers: " + dispatchers);
+            }
+        }, 0, TOPOLOGY_REFRESH_SECONDS, TimeUnit.SECONDS);
+        // Read without the scheduler thread; a stale size does for a gauge.
+        Metrics.gauge("simpleci_commits_buffered", "Commits detected and not yet accepted by a dispatcher",
+                () -> Collections.singletonMap("", (double) batch.size()));
+        Metrics.startExport(scheduler);
+    }
+
+    public static void main(String[] args) {
+        // Expected args: <repoPath>[=branch,...] <dispatcherHost> <dispatcherPort> [<repoPath>[=branch,...] ...]
+        if (args.length < 3) {
+            System.out.println("Usage: java com.simpleci.observer.Observer <repoPath>[=branch,...] <dispatcherHost> "
+                    + "<dispatcherPort> [<repoPath>[=branch,...] ...]");
+            System.exit(1);
+        }
+        Map<String, List<String>> repoBranches = new LinkedHashMap<>();
+        List<String> repoArgs = new ArrayList<>();
+        repoArgs.add(args[0]);
+        repoArgs.addAll(Arrays.asList(args).subList(3, args.length));
+        for (String repoArg : repoArgs) {
+            int eq = repoArg.indexOf('=');
+            if (eq == -1) {
+                repoBranches.put(repoArg, Collections.emptyList());
+            } else {
+                repoBranches.put(repoArg.substring(0, eq), Arrays.asList(repoArg.substring(eq + 1).split(",")));
+            }
+        }
+        String dispatcherHost = args[1];
+        int dispatcherPort = Integer.parseInt(args[2]);
+        try {
+            Observer observer = new Observer(repoBranches, dispatcherHost, dispatcherPort);
+            observer.start();
+        } catch (IOException e) {
+            logger.severe("Error starting observer: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.simpleci.observer;
+
+import com.simpleci.common.Commit;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * A repository watched by the Observer. Branch heads are read straight from the
+ * loose ref files and packed-refs instead of forking git; git is only run to
+ * list new commits and their tree hashes once a branch has moved.
+ */
+class WatchedRepo {
+    private static final Logger logger = Logger.getLogger(WatchedRepo.class.getName());
+
+    // Upper bound on commits reported for one branch move, e.g. a large merge.
+    private static final int MAX_NEW_COMMITS = 100;
+    private static final String HEAD = "HEAD";
+    private static final String HEADS_PREFIX = "refs/heads/";
+
+    private final String name;
+    private final File repoDir;
+    private final Path gitDir;
+    private final Path commonDir;
+    private final List<String> branches;
+    private final Map<String, String> lastSeen = new HashMap<>();
+
+    /**
+     * Watches the given branches, or whatever HEAD points to if none are given.
+     */
+    WatchedRepo(String repoPath, List<String> branches) throws IOException {
+        this.repoDir = new File(repoPath).getAbsoluteFile();
+        this.name = Commit.sanitize(repoDir.getName());
+        this.gitDir = resolveGitDir(repoDir.toPath());
+        Path commondir = gitDir.resolve("commondir");
+        this.commonDir = Files.exists(commondir) ? gitDir.resolve(read(commondir)).normalize() : gitDir;
+        this.branches = branches;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // A linked worktree has a .git file pointing at its real git directory.
+    private static Path resolveGitDir(Path repoDir) throws IOException {
+        Path dotGit = repoDir.resolve(".git");
+        if (Files.isDirectory(dotGit)) {
+            return dotGit;
+        }
+        if (Files.isRegularFile(dotGit)) {
+            String content = read(dotGit);
+            if (content.startsWith("gitdir:")) {
+                return repoDir.resolve(content.substring("gitdir:".length()).trim()).normalize();
+            }
+        }
+        throw new IOException(repoDir + " is not a git repository");
+    }
+
+    /**
+     * Directories whose changes can move a watched ref: the git directories
+     * (HEAD, packed-refs) and the directories holding the loose branch refs.
+     */
+    Set<Path> watchDirectories() {
+        Set<Path> directories = new LinkedHashSet<>();
+        directories.add(gitDir);
+        directories.add(commonDir);
+        directories.add(commonDir.resolve("refs/heads"));
+        for (String branch : branches) {
+            Path dir = commonDir.resolve(HEADS_PREFIX + branch).getParent();
+            while (!Files.isDirectory(dir) && dir.startsWith(commonDir)) {
+                dir = dir.getParent();
+            }
+            directories.add(dir);
+        }
+        directories.removeIf(dir -> !Files.isDirectory(dir));
+        return directories;
+    }
+
+    /**
+     * Re-reads the watched refs and returns commits not reported before, oldest
+     * first. The first time a branch is seen only its head is reported.
+     */
+    List<Commit> scan() {
+        List<Commit> commits = new ArrayList<>();
+        List<String> watched = branches.isEmpty() ? Collections.singletonList(HEAD) : branches;
+        for (String branch : watched) {
+            String label = branch;
+            String head;
+            try {
+                if (branch.equals(HEAD)) {
+                    String target = symbolicTarget(gitDir.resolve(HEAD));
+                    if (target != null && target.startsWith(HEADS_PREFIX)) {
+                        label = target.substring(HEADS_PREFIX.length());
+                    }
+                    head = resolve(HEAD);
+                } else {
+                    head = resolve(HEADS_PREFIX + branch);
+                }
+            } catch (IOException e) {
+                logger.warning("Error reading " + branch + " in " + repoDir + ": " + e.getMessage());
+                continue;
+            }
+            if (head == null) {
+                continue;
+            }
+            String previous = lastSeen.put(branch, head);
+            if (head.equals(previous)) {
+                continue;
+            }
+            // Each entry is {commitId, treeHash}; the tree is null if git could not be asked.
+            List<String[]> found = previous == null ? commits(head, 1) : commits(previous + ".." + head, MAX_NEW_COMMITS);
+            if (found.isEmpty()) {
+                found = Collections.singletonList(new String[] {head, null});
+            }
+            for (String[] commit : found) {
+                commits.add(new Commit(name, Commit.sanitize(label), commit[0], commit[1]));
+            }
+        }
+        return commits;
+    }
+
+    // Resolves a ref to a commit ID, following symbolic refs, or null if it does not exist.
+    private String resolve(String ref) throws IOException {
+        for (int depth = 0; depth < 5; depth++) {
+            Path loose = (ref.equals(HEAD) ? gitDir : commonDir).resolve(ref);
+            String value = Files.isRegularFile(loose) ? read(loose) : packedRef(ref);
+            if (value == null || !value.startsWith("ref:")) {
+                return value;
+            }
+            ref = value.substring("ref:".length()).trim();
+        }
+        return null;
+    }
+
+    private static String symbolicTarget(Path file) throws IOException {
+        String value = Files.isRegularFile(file) ? read(file) : null;
+        return value != null && value.startsWith("ref:") ? value.substring("ref:".length()).trim() : null;
+    }
+
+    private String packedRef(String ref) throws IOException {
+        Path packed = commonDir.resolve("packed-refs");
+        if (!Files.isRegularFile(packed)) {
+            return null;
+        }
+        for (String line : Files.readAllLines(packed, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.startsWith("^")) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space != -1 && line.substring(space + 1).equals(ref)) {
+                return line.substring(0, space);
+            }
+        }
+        return null;
+    }
+
+    // Lists up to max commits of a revision range with their tree hashes,
+    // oldest first, or nothing if git fails.
+    private List<String[]> commits(String range, int max) {
+        try {
+            ProcessBuilder pb = new ProcessBuilder("git", "log", "--reverse", "--max-count=" + max,
+                    "--format=%H %T", range);
+            pb.directory(repoDir);
+            Process process = pb.start();
+            List<String[]> commits = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length == 2) {
+                        commits.add(fields);
+                    }
+                }
+            }
+            if (process.waitFor() == 0) {
+                return commits;
+            }
+        } catch (IOException | InterruptedException e) {
+            logger.warning("Error listing new commits in " + repoDir + ": " + e.getMessage());
+        }
+        return Collections.emptyList();
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+    @Override
+    public String toString() {
+        return name + (branches.isEmpty() ? "" : branches.toString());
+    }
+}
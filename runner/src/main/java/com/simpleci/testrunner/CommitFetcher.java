@@ -0,0 +1,69 @@
+package com.simpleci.testrunner;
+
+import com.simpleci.common.Metrics;
+import java.io.*;
+import java.util.logging.*;
+
+/**
+ * Brings commits into the runner's repository before they are checked out.
+ * A commit that is already there costs one object lookup. A missing one is
+ * fetched from origin by id, or with all of origin's branches if the remote
+ * does not serve single commits; a shallow clone is fetched shallow so it
+ * stays small. Fetches run one at a time, as they contend for the same ref
+ * locks and pack files.
+ */
+class CommitFetcher {
+    private static final Logger logger = Logger.getLogger(CommitFetcher.class.getName());
+    private static final Metrics.Histogram fetchLatency = Metrics.histogram("simpleci_fetch_millis",
+            "Time to fetch a commit missing from the runner's repository");
+
+    private final File repo;
+    private final boolean hasOrigin;
+    private final boolean shallow;
+
+    CommitFetcher(String repoPath) throws IOException {
+        this.repo = new File(repoPath);
+        this.hasOrigin = Git.output(repo, "config", "--get", "remote.origin.url") != null;
+        this.shallow = "true".equals(Git.output(repo, "rev-parse", "--is-shallow-repository"));
+    }
+
+    /**
+     * Returns true once the commit is in the repository.
+     */
+    boolean ensure(String commit) throws IOException {
+        if (has(commit)) {
+            return true;
+        }
+        if (!hasOrigin) {
+            return false;
+        }
+        synchronized (this) {
+            // Another slot may have fetched it meanwhile.
+            if (has(commit)) {
+                return true;
+            }
+            long start = System.nanoTime();
+            boolean fetched = commit.matches("[0-9a-f]{4,40}") && fetch(commit) && has(commit)
+                    || fetch(null) && has(commit);
+            fetchLatency.recordSince(start);
+            if (!fetched) {
+                logger.warning("Unable to fetch commit " + commit + " from origin");
+            }
+            return fetched;
+        }
+    }
+
+    private boolean has(String commit) throws IOException {
+        return Git.run(repo, "cat-file", "-e", commit + "^{commit}");
+    }
+
+    // Fetches one commit, or every branch of origin if commit is null.
+    private boolean fetch(String commit) throws IOException {
+        if (commit == null) {
+            return shallow ? Git.run(repo, "fetch", "--quiet", "--depth=1", "origin")
+                    : Git.run(repo, "fetch", "--quiet", "origin");
+        }
+        return shallow ? Git.run(repo, "fetch", "--quiet", "--depth=1", "origin", commit)
+                : Git.run(repo, "fetch", "--quiet", "origin", commit);
+    }
+}
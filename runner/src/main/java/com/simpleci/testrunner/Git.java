@@ -0,0 +1,54 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs git commands in a directory of the runner's repository.
+ */
+final class Git {
+    private Git() {
+    }
+
+    // Returns whether the command succeeded, discarding its output.
+    static boolean run(File directory, String... args) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command(args));
+        pb.directory(directory);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        Process process = pb.start();
+        try {
+            return process.waitFor() == 0;
+        } catch (InterruptedException e) {
+            // The task was cancelled; don't leave git running in its worktree.
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Returns the command's trimmed output, or null if it failed.
+    static String output(File directory, String... args) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command(args));
+        pb.directory(directory);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process = pb.start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+        }
+        try {
+            return process.waitFor() == 0 ? output : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static String[] command(String... args) {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        return command;
+    }
+}
@@ -0,0 +1,403 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.regex.*;
+
+/**
+ * Picks the tests a commit can affect, so that tests which already passed and
+ * depend on nothing that changed are not run again.
+ *
+ * A test is skipped only if it passed on an ancestor of the commit and none of
+ * the files it depends on changed since. Dependencies come from a static index
+ * of the repository's Java sources: a file depends on the files named like the
+ * capitalized identifiers it mentions, and on what those depend on. Names are
+ * cached by blob ID, so each version of a file is read once and a new commit
+ * only costs its changed files. The cache and the last passing commit of each
+ * test are kept on disk across restarts.
+ *
+ * A change to any other kind of file, e.g. a build file, runs every test that
+ * last passed before it, unless its path matches "simpleci.impact.ignore".
+ * Every "simpleci.impact.fullEvery"-th selection runs everything, in case the
+ * index misses a dependency such as one through reflection.
+ */
+class ImpactIndex {
+    private static final Logger logger = Logger.getLogger(ImpactIndex.class.getName());
+
+    private static final Pattern NAME = Pattern.compile("\\b[A-Z][A-Za-z0-9_]*\\b");
+    private static final String SOURCE_SUFFIX = ".java";
+    private static final String DEFAULT_IGNORE = "{*.md,**/*.md,*.txt,**/*.txt}";
+    // Ancestors diffed per selection; tests that last passed on others run.
+    private static final int MAX_BASES = 4;
+    // Cached blobs beyond this many times those of the last tree are dropped.
+    private static final int CACHE_SLACK = 2;
+
+    private final File repo;
+    private final Path namesFile;
+    private final Path passedFile;
+    private final int fullRunEvery;
+    private final PathMatcher ignored;
+
+    // All guarded by "this".
+    // Blob ID -> capitalized identifiers in it.
+    private final Map<String, Set<String>> namesByBlob = new HashMap<>();
+    // Test -> commit it last passed on.
+    private final Map<String, String> lastPassed = new HashMap<>();
+    private Writer namesOut;
+    private int selections = 0;
+    // The dependency graph of the last commit selected for, which its other
+    // shards reuse.
+    private String graphCommit;
+    private Graph graph;
+
+    ImpactIndex(String repoPath, Path directory, int fullRunEvery) throws IOException {
+        this.repo = new File(repoPath);
+        this.namesFile = directory.resolve("names");
+        this.passedFile = directory.resolve("passed");
+        this.fullRunEvery = fullRunEvery;
+        this.ignored = FileSystems.getDefault()
+                .getPathMatcher("glob:" + System.getProperty("simpleci.impact.ignore", DEFAULT_IGNORE));
+        Files.createDirectories(directory);
+        if (Files.exists(namesFile)) {
+            for (String line : Files.readAllLines(namesFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ");
+                namesByBlob.put(fields[0], new HashSet<>(Arrays.asList(fields).subList(1, fields.length)));
+            }
+        }
+        if (Files.exists(passedFile)) {
+            Properties saved = new Properties();
+            try (Reader reader = Files.newBufferedReader(passedFile)) {
+                saved.load(reader);
+            }
+            for (String test : saved.stringPropertyNames()) {
+                lastPassed.put(test, saved.getProperty(test));
+            }
+        }
+        namesOut = Files.newBufferedWriter(namesFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Chooses which of the candidate tests to run for a commit and why.
+     */
+    synchronized Selection select(String commit, List<String> candidates) throws IOException {
+        Selection selection = new Selection(candidates);
+        selections++;
+        if (fullRunEvery > 0 && selections % fullRunEvery == 0) {
+            selection.runAll("periodic full run");
+            return selection;
+        }
+        // Tests are compared against the commit they last passed on, the most
+        // common of those first.
+        Map<String, List<String>> byBase = new HashMap<>();
+        for (String test : candidates) {
+            String base = lastPassed.get(test);
+            if (base == null) {
+                selection.run(test, "no earlier pass");
+            } else {
+                byBase.computeIfAbsent(base, b -> new ArrayList<>()).add(test);
+            }
+        }
+        List<Map.Entry<String, List<String>>> bases = new ArrayList<>(byBase.entrySet());
+        bases.sort((a, b) -> b.getValue().size() - a.getValue().size());
+        for (int i = 0; i < bases.size(); i++) {
+            String base = bases.get(i).getKey();
+            List<String> tests = bases.get(i).getValue();
+            String reason = null;
+            Map<String, String> affected = null;
+            if (i >= MAX_BASES) {
+                reason = "last passed on " + shortId(base) + ", too far behind";
+            } else if (!base.equals(commit) && !Git.run(repo, "merge-base", "--is-ancestor", base, commit)) {
+                reason = "last passed on " + shortId(base) + ", not an ancestor";
+            } else {
+                List<String> changed = changedPaths(base, commit);
+                String other = null;
+                for (String path : changed) {
+                    if (!path.endsWith(SOURCE_SUFFIX) && !ignored.matches(Paths.get(path))) {
+                        other = path;
+                        break;
+                    }
+                }
+                if (other != null) {
+                    reason = other + " changed since " + shortId(base);
+                } else {
+                    affected = graph(commit).affected(changed);
+                }
+            }
+            for (String test : tests) {
+                if (reason != null) {
+                    selection.run(test, reason);
+                } else if (affected.containsKey(test)) {
+                    selection.run(test, affected.get(test) + " since " + shortId(base));
+                } else {
+                    selection.skip(test, base);
+                }
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Records the outcome of the tests run for a commit. A failed test runs
+     * again next time, whatever changed.
+     */
+    synchronized void record(String commit, Map<String, Boolean> passed) {
+        for (Map.Entry<String, Boolean> test : passed.entrySet()) {
+            if (test.getValue()) {
+                lastPassed.put(test.getKey(), commit);
+            } else {
+                lastPassed.remove(test.getKey());
+            }
+        }
+        Properties saved = new Properties();
+        saved.putAll(lastPassed);
+        Path temp = passedFile.resolveSibling(passedFile.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp)) {
+                saved.store(writer, "Commit each test last passed on");
+            }
+            Files.move(temp, passedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Error saving test passes: " + e.getMessage());
+        }
+    }
+
+    private List<String> changedPaths(String base, String commit) throws IOException {
+        if (base.equals(commit)) {
+            return Collections.emptyList();
+        }
+        // Without rename detection a move lists both paths.
+        String output = Git.output(repo, "diff", "--name-only", "--no-renames", base, commit);
+        if (output == null) {
+            throw new IOException("Unable to diff " + base + " and " + commit);
+        }
+        return output.isEmpty() ? Collections.emptyList() : Arrays.asList(output.split("\n"));
+    }
+
+    private Graph graph(String commit) throws IOException {
+        if (!commit.equals(graphCommit)) {
+            graph = new Graph(sources(commit));
+            graphCommit = commit;
+        }
+        return graph;
+    }
+
+    // The commit's Java sources, by path, with the names each mentions.
+    private Map<String, Set<String>> sources(String commit) throws IOException {
+        String listing = Git.output(repo, "ls-tree", "-r", "--full-tree", commit);
+        if (listing == null) {
+            throw new IOException("Unable to list the files of " + commit);
+        }
+        Map<String, String> blobs = new HashMap<>();
+        for (String line : listing.split("\n")) {
+            // <mode> blob <id>\t<path>
+            int tab = line.indexOf('\t');
+            if (tab != -1 && line.endsWith(SOURCE_SUFFIX) && line.startsWith("blob ", line.indexOf(' ') + 1)) {
+                blobs.put(line.substring(tab + 1), line.substring(line.lastIndexOf(' ', tab) + 1, tab));
+            }
+        }
+        List<String> missing = new ArrayList<>();
+        for (String blob : blobs.values()) {
+            if (!namesByBlob.containsKey(blob)) {
+                missing.add(blob);
+            }
+        }
+        if (namesByBlob.size() + missing.size() > CACHE_SLACK * Math.max(blobs.size(), 1000)) {
+            compact(new HashSet<>(blobs.values()));
+        }
+        readNames(missing);
+        Map<String, Set<String>> sources = new HashMap<>();
+        for (Map.Entry<String, String> source : blobs.entrySet()) {
+            sources.put(source.getKey(), namesByBlob.get(source.getValue()));
+        }
+        return sources;
+    }
+
+    // Reads the blobs in one git process and caches the names in them.
+    private void readNames(List<String> blobs) throws IOException {
+        if (blobs.isEmpty()) {
+            return;
+        }
+        Process process = new ProcessBuilder("git", "cat-file", "--batch").directory(repo)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        // Written from another thread, as git answers while it reads.
+        Thread writer = new Thread(() -> {
+            try (Writer in = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+                for (String blob : blobs) {
+                    in.write(blob + "\n");
+                }
+            } catch (IOException e) {
+                // Seen as a short read below.
+            }
+        }, "impact-index-writer");
+        writer.start();
+        try (DataInputStream out = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+            for (String blob : blobs) {
+                // <id> blob <size>\n<content>\n
+                String header = readLine(out);
+                String[] fields = header.split(" ");
+                if (fields.length != 3) {
+                    throw new IOException("Unable to read blob " + blob + ": " + header);
+                }
+                byte[] content = new byte[Integer.parseInt(fields[2])];
+                out.readFully(content);
+                out.readByte();
+                Set<String> names = new HashSet<>();
+                Matcher matcher = NAME.matcher(new String(content, StandardCharsets.UTF_8));
+                while (matcher.find()) {
+                    names.add(matcher.group());
+                }
+                namesByBlob.put(blob, names);
+                namesOut.write(blob + (names.isEmpty() ? "" : " " + String.join(" ", names)) + "\n");
+            }
+        } finally {
+            namesOut.flush();
+            process.destroy();
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new EOFException("Unexpected end of git cat-file output");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Keeps only the names of the given blobs, on disk as well.
+    private void compact(Set<String> keep) throws IOException {
+        namesByBlob.keySet().retainAll(keep);
+        namesOut.close();
+        Path temp = namesFile.resolveSibling(namesFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Set<String>> entry : namesByBlob.entrySet()) {
+                writer.write(entry.getKey() + (entry.getValue().isEmpty() ? "" : " "
+                        + String.join(" ", entry.getValue())) + "\n");
+            }
+        }
+        Files.move(temp, namesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        namesOut = Files.newBufferedWriter(namesFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static String shortId(String commit) {
+        return commit.length() > 8 ? commit.substring(0, 8) : commit;
+    }
+
+    // "src/main/Foo.java" -> "Foo"
+    private static String typeName(String path) {
+        String file = path.substring(path.lastIndexOf('/') + 1);
+        return file.substring(0, file.length() - SOURCE_SUFFIX.length());
+    }
+
+    // Which sources mention which names, for one commit.
+    private static class Graph {
+        private final Map<String, List<String>> mentionedBy = new HashMap<>();
+        private final Set<String> paths;
+
+        Graph(Map<String, Set<String>> sources) {
+            this.paths = sources.keySet();
+            for (Map.Entry<String, Set<String>> source : sources.entrySet()) {
+                String self = typeName(source.getKey());
+                for (String name : source.getValue()) {
+                    if (!name.equals(self)) {
+                        mentionedBy.computeIfAbsent(name, n -> new ArrayList<>()).add(source.getKey());
+                    }
+                }
+            }
+        }
+
+        // The sources a change to the given paths can affect, each with the
+        // reason: changed itself, or the changed file it depends on.
+        Map<String, String> affected(List<String> changed) {
+            Map<String, String> affected = new HashMap<>();
+            Deque<String[]> queue = new ArrayDeque<>();
+            for (String path : changed) {
+                if (!path.endsWith(SOURCE_SUFFIX)) {
+                    continue;
+                }
+                // A deleted file still affects what mentioned it.
+                if (paths.contains(path)) {
+                    affected.putIfAbsent(path, "changed");
+                }
+                queue.add(new String[] {typeName(path), path});
+            }
+            Set<String> seen = new HashSet<>();
+            while (!queue.isEmpty()) {
+                String[] next = queue.poll();
+                if (!seen.add(next[0])) {
+                    continue;
+                }
+                for (String path : mentionedBy.getOrDefault(next[0], Collections.emptyList())) {
+                    if (!affected.containsKey(path)) {
+                        affected.put(path, "depends on " + next[1]);
+                        queue.add(new String[] {typeName(path), next[1]});
+                    }
+                }
+            }
+            return affected;
+        }
+    }
+
+    /**
+     * The tests chosen to run, in the candidates' order, each with why, and
+     * the ones skipped.
+     */
+    static class Selection {
+        private final List<String> candidates;
+        private final Map<String, String> reasons = new HashMap<>();
+        // Ancestor -> tests skipped because they passed on it.
+        private final Map<String, List<String>> skipped = new TreeMap<>();
+
+        Selection(List<String> candidates) {
+            this.candidates = candidates;
+        }
+
+        void run(String test, String reason) {
+            reasons.put(test, reason);
+        }
+
+        void runAll(String reason) {
+            for (String test : candidates) {
+                reasons.put(test, reason);
+            }
+        }
+
+        void skip(String test, String base) {
+            skipped.computeIfAbsent(base, b -> new ArrayList<>()).add(test);
+        }
+
+        boolean runs(String test) {
+            return reasons.containsKey(test);
+        }
+
+        List<String> getSkipped() {
+            List<String> tests = new ArrayList<>();
+            skipped.values().forEach(tests::addAll);
+            return tests;
+        }
+
+        /**
+         * Lines for the test output saying what runs and why.
+         */
+        String describe() {
+            StringBuilder text = new StringBuilder("Selected " + reasons.size() + " of " + candidates.size()
+                    + " tests\n");
+            for (String test : candidates) {
+                if (reasons.containsKey(test)) {
+                    text.append("SELECT ").append(test).append(": ").append(reasons.get(test)).append('\n');
+                }
+            }
+            for (Map.Entry<String, List<String>> base : skipped.entrySet()) {
+                text.append("Skipped ").append(base.getValue().size()).append(" tests unaffected since they passed on ")
+                        .append(shortId(base.getKey())).append('\n');
+            }
+            return text.toString();
+        }
+    }
+}
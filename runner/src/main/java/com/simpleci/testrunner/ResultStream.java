@@ -0,0 +1,146 @@
+package com.simpleci.testrunner;
+
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.helpers.Helpers;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Streams the test output of a commit, or of one shard of it, to the
+ * dispatcher while the tests run. Output is buffered up to CHUNK_BYTES and
+ * sent as "resultchunk" frames of at most that many bytes, tagged with their
+ * byte offset; a periodic flush keeps the live tail fresh. Once every chunk
+ * is acknowledged, "resultend" reports the status and total length.
+ */
+class ResultStream {
+    private static final Logger logger = Logger.getLogger(ResultStream.class.getName());
+
+    static final int CHUNK_BYTES = 64 * 1024;
+    private static final int SEND_ATTEMPTS = 3;
+
+    private final String dispatcherHost;
+    private final int dispatcherPort;
+    private final String taskId;
+
+    // Guarded by "this".
+    private final StringBuilder buffer = new StringBuilder();
+    private int bufferedBytes = 0;
+    private long offset = 0;
+    private final Map<Long, String> unacknowledged = new HashMap<>();
+    private final List<CompletableFuture<Void>> sends = new ArrayList<>();
+
+    ResultStream(String dispatcherHost, int dispatcherPort, String taskId) {
+        this.dispatcherHost = dispatcherHost;
+        this.dispatcherPort = dispatcherPort;
+        this.taskId = taskId;
+    }
+
+    synchronized void write(String text) {
+        buffer.append(text);
+        bufferedBytes += StandardCharsets.UTF_8.encode(text).remaining();
+        if (bufferedBytes >= CHUNK_BYTES) {
+            flush();
+        }
+    }
+
+    // Sends whatever is buffered, in chunks of at most CHUNK_BYTES, without
+    // waiting for the acks. One write can buffer more than that, and the
+    // dispatcher refuses chunks over its own limit.
+    synchronized void flush() {
+        int start = 0;
+        while (start < buffer.length()) {
+            int end = start;
+            int bytes = 0;
+            while (end < buffer.length()) {
+                int codePoint = buffer.codePointAt(end);
+                int size = utf8Bytes(codePoint);
+                if (bytes + size > CHUNK_BYTES) {
+                    break;
+                }
+                bytes += size;
+                end += Character.charCount(codePoint);
+            }
+            send(buffer.substring(start, end), bytes);
+            start = end;
+        }
+        buffer.setLength(0);
+        bufferedBytes = 0;
+    }
+
+    private void send(String data, int bytes) {
+        long chunkOffset = offset;
+        offset += bytes;
+        unacknowledged.put(chunkOffset, data);
+        sends.add(sendChunk(chunkOffset, data).thenAccept(response -> {
+            if (CommunicationConstants.OK_RESPONSE.equals(response)) {
+                synchronized (this) {
+                    unacknowledged.remove(chunkOffset);
+                }
+            }
+        }).exceptionally(error -> null));
+    }
+
+    // Encoded size of a code point; an unpaired surrogate encodes as '?'.
+    private static int utf8Bytes(int codePoint) {
+        if (codePoint < 0x80 || codePoint <= 0xFFFF && Character.isSurrogate((char) codePoint)) {
+            return 1;
+        }
+        return codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+
+    private CompletableFuture<String> sendChunk(long chunkOffset, String data) {
+        return Helpers.communicateAsync(dispatcherHost, dispatcherPort, CommunicationConstants.RESULT_CHUNK_CMD + ":"
+                + taskId + ":" + chunkOffset + ":" + data.length() + ":" + data);
+    }
+
+    /**
+     * Flushes the rest of the output, resends any chunk that was not
+     * acknowledged, and reports the final status along with how long each
+     * test took. Returns the dispatcher's response to "resultend", or null if
+     * it could not be reached.
+     */
+    String finish(String status, Map<String, Long> testMillis) {
+        List<CompletableFuture<Void>> pending;
+        synchronized (this) {
+            flush();
+            pending = new ArrayList<>(sends);
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        Map<Long, String> missing;
+        long totalBytes;
+        synchronized (this) {
+            missing = new TreeMap<>(unacknowledged);
+            totalBytes = offset;
+        }
+        for (Map.Entry<Long, String> chunk : missing.entrySet()) {
+            if (!resend(chunk.getKey(), chunk.getValue())) {
+                logger.warning("Giving up on results chunk at offset " + chunk.getKey() + " for " + taskId);
+                return null;
+            }
+        }
+        StringJoiner durations = new StringJoiner(",");
+        for (Map.Entry<String, Long> test : testMillis.entrySet()) {
+            durations.add(test.getKey() + "=" + test.getValue());
+        }
+        return Helpers.communicate(dispatcherHost, dispatcherPort, CommunicationConstants.RESULT_END_CMD + ":" + taskId
+                + ":" + status + ":" + totalBytes + (durations.length() == 0 ? "" : ":" + durations));
+    }
+
+    private boolean resend(long chunkOffset, String data) {
+        for (int attempt = 0; attempt < SEND_ATTEMPTS; attempt++) {
+            try {
+                if (CommunicationConstants.OK_RESPONSE.equals(sendChunk(chunkOffset, data).get())) {
+                    return true;
+                }
+            } catch (ExecutionException e) {
+                logger.warning("Error resending results chunk for " + taskId + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+}
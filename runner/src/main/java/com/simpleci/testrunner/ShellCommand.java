@@ -0,0 +1,130 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a build or test command through the shell, streaming its stdout and
+ * stderr into a commit's output as they are written.
+ */
+final class ShellCommand {
+    // Exit code reported for a command that ran out of time.
+    static final int TIMED_OUT = -1;
+    // How often the processes the command started are looked up.
+    private static final long POLL_MILLIS = 100;
+    // How long output may keep coming after the command exited.
+    private static final long DRAIN_MILLIS = 5000;
+    private static final boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
+    // Where available, commands run in a session of their own, so that all
+    // they started can be killed at once.
+    private static final boolean SETSID = !WINDOWS && new File("/usr/bin/setsid").canExecute();
+
+    private ShellCommand() {
+    }
+
+    /**
+     * Quotes a value so the shell passes it to the command as one word, as
+     * it is, whatever characters it holds.
+     */
+    static String quote(String value) {
+        if (WINDOWS) {
+            // cmd has no escape for '"' or '%' inside quotes; test names never hold them.
+            return "\"" + value + "\"";
+        }
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Runs the command in the directory and returns its exit code, or
+     * TIMED_OUT. The command and everything it started are killed on timeout,
+     * or when the calling thread is interrupted, which is then rethrown.
+     */
+    static int run(File directory, String command, ResultStream output, long timeoutMillis)
+            throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(WINDOWS ? new String[] {"cmd", "/c", command}
+                : SETSID ? new String[] {"setsid", "sh", "-c", command} : new String[] {"sh", "-c", command});
+        pb.directory(directory);
+        Process process = pb.start();
+        process.getOutputStream().close();
+        Thread stdout = pump(process.getInputStream(), output, "");
+        Thread stderr = pump(process.getErrorStream(), output, "[stderr] ");
+        // Children that outlive the command are no longer its descendants
+        // once it exits, so they are noted while it runs.
+        Set<ProcessHandle> started = new HashSet<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (!process.waitFor(Math.min(POLL_MILLIS,
+                    TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), TimeUnit.MILLISECONDS)) {
+                process.descendants().forEach(started::add);
+                if (System.nanoTime() - deadline >= 0) {
+                    kill(process, started);
+                    drain(process, stdout, stderr, started);
+                    output.write("Timed out after " + timeoutMillis + " ms: " + command + "\n");
+                    return TIMED_OUT;
+                }
+            }
+            drain(process, stdout, stderr, started);
+        } catch (InterruptedException e) {
+            kill(process, started);
+            throw e;
+        }
+        return process.exitValue();
+    }
+
+    // Waits for the rest of the command's output. A child left running in
+    // the background may hold the pipes open for good, so after a while it
+    // is killed and the pipes are closed.
+    private static void drain(Process process, Thread stdout, Thread stderr, Set<ProcessHandle> started)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        stdout.join(DRAIN_MILLIS);
+        stderr.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        if (stdout.isAlive() || stderr.isAlive()) {
+            kill(process, started);
+            try {
+                process.getInputStream().close();
+                process.getErrorStream().close();
+            } catch (IOException e) {
+                // Closed already.
+            }
+        }
+    }
+
+    private static void kill(Process process, Set<ProcessHandle> started) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        started.forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        if (SETSID) {
+            // The command leads a process group of its own, which its children
+            // stay in even when they are orphaned.
+            try {
+                new ProcessBuilder("kill", "-KILL", "--", "-" + process.pid()).redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD).start()
+                        .waitFor(DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                // Nothing else left to kill it with.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Copies a stream to the output line by line on its own thread, so that
+    // neither pipe fills up and blocks the command.
+    private static Thread pump(InputStream in, ResultStream output, String prefix) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                    output.write(prefix + line + "\n");
+                }
+            } catch (IOException e) {
+                // The process was killed.
+            }
+        }, "command-output");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
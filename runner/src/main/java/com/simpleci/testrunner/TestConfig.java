@@ -0,0 +1,110 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * How a repository's tests are built and run. Read from ".simpleci.properties"
+ * at the root of each checked-out commit, so every repository and even every
+ * commit can bring its own, with "simpleci.<key>" system properties taking
+ * precedence:
+ *
+ *   build.command        run in the worktree before the tests, e.g. "mvn -q test-compile"
+ *   test.command         run per test, with {test} replaced by the test's path
+ *                        and {class} by its class name, each already quoted
+ *                        for the shell
+ *   test.classpath       instead of test.command: where to load test classes from
+ *                        in a warm {@link WorkerPool} JVM, as entries relative to
+ *                        the worktree separated like a class path; "dir/*" adds
+ *                        the jars in dir
+ *   test.timeoutSeconds  longest a test, or the build, may run; 600 by default
+ *
+ * Without test.command or test.classpath the tests are only simulated.
+ */
+class TestConfig {
+    static final String FILE_NAME = ".simpleci.properties";
+    private static final long DEFAULT_TIMEOUT_SECONDS = 600;
+
+    private final File worktree;
+    private final Properties properties = new Properties();
+
+    private TestConfig(File worktree) {
+        this.worktree = worktree;
+    }
+
+    static TestConfig load(File worktree) throws IOException {
+        TestConfig config = new TestConfig(worktree);
+        File file = new File(worktree, FILE_NAME);
+        if (file.exists()) {
+            try (Reader reader = Files.newBufferedReader(file.toPath())) {
+                config.properties.load(reader);
+            }
+        }
+        return config;
+    }
+
+    private String get(String key) {
+        String value = System.getProperty("simpleci." + key, properties.getProperty(key));
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    String getBuildCommand() {
+        return get("build.command");
+    }
+
+    boolean isSimulated() {
+        return get("test.command") == null && get("test.classpath") == null;
+    }
+
+    boolean usesWorkers() {
+        return get("test.classpath") != null;
+    }
+
+    String getTestCommand(String test, String className) {
+        return get("test.command").replace("{test}", ShellCommand.quote(test))
+                .replace("{class}", ShellCommand.quote(className));
+    }
+
+    /**
+     * The test class path as absolute entries, with wildcards expanded.
+     */
+    List<String> getClasspath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : get("test.classpath").split(File.pathSeparator)) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            if (entry.endsWith("/*") || entry.equals("*")) {
+                File directory = new File(worktree, entry.substring(0, entry.length() - 1));
+                File[] jars = directory.listFiles((dir, name) -> name.endsWith(".jar"));
+                if (jars != null) {
+                    Arrays.sort(jars);
+                    for (File jar : jars) {
+                        entries.add(jar.getAbsolutePath());
+                    }
+                }
+            } else {
+                entries.add(new File(worktree, entry).getAbsolutePath());
+            }
+        }
+        return entries;
+    }
+
+    long getTimeoutMillis() throws IOException {
+        String seconds = get("test.timeoutSeconds");
+        if (seconds == null) {
+            return 1000 * DEFAULT_TIMEOUT_SECONDS;
+        }
+        try {
+            long value = Long.parseLong(seconds);
+            if (value > 0 && value <= Long.MAX_VALUE / 1000) {
+                return 1000 * value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IOException("test.timeoutSeconds must be a positive whole number of seconds, not \"" + seconds
+                + "\"");
+    }
+}
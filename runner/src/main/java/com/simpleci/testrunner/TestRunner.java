@@ -0,0 +1,504 @@
+package com.simpleci.testrunner;
+
+import com.simpleci.common.Commit;
+import com.simpleci.common.CommunicationConstants;
+import com.simpleci.common.MessageHandler;
+import com.simpleci.common.Metrics;
+import com.simpleci.common.NioServer;
+import com.simpleci.helpers.DispatcherCluster;
+import com.simpleci.helpers.Helpers;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+public class TestRunner {
+    private static final Logger logger = Logger.getLogger(TestRunner.class.getName());
+    private static final Metrics.Histogram checkoutLatency = Metrics.histogram("simpleci_checkout_millis",
+            "Time to check out a commit in a worktree");
+    private static final Metrics.Histogram readyLatency = Metrics.histogram("simpleci_ready_wait_millis",
+            "Time a checked-out commit waited for a test slot");
+    private static final Metrics.Histogram executeLatency = Metrics.histogram("simpleci_execute_millis",
+            "Time to discover and run a shard's tests");
+    private static final Metrics.Histogram uploadLatency = Metrics.histogram("simpleci_upload_millis",
+            "Time to send the last output and status of a shard to the dispatcher");
+    private static final Metrics.Counter testsRun = Metrics.counter("simpleci_tests_total", "Tests run");
+    private static final Metrics.Counter testsSkipped = Metrics.counter("simpleci_tests_skipped_total",
+            "Tests not run because the commit cannot affect them");
+
+    // How long each test takes when the repository configures no test command.
+    private static final long SIMULATED_TEST_MILLIS = 500;
+    // Reported as the duration of a test that was not selected, so the
+    // dispatcher keeps it in the suite.
+    private static final long SKIPPED_MILLIS = -1;
+    // How often the runner tells the dispatcher it is alive.
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+    private final String runnerHost;
+    private final int runnerPort;
+    private final String repoPath;
+    // The repository's name as observers report it, set with -Dsimpleci.runner.repo
+    // so that only its commits are sent here; empty to take commits of any repository.
+    private final String repoName;
+    // The runner works for every dispatcher of the cluster.
+    private final DispatcherCluster dispatchers;
+    private final Set<String> registeredWith = ConcurrentHashMap.newKeySet();
+    // Commits whose tests run at once.
+    private final int slotCount;
+    // Commits accepted beyond slotCount, set with -Dsimpleci.runner.lookahead.
+    // They are fetched and checked out while the slots run tests, so a slot
+    // that frees up starts on a ready worktree.
+    private final int lookahead;
+    private final CommitFetcher fetcher;
+    // Null when every test is run, with -Dsimpleci.impact=false.
+    private ImpactIndex impactIndex;
+    // Warm JVMs for repositories that run tests by class path, see TestConfig.
+    private final WorkerPool workerPool = new WorkerPool();
+
+    // Worktrees not holding a commit, slotCount + lookahead of them; taking
+    // one from here is what makes a runner busy.
+    private final BlockingQueue<WorktreeSlot> freeSlots;
+    private final AtomicInteger testing = new AtomicInteger();
+    private final Set<ResultStream> activeStreams = ConcurrentHashMap.newKeySet();
+    // Tasks accepted and not yet reported, listed in heartbeats.
+    private final Set<String> runningTasks = ConcurrentHashMap.newKeySet();
+    // Tasks the dispatcher cancelled before they reported, and the threads
+    // checking out or testing tasks, to interrupt on cancel.
+    private final Set<String> cancelledTasks = ConcurrentHashMap.newKeySet();
+    private final Map<String, Thread> taskThreads = new ConcurrentHashMap<>();
+    private volatile long lastCommunication = System.currentTimeMillis();
+    private volatile boolean dead = false;
+
+    private final NioServer server;
+    private final ExecutorService checkoutExecutor;
+    private final ExecutorService testExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+    public TestRunner(String runnerHost, int runnerPort, String repoPath, String dispatcherHost, int dispatcherPort)
+            throws IOException {
+        this(runnerHost, runnerPort, repoPath, dispatcherHost, dispatcherPort, 1);
+    }
+
+    public TestRunner(String runnerHost, int runnerPort, String repoPath, String dispatcherHost, int dispatcherPort,
+            int slotCount) throws IOException {
+        this(runnerHost, runnerPort, repoPath,
+                new DispatcherCluster(Collections.singletonList(dispatcherHost + ":" + dispatcherPort)), slotCount);
+    }
+
+    public TestRunner(String runnerHost, int runnerPort, String repoPath, DispatcherCluster dispatchers,
+            int slotCount) throws IOException {
+        this.runnerHost = runnerHost;
+        this.runnerPort = runnerPort;
+        this.repoPath = repoPath;
+        this.dispatchers = dispatchers;
+        this.repoName = Commit.sanitize(System.getProperty("simpleci.runner.repo", ""));
+        this.slotCount = slotCount;
+        this.lookahead = Integer.getInteger("simpleci.runner.lookahead", 1);
+        this.fetcher = new CommitFetcher(repoPath);
+        this.freeSlots = new ArrayBlockingQueue<>(capacity());
+        this.checkoutExecutor = Executors.newFixedThreadPool(capacity());
+        this.testExecutor = Executors.newFixedThreadPool(slotCount);
+        this.server = new NioServer("runner", runnerHost, runnerPort, new TestRunnerHandler(), 1, 2);
+    }
+
+    public void start() throws IOException {
+        // Prepare one worktree per commit accepted at once; they are reused for every commit.
+        File worktreeRoot = new File(new File(repoPath).getAbsolutePath() + ".worktrees");
+        for (int i = 0; i < capacity(); i++) {
+            WorktreeSlot slot = new WorktreeSlot(i, repoPath, worktreeRoot);
+            slot.ensureWorktree();
+            freeSlots.add(slot);
+        }
+        if (Boolean.parseBoolean(System.getProperty("simpleci.impact", "true"))) {
+            impactIndex = new ImpactIndex(repoPath, worktreeRoot.toPath().resolve("impact"),
+                    Integer.getInteger("simpleci.impact.fullEvery", 20));
+        }
+
+        // Register with the dispatchers, advertising how many commits are accepted at once.
+        dispatchers.refresh();
+        registerWithDispatchers();
+        if (registeredWith.isEmpty()) {
+            logger.severe("Unable to register with dispatcher!");
+            System.exit(1);
+        }
+
+        // Push heartbeats so the dispatcher notices if this runner goes away.
+        scheduler.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+
+        // Schedule periodic dispatcher connectivity check.
+        scheduler.scheduleAtFixedRate(new DispatcherChecker(), 5, 5, TimeUnit.SECONDS);
+
+        // Push partial output regularly so the dispatcher can tail running commits.
+        scheduler.scheduleAtFixedRate(() -> activeStreams.forEach(ResultStream::flush), 1, 1, TimeUnit.SECONDS);
+
+        Metrics.gauge("simpleci_runner_utilization", "Fraction of this runner's slots in use",
+                () -> Collections.singletonMap("", (double) testing.get() / slotCount));
+        Metrics.startExport(scheduler);
+
+        // Accept incoming connections.
+        server.start();
+    }
+
+    // The commits the runner accepts at once, which it advertises to the
+    // dispatchers as its slots.
+    private int capacity() {
+        return slotCount + lookahead;
+    }
+
+    // Registers with dispatchers not registered with yet, e.g. ones that
+    // joined the cluster since the last topology refresh.
+    private void registerWithDispatchers() {
+        String registerCommand = CommunicationConstants.REGISTER_CMD + ":" + runnerHost + ":" + runnerPort + ":"
+                + capacity() + ":" + repoName;
+        for (String dispatcher : dispatchers.members()) {
+            if (registeredWith.contains(dispatcher)) {
+                continue;
+            }
+            String response = Helpers.communicate(DispatcherCluster.host(dispatcher),
+                    DispatcherCluster.port(dispatcher), registerCommand);
+            if (CommunicationConstants.OK_RESPONSE.equals(response)) {
+                registeredWith.add(dispatcher);
+                logger.info("Registered with dispatcher " + dispatcher);
+            }
+        }
+    }
+
+    // Sends heartbeat:<host>:<port>:<slots>:<freeSlots>:<load>:<taskId>,...:<repo>
+    // to every dispatcher without waiting for the answers, so a slow one does
+    // not delay the next heartbeat. A dispatcher takes back shards it assigned
+    // that are not listed, and ignores the tasks of other dispatchers.
+    private void sendHeartbeat() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        String heartbeat = CommunicationConstants.HEARTBEAT_CMD + ":" + runnerHost + ":" + runnerPort + ":" + capacity()
+                + ":" + freeSlots.size() + ":" + load + ":" + String.join(",", runningTasks) + ":" + repoName;
+        for (String dispatcher : dispatchers.members()) {
+            Helpers.communicateAsync(DispatcherCluster.host(dispatcher), DispatcherCluster.port(dispatcher), heartbeat)
+                    .whenComplete((response, error) -> {
+                        if (error == null && CommunicationConstants.OK_RESPONSE.equals(response)) {
+                            lastCommunication = System.currentTimeMillis();
+                        }
+                    });
+        }
+    }
+
+    private void shutdown() {
+        dead = true;
+        scheduler.shutdown();
+        checkoutExecutor.shutdown();
+        testExecutor.shutdown();
+        workerPool.close();
+        server.close();
+    }
+
+    // Handler for incoming commands from the dispatcher.
+    private class TestRunnerHandler implements MessageHandler {
+        @Override
+        public String handle(String commandLine) {
+            if (commandLine.startsWith(CommunicationConstants.PING_CMD)) {
+                // Expected response: pong:<slots>:<freeSlots>
+                lastCommunication = System.currentTimeMillis();
+                return CommunicationConstants.PONG_RESPONSE + ":" + capacity() + ":" + freeSlots.size();
+            } else if (commandLine.startsWith(CommunicationConstants.METRICS_CMD)) {
+                return Metrics.summary();
+            } else if (commandLine.startsWith(CommunicationConstants.RUNT_TEST_CMD)) {
+                // Expected format: runtest:<commit>, or for one shard of a commit:
+                // runtest:<commit>:<shard>:<shardCount>:<include|exclude>:<test>,<test>,...
+                // A second run of a task, started because the first is slow, is marked #<n>.
+                // A dispatcher of a cluster appends @<host>:<port>, where results are to go.
+                String request = commandLine.substring(CommunicationConstants.RUNT_TEST_CMD.length() + 1);
+                String reportTo = dispatchers.members().get(0);
+                int at = request.lastIndexOf('@');
+                if (at != -1) {
+                    reportTo = request.substring(at + 1);
+                    request = request.substring(0, at);
+                }
+                String attempt = "";
+                int hash = request.lastIndexOf('#');
+                if (hash != -1) {
+                    attempt = request.substring(hash);
+                    request = request.substring(0, hash);
+                }
+                String[] parts = request.split(":", 5);
+                if (parts.length != 1 && parts.length != 5) {
+                    return "Invalid runtest command";
+                }
+                WorktreeSlot slot = freeSlots.poll();
+                if (slot == null) {
+                    return "BUSY";
+                }
+                String commit = parts[0];
+                String taskId = (parts.length == 1 ? commit : commit + "." + parts[1]) + attempt;
+                Set<String> listed = parts.length == 1 || parts[4].isEmpty() ? Collections.emptySet()
+                        : new HashSet<>(Arrays.asList(parts[4].split(",")));
+                boolean exclude = parts.length == 1 || "exclude".equals(parts[3]);
+                runningTasks.add(taskId);
+                // Check out right away, off the server threads so pings are still answered;
+                // the tests start once a test slot is free.
+                String dispatcher = reportTo;
+                checkoutExecutor.submit(() -> prepare(taskId, commit, test -> listed.contains(test) != exclude, slot,
+                        dispatcher));
+                return CommunicationConstants.OK_RESPONSE;
+            } else if (commandLine.startsWith(CommunicationConstants.CANCEL_CMD)) {
+                // Expected format: cancel:<taskId>, sent when another run of the task reported first.
+                String taskId = commandLine.substring(CommunicationConstants.CANCEL_CMD.length() + 1).trim();
+                synchronized (runningTasks) {
+                    if (!runningTasks.contains(taskId)) {
+                        return "Unknown task";
+                    }
+                    cancelledTasks.add(taskId);
+                }
+                taskThreads.computeIfPresent(taskId, (id, thread) -> {
+                    thread.interrupt();
+                    return thread;
+                });
+                logger.info("Cancelled " + taskId);
+                return CommunicationConstants.OK_RESPONSE;
+            }
+            return "Invalid command";
+        }
+    }
+
+    // Fetches the commit if needed and checks it out in the slot's worktree,
+    // then queues the tests for the next free test slot.
+    private void prepare(String taskId, String commit, Predicate<String> selected, WorktreeSlot slot,
+            String dispatcher) {
+        ResultStream stream = new ResultStream(DispatcherCluster.host(dispatcher), DispatcherCluster.port(dispatcher),
+                taskId);
+        activeStreams.add(stream);
+        logger.info("Checking out commit " + commit + " in " + slot);
+        long checkoutStart = System.nanoTime();
+        taskThreads.put(taskId, Thread.currentThread());
+        boolean checkedOut = false;
+        try {
+            checkedOut = cancelledTasks.contains(taskId) || fetcher.ensure(commit) && slot.checkout(commit);
+            // A cancel kills the checkout, which is no failure.
+            if (!checkedOut && !cancelledTasks.contains(taskId)) {
+                logger.warning("Git checkout failed for commit " + commit);
+                stream.write("Git checkout failed for commit " + commit + "\n");
+            }
+        } catch (IOException e) {
+            logger.warning("Error during git checkout: " + e.getMessage());
+            stream.write("Error during git checkout: " + e.getMessage() + "\n");
+        } finally {
+            taskThreads.remove(taskId);
+            Thread.interrupted();
+        }
+        checkoutLatency.recordSince(checkoutStart);
+        if (!checkedOut || cancelledTasks.contains(taskId)) {
+            // The worktree still holds some other commit, so the tests must
+            // not run in it. No need to wait for a test slot just to report.
+            execute(taskId, commit, selected, slot, stream, false);
+            return;
+        }
+        long ready = System.nanoTime();
+        testExecutor.submit(() -> {
+            readyLatency.recordSince(ready);
+            execute(taskId, commit, selected, slot, stream, true);
+        });
+    }
+
+    private void execute(String taskId, String commit, Predicate<String> selected, WorktreeSlot slot,
+            ResultStream stream, boolean checkedOut) {
+        Map<String, Long> testMillis = new LinkedHashMap<>();
+        String status = CommunicationConstants.FAIL_STATUS;
+        testing.incrementAndGet();
+        taskThreads.put(taskId, Thread.currentThread());
+        try {
+            if (checkedOut && !cancelledTasks.contains(taskId)) {
+                status = runTests(commit, selected, slot, stream, testMillis);
+            }
+        } catch (RuntimeException e) {
+            // Still reported, or the task would stay running forever.
+            logger.log(Level.WARNING, "Error running tests for commit " + commit, e);
+            stream.write("Error running tests: " + e + "\n");
+            status = CommunicationConstants.FAIL_STATUS;
+            testMillis.clear();
+        } finally {
+            taskThreads.remove(taskId);
+            // Clears an interrupt from a cancel that came as the tests finished.
+            Thread.interrupted();
+            testing.decrementAndGet();
+            activeStreams.remove(stream);
+            freeSlots.add(slot);
+        }
+        if (cancelledTasks.remove(taskId)) {
+            // Reported all the same, so the dispatcher drops the partial output.
+            stream.write("Cancelled\n");
+            status = CommunicationConstants.FAIL_STATUS;
+            testMillis.clear();
+        }
+        // Report only once the slot is free, as the dispatcher may hand over the next commit right away.
+        long start = System.nanoTime();
+        String dispatcherResponse;
+        try {
+            dispatcherResponse = stream.finish(status, testMillis);
+        } finally {
+            synchronized (runningTasks) {
+                runningTasks.remove(taskId);
+                cancelledTasks.remove(taskId);
+            }
+        }
+        uploadLatency.recordSince(start);
+        logger.info("Dispatcher response for results: " + dispatcherResponse);
+    }
+
+    // Runs the selected tests, streaming their output and recording how long
+    // each took, and returns the status to report.
+    private String runTests(String commit, Predicate<String> selected, WorktreeSlot slot, ResultStream output,
+            Map<String, Long> testMillis) {
+        logger.info("Running tests for commit " + commit + " in " + slot);
+        output.write("Running tests for commit " + commit + " in " + slot + "\n");
+        long executeStart = System.nanoTime();
+        List<String> tests;
+        try {
+            tests = TestSuite.discover(slot.getWorktree());
+        } catch (IOException e) {
+            logger.warning("Error listing tests: " + e.getMessage());
+            output.write("Error listing tests: " + e.getMessage() + "\n");
+            return CommunicationConstants.FAIL_STATUS;
+        }
+        List<String> candidates = new ArrayList<>();
+        for (String test : tests) {
+            if (selected.test(test)) {
+                candidates.add(test);
+            }
+        }
+        ImpactIndex.Selection selection = new ImpactIndex.Selection(candidates);
+        selection.runAll("selection failed");
+        if (impactIndex != null) {
+            try {
+                selection = impactIndex.select(commit, candidates);
+            } catch (IOException e) {
+                logger.warning("Error selecting tests, running all: " + e.getMessage());
+            }
+            output.write(selection.describe());
+        }
+        for (String test : selection.getSkipped()) {
+            testMillis.put(test, SKIPPED_MILLIS);
+            testsSkipped.increment();
+        }
+        Map<String, Boolean> outcomes = new HashMap<>();
+        WorkerPool.Worker worker = null;
+        try {
+            TestConfig config = TestConfig.load(slot.getWorktree());
+            long timeoutMillis = config.getTimeoutMillis();
+            if (config.getBuildCommand() != null) {
+                output.write("Building: " + config.getBuildCommand() + "\n");
+                if (ShellCommand.run(slot.getWorktree(), config.getBuildCommand(), output, timeoutMillis) != 0) {
+                    output.write("Build failed for commit " + commit + "\n");
+                    return CommunicationConstants.FAIL_STATUS;
+                }
+            }
+            if (config.isSimulated() && tests.isEmpty()) {
+                TimeUnit.SECONDS.sleep(3);
+            }
+            if (config.usesWorkers() && selection.getSkipped().size() < candidates.size()) {
+                worker = workerPool.acquire();
+                if (!worker.load(config.getClasspath(), output)) {
+                    return CommunicationConstants.FAIL_STATUS;
+                }
+            }
+            for (String test : candidates) {
+                if (!selection.runs(test)) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                boolean passed;
+                if (config.isSimulated()) {
+                    TimeUnit.MILLISECONDS.sleep(SIMULATED_TEST_MILLIS);
+                    passed = true;
+                } else if (worker != null) {
+                    if (worker.isClosed()) {
+                        // Killed as an earlier test ran out of time.
+                        worker = workerPool.replace(worker);
+                        if (!worker.load(config.getClasspath(), output)) {
+                            return CommunicationConstants.FAIL_STATUS;
+                        }
+                    }
+                    passed = worker.run(TestSuite.className(slot.getWorktree(), test), output, timeoutMillis);
+                } else {
+                    String command = config.getTestCommand(test, TestSuite.className(slot.getWorktree(), test));
+                    passed = ShellCommand.run(slot.getWorktree(), command, output, timeoutMillis) == 0;
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                testMillis.put(test, millis);
+                outcomes.put(test, passed);
+                output.write((passed ? "PASS " : "FAIL ") + test + " (" + millis + " ms)\n");
+                testsRun.increment();
+            }
+        } catch (IOException e) {
+            logger.warning("Error running tests: " + e.getMessage());
+            output.write("Error running tests: " + e.getMessage() + "\n");
+            return CommunicationConstants.FAIL_STATUS;
+        } catch (InterruptedException e) {
+            // Cancelled; the status reported does not matter.
+            return CommunicationConstants.FAIL_STATUS;
+        } finally {
+            if (worker != null) {
+                try {
+                    worker.unload();
+                } catch (InterruptedException e) {
+                    // Cancelled as the tests finished; unload closed the worker.
+                }
+                workerPool.release(worker);
+            }
+            if (impactIndex != null) {
+                impactIndex.record(commit, outcomes);
+            }
+        }
+        executeLatency.recordSince(executeStart);
+        if (outcomes.containsValue(false)) {
+            output.write("Tests failed for commit " + commit + "\n");
+            return CommunicationConstants.FAIL_STATUS;
+        }
+        output.write("Tests passed for commit " + commit + "\n");
+        return CommunicationConstants.PASS_STATUS;
+    }
+
+    // Follows the cluster's topology and checks that some dispatcher is still
+    // reachable.
+    private class DispatcherChecker implements Runnable {
+        @Override
+        public void run() {
+            if (dispatchers.refresh()) {
+                registerWithDispatchers();
+            }
+            if (System.currentTimeMillis() - lastCommunication > 10000) {
+                for (String dispatcher : dispatchers.members()) {
+                    String statusResponse = Helpers.communicate(DispatcherCluster.host(dispatcher),
+                            DispatcherCluster.port(dispatcher), CommunicationConstants.STATUS_CMD);
+                    if (CommunicationConstants.OK_RESPONSE.equals(statusResponse)) {
+                        return;
+                    }
+                }
+                logger.severe("Dispatcher is no longer functional. Shutting down test runner.");
+                shutdown();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        // Expected args: <host> <port> <dispatcherServer(host:port)[,host:port...]> <repoPath> [slots]
+        // The rest of a dispatcher cluster is learned from the dispatchers given.
+        if (args.length < 4) {
+            System.out.println("Usage: java com.simpleci.testrunner.TestRunner <host> <port> "
+                    + "<dispatcherServer(host:port)[,host:port...]> <repoPath> [slots]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        DispatcherCluster dispatchers = DispatcherCluster.parse(args[2]);
+        String repoPath = args[3];
+        int slots = args.length >= 5 ? Integer.parseInt(args[4]) : 1;
+        try {
+            TestRunner runner = new TestRunner(host, port, repoPath, dispatchers, slots);
+            runner.start();
+        } catch (IOException e) {
+            logger.severe("Error starting test runner: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
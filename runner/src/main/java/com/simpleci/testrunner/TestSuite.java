@@ -0,0 +1,51 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+/**
+ * Finds the tests of a checked-out commit: the files under the worktree that
+ * match the "simpleci.tests.glob" pattern (by default every *Test.java),
+ * named by their path relative to the worktree. The names are what the
+ * dispatcher balances shards by, so they must stay stable across commits.
+ */
+class TestSuite {
+    private static final String DEFAULT_GLOB = "{*Test.java,**/*Test.java}";
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+    private TestSuite() {
+    }
+
+    static List<String> discover(File worktree) throws IOException {
+        Path root = worktree.toPath();
+        PathMatcher matcher = root.getFileSystem()
+                .getPathMatcher("glob:" + System.getProperty("simpleci.tests.glob", DEFAULT_GLOB));
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .map(root::relativize)
+                    .filter(path -> !path.startsWith(".git") && matcher.matches(path))
+                    .map(path -> path.toString().replace(File.separatorChar, '/'))
+                    // These characters delimit test names in the protocol, and
+                    // cmd cannot quote '"' or '%'.
+                    .filter(name -> !name.matches(".*[:,=#@\\s\"%].*"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the class a test file declares, going by its package statement
+     * rather than its path, which need not follow a source root convention.
+     */
+    static String className(File worktree, String test) throws IOException {
+        String name = test.substring(test.lastIndexOf('/') + 1);
+        if (name.contains(".")) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        Matcher matcher = PACKAGE.matcher(Files.readString(new File(worktree, test).toPath()));
+        return matcher.find() ? matcher.group(1) + "." + name : name;
+    }
+}
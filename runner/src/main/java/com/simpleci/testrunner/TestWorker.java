@@ -0,0 +1,441 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.lang.annotation.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The main class of a {@link WorkerPool} JVM. It reads commands from stdin,
+ * one per line:
+ *
+ *   load\t<entry><pathSeparator><entry>...   a fresh class loader for a commit's classes
+ *   run\t<class>                             runs a test class in the current loader
+ *   unload                                   drops the loader
+ *
+ * and answers on stdout in frames of a type byte and its data: 'L' with
+ * whether the load worked and why not, 'R' with a test class's outcome,
+ * duration and summary, 'M' after an unload with the bytes the JVM still
+ * holds, and 'O' and 'E' with what the tests write to System.out and
+ * System.err.
+ *
+ * Test classes run under their own test framework, loaded from the commit's
+ * class path like the tests: JUnit 4 (and 3) through JUnitCore, JUnit 5
+ * through the Platform Launcher, TestNG through TestNG. Which one a class
+ * uses is told by its annotations and superclasses. Abstract classes are
+ * not run, as their tests run in the subclasses.
+ *
+ * A class with no framework available is run reflectively: methods
+ * annotated @Test (by simple name) or, lacking those, public methods named
+ * test*, each on a new instance, with the @Before/@BeforeEach and
+ * @After/@AfterEach methods (or setUp and tearDown) around them and the
+ * static @BeforeClass/@BeforeAll and @AfterClass/@AfterAll ones once. A
+ * class without test methods has its main method run instead.
+ */
+public final class TestWorker {
+    private static DataOutputStream protocol;
+
+    private TestWorker() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        protocol = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(new PrintStream(new FrameStream('O'), true, StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(new FrameStream('E'), true, StandardCharsets.UTF_8));
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        URLClassLoader loader = null;
+        // The runner closes stdin when it goes away.
+        for (String line = commands.readLine(); line != null; line = commands.readLine()) {
+            String[] command = line.split("\t", 2);
+            if (command[0].equals("load")) {
+                if (loader != null) {
+                    loader.close();
+                }
+                List<URL> urls = new ArrayList<>();
+                for (String entry : command[1].split(File.pathSeparator)) {
+                    urls.add(new File(entry).toURI().toURL());
+                }
+                // Parented by the platform loader, so tests see neither the
+                // worker's classes nor the last commit's.
+                loader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getPlatformClassLoader());
+                synchronized (protocol) {
+                    protocol.writeByte('L');
+                    protocol.writeBoolean(true);
+                    protocol.writeUTF("");
+                    protocol.flush();
+                }
+            } else if (command[0].equals("run")) {
+                long start = System.nanoTime();
+                String summary;
+                boolean passed;
+                Thread.currentThread().setContextClassLoader(loader);
+                try {
+                    int[] counts = runClass(Class.forName(command[1], true, loader));
+                    passed = counts[1] == 0;
+                    summary = counts[0] + " tests, " + counts[1] + " failed"
+                            + (counts[2] == 0 ? "" : ", " + counts[2] + " skipped");
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    passed = false;
+                    summary = "Could not run " + command[1] + ": " + t;
+                } finally {
+                    Thread.currentThread().setContextClassLoader(null);
+                }
+                synchronized (protocol) {
+                    protocol.writeByte('R');
+                    protocol.writeBoolean(passed);
+                    protocol.writeLong((System.nanoTime() - start) / 1_000_000);
+                    protocol.writeUTF(summary);
+                    protocol.flush();
+                }
+            } else if (command[0].equals("unload")) {
+                if (loader != null) {
+                    loader.close();
+                    loader = null;
+                }
+                System.gc();
+                synchronized (protocol) {
+                    protocol.writeByte('M');
+                    protocol.writeLong(retainedBytes());
+                    protocol.flush();
+                }
+            }
+        }
+    }
+
+    // Returns how many tests ran, how many of them failed and how many were
+    // skipped.
+    private static int[] runClass(Class<?> testClass) throws Exception {
+        if (Modifier.isAbstract(testClass.getModifiers())) {
+            return new int[] {0, 0, 0};
+        }
+        ClassLoader loader = testClass.getClassLoader();
+        String framework = framework(testClass);
+        if (framework.equals("testng") && available(loader, "org.testng.TestNG")) {
+            return runTestNG(testClass);
+        }
+        if (framework.equals("junit4") && available(loader, "org.junit.runner.JUnitCore")) {
+            return runJUnit4(testClass);
+        }
+        if (!framework.isEmpty() && available(loader, "org.junit.platform.launcher.core.LauncherFactory")) {
+            return runPlatform(testClass);
+        }
+        if (!framework.isEmpty()) {
+            System.err.println("No runner for " + framework + " on the class path; running " + testClass.getName()
+                    + " without it");
+        }
+        return runReflectively(testClass);
+    }
+
+    // Tells the framework a class is written for from the annotations on it,
+    // its methods and its nested classes, and from its superclasses: "junit4"
+    // (which covers JUnit 3), "jupiter", "testng", or "" for none.
+    private static String framework(Class<?> testClass) {
+        for (Class<?> c = testClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (c.getName().equals("junit.framework.TestCase")) {
+                return "junit4";
+            }
+            List<Annotation> annotations = new ArrayList<>(Arrays.asList(c.getAnnotations()));
+            for (Method method : c.getDeclaredMethods()) {
+                annotations.addAll(Arrays.asList(method.getAnnotations()));
+            }
+            for (Class<?> nested : c.getDeclaredClasses()) {
+                annotations.addAll(Arrays.asList(nested.getAnnotations()));
+            }
+            for (Annotation annotation : annotations) {
+                String name = annotation.annotationType().getName();
+                if (name.startsWith("org.junit.jupiter.")) {
+                    return "jupiter";
+                } else if (name.startsWith("org.testng.")) {
+                    return "testng";
+                } else if (name.startsWith("org.junit.")) {
+                    return "junit4";
+                }
+            }
+        }
+        return "";
+    }
+
+    private static boolean available(ClassLoader loader, String className) {
+        try {
+            Class.forName(className, false, loader);
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static Class<?> load(Class<?> testClass, String className) throws ClassNotFoundException {
+        return Class.forName(className, true, testClass.getClassLoader());
+    }
+
+    // new JUnitCore().run(testClass), printing the failures.
+    private static int[] runJUnit4(Class<?> testClass) throws Exception {
+        Class<?> core = load(testClass, "org.junit.runner.JUnitCore");
+        Class<?> result = load(testClass, "org.junit.runner.Result");
+        Class<?> failure = load(testClass, "org.junit.runner.notification.Failure");
+        Object outcome = core.getMethod("run", Class[].class).invoke(core.getConstructor().newInstance(),
+                (Object) new Class<?>[] {testClass});
+        for (Object f : (List<?>) result.getMethod("getFailures").invoke(outcome)) {
+            System.err.print("FAILED " + failure.getMethod("getTestHeader").invoke(f) + ": "
+                    + failure.getMethod("getTrace").invoke(f));
+        }
+        int skipped = (Integer) result.getMethod("getIgnoreCount").invoke(outcome);
+        try {
+            // Since JUnit 4.13.
+            skipped += (Integer) result.getMethod("getAssumptionFailureCount").invoke(outcome);
+        } catch (NoSuchMethodException e) {
+            // Failed assumptions are not counted.
+        }
+        return new int[] {(Integer) result.getMethod("getRunCount").invoke(outcome),
+            (Integer) result.getMethod("getFailureCount").invoke(outcome), skipped};
+    }
+
+    // Runs a class with the Platform Launcher and a SummaryGeneratingListener,
+    // and prints the failures.
+    private static int[] runPlatform(Class<?> testClass) throws Exception {
+        Class<?> selectors = load(testClass, "org.junit.platform.engine.discovery.DiscoverySelectors");
+        Class<?> selector = load(testClass, "org.junit.platform.engine.DiscoverySelector");
+        Class<?> builder = load(testClass, "org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder");
+        Class<?> request = load(testClass, "org.junit.platform.launcher.LauncherDiscoveryRequest");
+        Class<?> factory = load(testClass, "org.junit.platform.launcher.core.LauncherFactory");
+        Class<?> launcher = load(testClass, "org.junit.platform.launcher.Launcher");
+        Class<?> listener = load(testClass, "org.junit.platform.launcher.TestExecutionListener");
+        Class<?> summaryListener = load(testClass, "org.junit.platform.launcher.listeners.SummaryGeneratingListener");
+        Class<?> summary = load(testClass, "org.junit.platform.launcher.listeners.TestExecutionSummary");
+        Object selected = Array.newInstance(selector, 1);
+        Array.set(selected, 0, selectors.getMethod("selectClass", Class.class).invoke(null, testClass));
+        Object requestBuilder = builder.getMethod("request").invoke(null);
+        builder.getMethod("selectors", selected.getClass()).invoke(requestBuilder, selected);
+        Object discovery = builder.getMethod("build").invoke(requestBuilder);
+        Object listening = summaryListener.getConstructor().newInstance();
+        Object listeners = Array.newInstance(listener, 1);
+        Array.set(listeners, 0, listening);
+        launcher.getMethod("execute", request, listeners.getClass())
+                .invoke(factory.getMethod("create").invoke(null), discovery, listeners);
+        Object outcome = summaryListener.getMethod("getSummary").invoke(listening);
+        PrintWriter failures = new PrintWriter(System.err);
+        summary.getMethod("printFailuresTo", PrintWriter.class).invoke(outcome, failures);
+        failures.flush();
+        // Failures include those of containers, as when a @BeforeAll method
+        // throws; aborted tests are those whose assumptions failed.
+        long skipped = (Long) summary.getMethod("getTestsSkippedCount").invoke(outcome)
+                + (Long) summary.getMethod("getTestsAbortedCount").invoke(outcome);
+        return new int[] {(int) (long) (Long) summary.getMethod("getTestsStartedCount").invoke(outcome),
+            (int) (long) (Long) summary.getMethod("getTotalFailureCount").invoke(outcome), (int) skipped};
+    }
+
+    // Runs a class with TestNG and a TestListenerAdapter, without TestNG's
+    // report files, and prints the failures.
+    private static int[] runTestNG(Class<?> testClass) throws Exception {
+        Class<?> testNG = load(testClass, "org.testng.TestNG");
+        Class<?> adapter = load(testClass, "org.testng.TestListenerAdapter");
+        Class<?> result = load(testClass, "org.testng.ITestResult");
+        Object runner = testNG.getConstructor().newInstance();
+        testNG.getMethod("setUseDefaultListeners", boolean.class).invoke(runner, false);
+        testNG.getMethod("setVerbose", int.class).invoke(runner, 0);
+        testNG.getMethod("setTestClasses", Class[].class).invoke(runner, (Object) new Class<?>[] {testClass});
+        Object listening = adapter.getConstructor().newInstance();
+        for (Method method : testNG.getMethods()) {
+            // addListener(ITestNGListener), or addListener(Object) before TestNG 7.
+            if (method.getName().equals("addListener") && method.getParameterCount() == 1
+                    && method.getParameterTypes()[0].isInstance(listening)) {
+                method.invoke(runner, listening);
+                break;
+            }
+        }
+        testNG.getMethod("run").invoke(runner);
+        List<Object> failed = new ArrayList<>((Collection<?>) adapter.getMethod("getFailedTests").invoke(listening));
+        failed.addAll((Collection<?>) adapter.getMethod("getConfigurationFailures").invoke(listening));
+        for (Object f : failed) {
+            System.err.print("FAILED " + result.getMethod("getName").invoke(f) + ": ");
+            Throwable cause = (Throwable) result.getMethod("getThrowable").invoke(f);
+            if (cause != null) {
+                cause.printStackTrace();
+            } else {
+                System.err.println();
+            }
+        }
+        int passed = ((Collection<?>) adapter.getMethod("getPassedTests").invoke(listening)).size();
+        int skipped = ((Collection<?>) adapter.getMethod("getSkippedTests").invoke(listening)).size();
+        int failures = ((Collection<?>) adapter.getMethod("getFailedTests").invoke(listening)).size();
+        return new int[] {passed + failures + skipped, failed.size(), skipped};
+    }
+
+    private static int[] runReflectively(Class<?> testClass) throws Exception {
+        List<Method> tests = new ArrayList<>();
+        List<Method> namedTests = new ArrayList<>();
+        List<Method> before = new ArrayList<>();
+        List<Method> after = new ArrayList<>();
+        List<Method> beforeAll = new ArrayList<>();
+        List<Method> afterAll = new ArrayList<>();
+        Method setUp = null;
+        Method tearDown = null;
+        // Methods overridden further down are run once, as the override.
+        Set<String> seen = new HashSet<>();
+        for (Class<?> c = testClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.getParameterCount() != 0 || method.isSynthetic()) {
+                    continue;
+                }
+                boolean isStatic = Modifier.isStatic(method.getModifiers());
+                if (!isStatic && !Modifier.isPrivate(method.getModifiers()) && !seen.add(method.getName())) {
+                    continue;
+                }
+                Set<String> annotations = new HashSet<>();
+                for (Annotation annotation : method.getAnnotations()) {
+                    annotations.add(annotation.annotationType().getSimpleName());
+                }
+                if (annotations.contains("Ignore") || annotations.contains("Disabled")) {
+                    continue;
+                }
+                method.setAccessible(true);
+                if (isStatic) {
+                    if (annotations.contains("BeforeClass") || annotations.contains("BeforeAll")) {
+                        beforeAll.add(0, method);
+                    } else if (annotations.contains("AfterClass") || annotations.contains("AfterAll")) {
+                        afterAll.add(method);
+                    }
+                } else if (annotations.contains("Test")) {
+                    tests.add(method);
+                } else if (annotations.contains("Before") || annotations.contains("BeforeEach")) {
+                    // A superclass's setup runs first.
+                    before.add(0, method);
+                } else if (annotations.contains("After") || annotations.contains("AfterEach")) {
+                    after.add(method);
+                } else if (method.getName().startsWith("test") && Modifier.isPublic(method.getModifiers())) {
+                    namedTests.add(method);
+                } else if (method.getName().equals("setUp") && setUp == null) {
+                    setUp = method;
+                } else if (method.getName().equals("tearDown") && tearDown == null) {
+                    tearDown = method;
+                }
+            }
+        }
+        if (tests.isEmpty()) {
+            tests = namedTests;
+            if (setUp != null) {
+                before.add(setUp);
+            }
+            if (tearDown != null) {
+                after.add(0, tearDown);
+            }
+        }
+        if (tests.isEmpty()) {
+            Method main = testClass.getMethod("main", String[].class);
+            main.invoke(null, (Object) new String[0]);
+            return new int[] {1, 0, 0};
+        }
+        tests.sort(Comparator.comparing(Method::getName));
+        Constructor<?> constructor = testClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        int failed = 0;
+        int skipped = 0;
+        for (Method method : beforeAll) {
+            method.invoke(null);
+        }
+        try {
+            for (Method test : tests) {
+                Class<?> expected = expected(test);
+                try {
+                    Object instance = constructor.newInstance();
+                    try {
+                        for (Method method : before) {
+                            method.invoke(instance);
+                        }
+                        test.invoke(instance);
+                    } finally {
+                        for (Method method : after) {
+                            method.invoke(instance);
+                        }
+                    }
+                    if (expected != null) {
+                        failed++;
+                        System.err.println("FAILED " + test.getName() + ": expected " + expected.getName());
+                    }
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (expected != null && expected.isInstance(cause)) {
+                        continue;
+                    }
+                    String type = cause.getClass().getSimpleName();
+                    if (type.equals("AssumptionViolatedException") || type.equals("TestAbortedException")
+                            || type.equals("SkipException")) {
+                        skipped++;
+                        continue;
+                    }
+                    failed++;
+                    System.err.print("FAILED " + test.getName() + ": ");
+                    cause.printStackTrace();
+                }
+            }
+        } finally {
+            for (Method method : afterAll) {
+                method.invoke(null);
+            }
+        }
+        return new int[] {tests.size(), failed, skipped};
+    }
+
+    // The exception a test's @Test(expected=...) says it throws, if any.
+    private static Class<?> expected(Method test) {
+        for (Annotation annotation : test.getAnnotations()) {
+            if (annotation.annotationType().getSimpleName().equals("Test")) {
+                try {
+                    Object expected = annotation.annotationType().getMethod("expected").invoke(annotation);
+                    if (expected instanceof Class && Throwable.class.isAssignableFrom((Class<?>) expected)
+                            && !((Class<?>) expected).getSimpleName().equals("None")) {
+                        return (Class<?>) expected;
+                    }
+                } catch (ReflectiveOperationException e) {
+                    // No expected element.
+                }
+            }
+        }
+        return null;
+    }
+
+    // The heap left after the last collection plus the class metadata, which
+    // keeps growing when tests leak their class loaders.
+    private static long retainedBytes() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    bytes += usage.getUsed();
+                }
+            } else if (pool.getName().equals("Metaspace")) {
+                bytes += pool.getUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    // Sends what is written to it as frames of one type.
+    private static class FrameStream extends OutputStream {
+        private final char type;
+
+        FrameStream(char type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (protocol) {
+                protocol.writeByte(type);
+                protocol.writeInt(len);
+                protocol.write(b, off, len);
+                protocol.flush();
+            }
+        }
+    }
+}
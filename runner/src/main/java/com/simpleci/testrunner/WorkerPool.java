@@ -0,0 +1,295 @@
+package com.simpleci.testrunner;
+
+import com.simpleci.common.Metrics;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Long-lived {@link TestWorker} JVMs that run test classes, so commits do not
+ * pay for a JVM start and run their tests on warmed-up JIT-compiled code.
+ * Every run loads the commit's classes in a fresh class loader and drops it
+ * afterwards. A worker is replaced after "simpleci.worker.maxRuns" runs, or
+ * once the memory it holds after a run has grown by more than
+ * "simpleci.worker.maxGrowthMb" since its first one, as when tests leak
+ * threads or class loaders. "simpleci.worker.jvmOptions" are passed to the
+ * workers' JVMs.
+ */
+class WorkerPool {
+    private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+    private static final Metrics.Counter workersStarted = Metrics.counter("simpleci_workers_started_total",
+            "Test worker JVMs started");
+    // How long a worker may take to start and create a class loader.
+    private static final long LOAD_TIMEOUT_MILLIS = 60000;
+
+    private final int maxRuns = Integer.getInteger("simpleci.worker.maxRuns", 100);
+    private final long maxGrowthBytes = Long.getLong("simpleci.worker.maxGrowthMb", 64) * 1024 * 1024;
+    private final List<String> jvmOptions = new ArrayList<>();
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+
+    WorkerPool() {
+        String options = System.getProperty("simpleci.worker.jvmOptions", "").trim();
+        if (!options.isEmpty()) {
+            jvmOptions.addAll(Arrays.asList(options.split("\\s+")));
+        }
+    }
+
+    /**
+     * Takes an idle worker, or starts one if there is none.
+     */
+    Worker acquire() throws IOException {
+        for (Worker worker = idle.poll(); worker != null; worker = idle.poll()) {
+            if (!worker.closed && worker.process.isAlive()) {
+                return worker;
+            }
+            worker.close();
+        }
+        return start();
+    }
+
+    /**
+     * Returns a worker after a run, replacing it if it is due for recycling.
+     * The replacement starts right away, so the next run does not wait for it.
+     */
+    void release(Worker worker) {
+        if (!worker.closed && worker.process.isAlive() && worker.runs < maxRuns
+                && (worker.firstRetained == -1 || worker.retained - worker.firstRetained <= maxGrowthBytes)) {
+            idle.add(worker);
+            return;
+        }
+        if (!worker.closed) {
+            logger.info("Recycling test worker " + worker.process.pid() + " after " + worker.runs + " runs, holding "
+                    + worker.retained / (1024 * 1024) + " MB");
+            worker.close();
+        }
+        Thread replace = new Thread(() -> {
+            try {
+                idle.add(start());
+            } catch (IOException e) {
+                logger.warning("Error starting test worker: " + e.getMessage());
+            }
+        }, "worker-start");
+        replace.setDaemon(true);
+        replace.start();
+    }
+
+    /**
+     * Replaces a worker that was killed in the middle of a run.
+     */
+    Worker replace(Worker worker) throws IOException {
+        worker.close();
+        return acquire();
+    }
+
+    void close() {
+        workers.forEach(Worker::close);
+    }
+
+    private Worker start() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TestWorker.class.getName());
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Worker worker = new Worker(process);
+        workers.add(worker);
+        workersStarted.increment();
+        return worker;
+    }
+
+    /**
+     * One worker JVM. Used by one test thread at a time; its frames are read
+     * on a thread of their own, so that a test thread waiting for them can
+     * time out or be interrupted.
+     */
+    class Worker {
+        private final Process process;
+        private final Writer commands;
+        private final BlockingQueue<Object[]> frames = new LinkedBlockingQueue<>();
+        // What tests wrote to stdout and stderr since the last line break.
+        private final StringBuilder stdout = new StringBuilder();
+        private final StringBuilder stderr = new StringBuilder();
+        private int runs = 0;
+        private long firstRetained = -1;
+        private long retained = -1;
+        private volatile boolean closed = false;
+
+        private Worker(Process process) {
+            this.process = process;
+            this.commands = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            Thread reader = new Thread(this::readFrames, "worker-" + process.pid());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readFrames() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+                while (true) {
+                    char type = (char) in.readByte();
+                    switch (type) {
+                        case 'O':
+                        case 'E':
+                            byte[] data = new byte[in.readInt()];
+                            in.readFully(data);
+                            frames.add(new Object[] {type, new String(data, StandardCharsets.UTF_8)});
+                            break;
+                        case 'L':
+                            frames.add(new Object[] {type, in.readBoolean(), in.readUTF()});
+                            break;
+                        case 'R':
+                            frames.add(new Object[] {type, in.readBoolean(), in.readLong(), in.readUTF()});
+                            break;
+                        case 'M':
+                            frames.add(new Object[] {type, in.readLong()});
+                            break;
+                        default:
+                            throw new IOException("Unexpected frame " + type);
+                    }
+                }
+            } catch (IOException e) {
+                // The worker exited or was killed.
+            }
+            frames.add(new Object[] {'X'});
+        }
+
+        private void send(String command) throws IOException {
+            commands.write(command + "\n");
+            commands.flush();
+        }
+
+        // Returns the next frame that is not output, copying output frames to
+        // the stream, or null once the worker exited or the time is up.
+        private Object[] next(ResultStream output, long deadline) throws InterruptedException {
+            while (true) {
+                Object[] frame = frames.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (frame == null || (char) frame[0] == 'X') {
+                    return null;
+                }
+                if ((char) frame[0] == 'O') {
+                    write(stdout, (String) frame[1], "", output);
+                } else if ((char) frame[0] == 'E') {
+                    write(stderr, (String) frame[1], "[stderr] ", output);
+                } else {
+                    write(stdout, "\n", "", output);
+                    write(stderr, "\n", "[stderr] ", output);
+                    return frame;
+                }
+            }
+        }
+
+        // Writes the complete lines of a stream's output, prefixed so that
+        // stderr stands out, and keeps the rest until its line is complete.
+        private void write(StringBuilder pending, String text, String prefix, ResultStream output) {
+            pending.append(text);
+            int end = pending.lastIndexOf("\n");
+            if (end == -1) {
+                return;
+            }
+            if (output != null && end > 0) {
+                output.write(prefix + pending.substring(0, end).replace("\n", "\n" + prefix) + "\n");
+            }
+            pending.delete(0, end + 1);
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Creates a fresh class loader over a commit's class path and returns
+         * whether the worker is ready to run its tests.
+         */
+        boolean load(List<String> classpath, ResultStream output) throws InterruptedException {
+            try {
+                send("load\t" + String.join(File.pathSeparator, classpath));
+            } catch (IOException e) {
+                output.write("Test worker failed to start\n");
+                close();
+                return false;
+            }
+            Object[] frame;
+            try {
+                frame = next(output, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_TIMEOUT_MILLIS));
+            } catch (InterruptedException e) {
+                close();
+                throw e;
+            }
+            if (frame == null || !(Boolean) frame[1]) {
+                output.write("Test worker failed to load classes" + (frame == null ? "" : ": " + frame[2]) + "\n");
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Runs a test class and returns whether it passed. The worker is
+         * killed if the class runs out of time, or when the calling thread is
+         * interrupted, which is then rethrown.
+         */
+        boolean run(String className, ResultStream output, long timeoutMillis) throws InterruptedException {
+            try {
+                send("run\t" + className);
+                Object[] frame = next(output, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+                if (frame == null) {
+                    output.write(process.isAlive() ? "Timed out after " + timeoutMillis + " ms: " + className + "\n"
+                            : "Test worker exited while running " + className + "\n");
+                    close();
+                    return false;
+                }
+                output.write(className + ": " + frame[3] + "\n");
+                return (Boolean) frame[1];
+            } catch (IOException e) {
+                output.write("Test worker exited while running " + className + "\n");
+                close();
+                return false;
+            } catch (InterruptedException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Drops the commit's class loader and notes the memory the worker
+         * holds without it.
+         */
+        void unload() throws InterruptedException {
+            runs++;
+            if (closed || !process.isAlive()) {
+                return;
+            }
+            try {
+                send("unload");
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            Object[] frame;
+            try {
+                frame = next(null, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOAD_TIMEOUT_MILLIS));
+            } catch (InterruptedException e) {
+                close();
+                throw e;
+            }
+            if (frame == null) {
+                close();
+                return;
+            }
+            retained = (Long) frame[1];
+            if (firstRetained == -1) {
+                firstRetained = retained;
+            }
+        }
+
+        void close() {
+            closed = true;
+            workers.remove(this);
+            process.destroyForcibly();
+        }
+    }
+}
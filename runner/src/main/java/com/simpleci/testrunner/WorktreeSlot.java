@@ -0,0 +1,64 @@
+package com.simpleci.testrunner;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * One execution slot of a runner. Each slot owns a git worktree of the runner's
+ * repository, created once and reused for every commit it tests, so several
+ * commits can be checked out side by side.
+ *
+ * Checkouts are incremental: git only rewrites the files that differ from the
+ * worktree's previous commit. With "simpleci.runner.sparse" set to a comma
+ * separated list of directories, worktrees only hold those directories.
+ */
+class WorktreeSlot {
+    private static final Logger logger = Logger.getLogger(WorktreeSlot.class.getName());
+
+    private final int index;
+    private final String repoPath;
+    private final File worktree;
+
+    WorktreeSlot(int index, String repoPath, File worktreeRoot) {
+        this.index = index;
+        this.repoPath = repoPath;
+        this.worktree = new File(worktreeRoot, "slot-" + index);
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    File getWorktree() {
+        return worktree;
+    }
+
+    // Creates the worktree unless a previous run already left one behind.
+    void ensureWorktree() throws IOException {
+        if (!new File(worktree, ".git").exists()) {
+            Git.run(new File(repoPath), "worktree", "prune");
+            if (!Git.run(new File(repoPath), "worktree", "add", "--detach", worktree.getAbsolutePath())) {
+                throw new IOException("Unable to create worktree " + worktree);
+            }
+            logger.info("Created worktree for slot " + index + " at " + worktree);
+        }
+        String sparse = System.getProperty("simpleci.runner.sparse", "");
+        if (!sparse.isEmpty()) {
+            List<String> command = new ArrayList<>(Arrays.asList("sparse-checkout", "set", "--cone"));
+            command.addAll(Arrays.asList(sparse.split(",")));
+            if (!Git.run(worktree, command.toArray(new String[0]))) {
+                throw new IOException("Unable to limit worktree " + worktree + " to " + sparse);
+            }
+        }
+    }
+
+    boolean checkout(String commit) throws IOException {
+        return Git.run(worktree, "checkout", "--detach", "--force", commit);
+    }
+
+    @Override
+    public String toString() {
+        return "slot-" + index;
+    }
+}
@@ -1,16 +0,0 @@
-package com.simpleci.common;
-
-public final class CommunicationConstants {
-    public static final String STATUS_CMD = "status";
-    public static final String REGISTER_CMD = "register";
-    public static final String COMMIT_CMD = "commit";
-    public static final String DISPATCH_CMD = "dispatch";
-    public static final String RESULTS_CMD = "results";
-    public static final String RUNT_TEST_CMD = "runtest";
-    public static final String PING_CMD = "ping";
-    public static final String PONG_RESPONSE = "pong";
-    public static final String OK_RESPONSE = "OK";
-
-    private CommunicationConstants() {
-    }
-}
\ No newline at end of file